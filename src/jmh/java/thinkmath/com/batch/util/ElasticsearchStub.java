@@ -0,0 +1,184 @@
+package thinkmath.com.batch.util;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-process stand-in for the cluster that answers the requests of a use case run with canned responses after a fixed
+ * latency. All responses are built up front, so the stub itself adds next to nothing to what is measured.
+ *
+ * <ul>
+ *     <li>{@code clients-*} searches with {@code track_total_hits} get the client count,</li>
+ *     <li>other {@code clients-*} searches get the page of clients at their {@code from},</li>
+ *     <li>point-in-time searches get one page per slice, then an empty page once they send {@code search_after},</li>
+ *     <li>{@code events-*} searches get {@code eventMatchRatio} of a page as matching events.</li>
+ * </ul>
+ * Requests with {@code filter_path} get the trimmed responses a cluster would send.
+ */
+public final class ElasticsearchStub implements AutoCloseable {
+    private static final Pattern FROM = Pattern.compile("\"from\":(\\d+)");
+    private static final Pattern SLICE = Pattern.compile("\"slice\":\\{\"id\":\"?(\\d+)");
+
+    private final HttpServer server;
+    private final ExecutorService handlers = Executors.newVirtualThreadPerTaskExecutor();
+    private final long latencyMillis;
+    private final byte[] countResponse;
+    private final List<byte[]> clientPages = new ArrayList<>();
+    private final List<byte[]> leanClientPages = new ArrayList<>();
+    private final byte[] eventPage;
+    private final byte[] leanEventPage;
+    private final byte[] emptyPage = searchResponse(List.of(), false);
+
+    public ElasticsearchStub(int totalClients, double eventMatchRatio, long latencyMillis) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.countResponse = ("{\"took\":1,\"timed_out\":false,"
+                + "\"_shards\":{\"total\":1,\"successful\":1,\"skipped\":0,\"failed\":0},"
+                + "\"hits\":{\"total\":{\"value\":" + totalClients + ",\"relation\":\"eq\"},\"max_score\":null,"
+                + "\"hits\":[]}}").getBytes(StandardCharsets.UTF_8);
+        for (int from = 0; from < totalClients; from += QueryBuilder.BATCH_SIZE) {
+            List<String> clientIds = clientIds(from, Math.min(QueryBuilder.BATCH_SIZE, totalClients - from));
+            clientPages.add(searchResponse(clientIds, false));
+            leanClientPages.add(searchResponse(clientIds, true));
+        }
+        List<String> matching = clientIds(0, (int) (QueryBuilder.BATCH_SIZE * eventMatchRatio));
+        this.eventPage = searchResponse(matching, false);
+        this.leanEventPage = searchResponse(matching, true);
+
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(handlers);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    public static List<String> clientIds(int from, int count) {
+        List<String> clientIds = new ArrayList<>(count);
+        for (int i = from; i < from + count; i++) {
+            clientIds.add("client-" + (10_000_000 + i));
+        }
+        return clientIds;
+    }
+
+    /**
+     * A search response with one hit per client, shaped like a {@code clients-*} document, or only the fields
+     * {@link ClientHitsReader#FILTER_PATH} keeps when {@code lean}.
+     */
+    public static byte[] searchResponse(List<String> clientIds, boolean lean) {
+        StringBuilder json = new StringBuilder(clientIds.size() * (lean ? 64 : 420));
+        if (!lean) {
+            json.append("{\"took\":12,\"timed_out\":false,")
+                    .append("\"_shards\":{\"total\":3,\"successful\":3,\"skipped\":0,\"failed\":0},")
+                    .append("\"hits\":{\"total\":{\"value\":").append(clientIds.size())
+                    .append(",\"relation\":\"eq\"},\"max_score\":null,\"hits\":[");
+        } else {
+            json.append("{\"pit_id\":\"pit-1\",\"hits\":{\"hits\":[");
+        }
+        for (int i = 0; i < clientIds.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            String clientId = clientIds.get(i);
+            if (lean) {
+                json.append("{\"_source\":{\"client_id\":\"").append(clientId)
+                        .append("\"},\"sort\":[").append(1_700_000_000_000L + i).append(',').append(i).append("]}");
+            } else {
+                json.append("{\"_index\":\"clients-2025.01\",\"_id\":\"").append(clientId)
+                        .append("\",\"_score\":null,\"_source\":{\"client_id\":\"").append(clientId)
+                        .append("\",\"attributes\":{\"a_created_date\":\"2024-03-").append(10 + i % 18)
+                        .append("T08:15:00Z\",\"a_c_ins_loyalty_point\":").append(i * 37 % 5000)
+                        .append(",\"a_custom_segment_id\":\"").append(100 + i % 900)
+                        .append("\",\"a_c_ins_customer_level\":\"").append(i % 9)
+                        .append("\",\"a_c_ins_credit_card\":").append(i % 3 == 0)
+                        .append("}},\"sort\":[").append(1_700_000_000_000L + i).append(',').append(i).append("]}");
+            }
+        }
+        return json.append("]}}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        handlers.close();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String body;
+            try (InputStream in = exchange.getRequestBody()) {
+                body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            if (latencyMillis > 0) {
+                Thread.sleep(latencyMillis);
+            }
+            respond(exchange, route(exchange, body));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private byte[] route(HttpExchange exchange, String body) {
+        String path = exchange.getRequestURI().getPath();
+        boolean lean = exchange.getRequestURI().getQuery() != null
+                && exchange.getRequestURI().getQuery().contains("filter_path");
+        if (path.endsWith("/_pit")) {
+            return exchange.getRequestMethod().equals("DELETE")
+                    ? "{\"succeeded\":true,\"num_freed\":1}".getBytes(StandardCharsets.UTF_8)
+                    : ("{\"id\":\"pit-1\","
+                            + "\"_shards\":{\"total\":1,\"successful\":1,\"skipped\":0,\"failed\":0}}")
+                            .getBytes(StandardCharsets.UTF_8);
+        }
+        if (!path.endsWith("/_search")) {
+            return "{}".getBytes(StandardCharsets.UTF_8);
+        }
+        if (path.startsWith("/events-")) {
+            return lean ? leanEventPage : eventPage;
+        }
+        if (path.equals("/_search")) {
+            if (body.contains("\"search_after\"")) {
+                return emptyPage;
+            }
+            return page(lean, matchedInt(SLICE, body) * QueryBuilder.BATCH_SIZE);
+        }
+        if (body.contains("\"track_total_hits\":true")) {
+            return countResponse;
+        }
+        return page(lean, matchedInt(FROM, body));
+    }
+
+    private byte[] page(boolean lean, int from) {
+        int index = from / QueryBuilder.BATCH_SIZE;
+        if (index >= clientPages.size()) {
+            return emptyPage;
+        }
+        return lean ? leanClientPages.get(index) : clientPages.get(index);
+    }
+
+    private static int matchedInt(Pattern pattern, String body) {
+        Matcher matcher = pattern.matcher(body);
+        return matcher.find() ? Integer.parseInt(matcher.group(1)) : 0;
+    }
+
+    private static void respond(HttpExchange exchange, byte[] response) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.getResponseHeaders().add("X-Elastic-Product", "Elasticsearch");
+        exchange.sendResponseHeaders(200, response.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(response);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package thinkmath.com.batch.util;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.RestClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.boot.context.properties.source.MapConfigurationPropertySource;
+import thinkmath.com.batch.config.BatchProperties;
+import thinkmath.com.batch.metrics.BatchMetrics;
+import thinkmath.com.batch.pipeline.ClusterThrottle;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ElasticsearchExecutor#executeUseCase} end to end against an {@link ElasticsearchStub} with a per-request
+ * latency, through the same clients, pages and pipeline as a real run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class EndToEndBenchmark {
+    @Param({"100000"})
+    int totalClients;
+
+    @Param({"0.3"})
+    double eventMatchRatio;
+
+    @Param({"0", "20"})
+    long latencyMillis;
+
+    @Param({"PAGED", "SLICED"})
+    String scanMode;
+
+    @Param({"3"})
+    int slices;
+
+    @Param({"FIXED", "ADAPTIVE"})
+    String executorMode;
+
+    private ElasticsearchStub stub;
+    private ElasticsearchService client;
+    private ElasticsearchExecutor executor;
+
+    @Setup
+    public void setUp() throws IOException {
+        stub = new ElasticsearchStub(totalClients, eventMatchRatio, latencyMillis);
+        BatchProperties properties = new Binder(new MapConfigurationPropertySource(Map.of(
+                        "batch.scan.mode", scanMode,
+                        "batch.scan.slices", String.valueOf(slices),
+                        "batch.executor.mode", executorMode)))
+                .bindOrCreate("batch", BatchProperties.class);
+        BatchMetrics metrics = new BatchMetrics(new SimpleMeterRegistry());
+        client = new ElasticsearchService(
+                properties, metrics, RestClient.builder(new HttpHost("localhost", stub.port(), "http")).build());
+        executor = new ElasticsearchExecutor(
+                client, properties, new JoinPlanner(client, properties), new ClusterThrottle(properties), metrics);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        executor.close();
+        client.close();
+        stub.close();
+    }
+
+    @Benchmark
+    public List<String> executeUseCase() throws IOException {
+        return executor.executeUseCase(1);
+    }
+}
@@ -0,0 +1,72 @@
+package thinkmath.com.batch.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import thinkmath.com.batch.dto.Page;
+import thinkmath.com.batch.segment.ClientIdSet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ElasticsearchExecutor#paginate} over a large client count, followed by merging every page's matching ids into
+ * the segment, either as a list or deduplicated in a {@link ClientIdSet}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class PaginateBenchmark {
+    @Param({"1000000"})
+    long totalClients;
+
+    @Param({"1000", "10000"})
+    int batchSize;
+
+    @Param({"0.3"})
+    double matchRatio;
+
+    private List<List<String>> matchingPages;
+
+    @Setup
+    public void setUp() {
+        matchingPages = new ArrayList<>();
+        int matchingPerPage = (int) (batchSize * matchRatio);
+        for (long from = 0; from < totalClients; from += batchSize) {
+            matchingPages.add(ElasticsearchStub.clientIds((int) from, matchingPerPage));
+        }
+    }
+
+    @Benchmark
+    public int paginateAndCollect() {
+        List<String> resultIds = new ArrayList<>();
+        List<Page> pages = ElasticsearchExecutor.paginate(totalClients, batchSize);
+        for (Page page : pages) {
+            resultIds.addAll(matchingPages.get(page.pageNumber()));
+        }
+        return resultIds.size();
+    }
+
+    @Benchmark
+    public int paginateAndMergeIntoSet() {
+        try (ClientIdSet segment = new ClientIdSet()) {
+            List<Page> pages = ElasticsearchExecutor.paginate(totalClients, batchSize);
+            for (Page page : pages) {
+                segment.addAll(matchingPages.get(page.pageNumber()));
+            }
+            return segment.size();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package thinkmath.com.batch.util;
+
+import co.elastic.clients.elasticsearch._types.query_dsl.Query;
+import co.elastic.clients.elasticsearch.core.SearchRequest;
+import co.elastic.clients.json.JsonpMapper;
+import co.elastic.clients.json.JsonpUtils;
+import co.elastic.clients.json.jackson.JacksonJsonpMapper;
+import org.apache.http.HttpEntity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning a page of client ids into an event search body: building the query tree, serializing it, and
+ * rendering the pre-serialized {@link QueryTemplate} instead.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueryBuilderBenchmark {
+    @Param({"1", "2", "3"})
+    int usecaseNumber;
+
+    @Param({"1000", "10000"})
+    int batchSize;
+
+    private final JsonpMapper mapper = new JacksonJsonpMapper();
+    private List<String> clientIds;
+    private QueryTemplate template;
+
+    @Setup
+    public void setUp() {
+        clientIds = ElasticsearchStub.clientIds(0, batchSize);
+        template = QueryTemplate.of(eventRequest(List.of(QueryTemplate.CLIENT_IDS)), mapper);
+    }
+
+    @Benchmark
+    public Query buildEventQuery() {
+        return QueryBuilder.buildEventQuery(usecaseNumber, clientIds);
+    }
+
+    @Benchmark
+    public String buildAndSerialize() {
+        return JsonpUtils.toJsonString(eventRequest(clientIds), mapper);
+    }
+
+    @Benchmark
+    public HttpEntity renderTemplate() {
+        return template.render(clientIds, null);
+    }
+
+    private SearchRequest eventRequest(List<String> ids) {
+        return new SearchRequest.Builder()
+                .size(QueryBuilder.BATCH_SIZE)
+                .query(QueryBuilder.buildEventQuery(usecaseNumber, ids))
+                .source(source -> source.filter(filter -> filter.includes(QueryBuilder.CLIENT_ID)))
+                .sort(sort -> sort.field(field -> field.field("@timestamp")))
+                .build();
+    }
+}
@@ -0,0 +1,68 @@
+package thinkmath.com.batch.util;
+
+import co.elastic.clients.elasticsearch.core.SearchResponse;
+import co.elastic.clients.json.JsonpDeserializer;
+import co.elastic.clients.json.JsonpMapper;
+import co.elastic.clients.json.jackson.JacksonJsonpMapper;
+import jakarta.json.stream.JsonParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import thinkmath.com.batch.dto.ClientPage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding a page of client hits: the typed client's {@code SearchResponse<Map>}, against {@link ClientHitsReader} on
+ * the full response and on the {@code filter_path} trimmed one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponseDecodingBenchmark {
+    @Param({"1000", "10000"})
+    int hits;
+
+    private final JsonpMapper mapper = new JacksonJsonpMapper();
+    private final JsonpDeserializer<SearchResponse<Map>> deserializer =
+            SearchResponse.createSearchResponseDeserializer(JsonpDeserializer.of(Map.class));
+    private byte[] fullPage;
+    private byte[] leanPage;
+
+    @Setup
+    public void setUp() {
+        fullPage = ElasticsearchStub.searchResponse(ElasticsearchStub.clientIds(0, hits), false);
+        leanPage = ElasticsearchStub.searchResponse(ElasticsearchStub.clientIds(0, hits), true);
+    }
+
+    @Benchmark
+    public SearchResponse<Map> searchResponseMap() {
+        try (JsonParser parser = mapper.jsonProvider().createParser(new ByteArrayInputStream(fullPage))) {
+            return deserializer.deserialize(parser, mapper);
+        }
+    }
+
+    @Benchmark
+    public ClientPage clientHitsReaderFull() throws IOException {
+        return ClientHitsReader.read(new ByteArrayInputStream(fullPage));
+    }
+
+    @Benchmark
+    public ClientPage clientHitsReaderLean() throws IOException {
+        return ClientHitsReader.read(new ByteArrayInputStream(leanPage));
+    }
+}
@@ -1,22 +1,48 @@
 package thinkmath.com.batch;
 
+import io.micrometer.core.instrument.Timer;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.batch.core.JobExecution;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.context.properties.ConfigurationPropertiesScan;
 import org.springframework.scheduling.annotation.EnableScheduling;
-import org.springframework.util.StopWatch;
+import thinkmath.com.batch.config.BatchProperties;
+import thinkmath.com.batch.dto.CacheStats;
+import thinkmath.com.batch.generator.DatasetGenerator;
+import thinkmath.com.batch.job.SegmentJobConfiguration;
+import thinkmath.com.batch.job.SegmentJobLauncher;
+import thinkmath.com.batch.metrics.BatchMetrics;
+import thinkmath.com.batch.segment.ClientIdSet;
+import thinkmath.com.batch.segment.SegmentWriter;
 import thinkmath.com.batch.util.ElasticsearchExecutor;
+import thinkmath.com.batch.util.ElasticsearchService;
+import thinkmath.com.batch.util.QueryBuilder;
+import thinkmath.com.batch.util.SegmentRefresher;
 
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 
 @Slf4j
 @RequiredArgsConstructor
 @SpringBootApplication
+@ConfigurationPropertiesScan
 @EnableScheduling
 public class BatchApplication implements CommandLineRunner {
     private final ElasticsearchExecutor executor;
+    private final ElasticsearchService client;
+    private final BatchProperties properties;
+    private final SegmentRefresher refresher;
+    private final SegmentJobLauncher jobLauncher;
+    private final DatasetGenerator generator;
+    private final BatchMetrics metrics;
 
     public static void main(String[] args) {
         SpringApplication.run(BatchApplication.class, args);
@@ -30,18 +56,137 @@ public class BatchApplication implements CommandLineRunner {
      */
     @Override
     public void run(String... args) throws Exception {
-        StopWatch stopWatch = new StopWatch();
-        stopWatch.start();
+        if (properties.generator().enabled()) {
+            generator.generate();
+            return;
+        }
+        CacheStats cacheBefore = startRun();
+        try {
+            runUseCases();
+        } finally {
+            recordCacheUsage(cacheBefore);
+            metrics.logSummary();
+        }
+    }
+
+    /**
+     * Anchors the event queries of this run and, in cache-friendly mode, takes the cache counts the run is measured
+     * against.
+     */
+    private CacheStats startRun() throws IOException {
+        client.startRun(Instant.now());
+        BatchProperties.Cache cache = properties.cache();
+        if (!cache.enabled() && !cache.routing()) {
+            return null;
+        }
+        try {
+            return client.cacheStats(QueryBuilder.EVENT_INDEX);
+        } catch (IOException | RuntimeException e) {
+            log.warn(
+                    "Cannot read the cache statistics of {}, cache hits are not reported", QueryBuilder.EVENT_INDEX, e);
+            return null;
+        }
+    }
+
+    private void recordCacheUsage(CacheStats before) {
+        if (before == null) {
+            return;
+        }
+        try {
+            metrics.cacheUsage(client.cacheStats(QueryBuilder.EVENT_INDEX).since(before));
+        } catch (IOException | RuntimeException e) {
+            log.warn("Cannot read the cache statistics of {}", QueryBuilder.EVENT_INDEX, e);
+        }
+    }
+
+    private void runUseCases() throws Exception {
+        if (properties.incremental().enabled()) {
+            for (int usecaseNumber : properties.run().usecases()) {
+                runIncremental(usecaseNumber);
+            }
+            return;
+        }
+        if (properties.job().enabled()) {
+            for (int usecaseNumber : properties.run().usecases()) {
+                runJob(usecaseNumber);
+            }
+            return;
+        }
+        if (properties.run().fused()) {
+            runFused(properties.run().usecases());
+            return;
+        }
+        for (int usecaseNumber : properties.run().usecases()) {
+            runUseCase(usecaseNumber);
+        }
+    }
+
+    private void runUseCase(int usecaseNumber) throws IOException {
+        Timer.Sample sample = metrics.startRun();
 
-        int usecaseNumber = 1;
-        List<String> queryResult = executor.executeUseCase(usecaseNumber);
-        stopWatch.stop();
-        long time = stopWatch.getTotalTimeMillis();
+        AtomicLong totalClients = new AtomicLong();
+        try (ClientIdSet distinctClients = new ClientIdSet();
+                SegmentWriter export = SegmentWriter.open(properties.export(), usecaseNumber)) {
+            executor.streamUseCase(usecaseNumber, clientIds -> {
+                totalClients.addAndGet(clientIds.size());
+                distinctClients.addAll(clientIds);
+                export.accept(clientIds);
+            });
+            export.complete();
+            long time = metrics.stopRun(sample, "full", String.valueOf(usecaseNumber));
 
-        log.info("Total time: {}ms", time);
+            log.info("Use case {} total time: {}ms", usecaseNumber, time);
+            log.info("Total clients: {} with {} distinct clients", totalClients.get(), distinctClients.size());
+        }
+    }
+
+    private void runIncremental(int usecaseNumber) throws IOException {
+        Timer.Sample sample = metrics.startRun();
+
+        try (ClientIdSet segment = refresher.refresh(usecaseNumber);
+                SegmentWriter export = SegmentWriter.open(properties.export(), usecaseNumber)) {
+            export.acceptAll(segment);
+            export.complete();
+            long time = metrics.stopRun(sample, "incremental", String.valueOf(usecaseNumber));
+            log.info("Use case {} refresh time: {}ms", usecaseNumber, time);
+            log.info("Segment size: {} distinct clients", segment.size());
+        }
+    }
+
+    private void runJob(int usecaseNumber) throws Exception {
+        Timer.Sample sample = metrics.startRun();
+        JobExecution execution = jobLauncher.run(usecaseNumber);
+        metrics.stopRun(sample, "job", String.valueOf(usecaseNumber));
         log.info(
-                "Total clients: {} with {} distinct clients",
-                queryResult.size(),
-                queryResult.stream().distinct().count());
+                "Use case {} job {} total time: {}ms",
+                usecaseNumber,
+                execution.getId(),
+                Duration.between(execution.getStartTime(), execution.getEndTime()).toMillis());
+        log.info(
+                "Segment size: {} distinct clients",
+                execution.getExecutionContext().getInt(SegmentJobConfiguration.SEGMENT_SIZE, 0));
+    }
+
+    private void runFused(List<Integer> usecaseNumbers) throws IOException {
+        Timer.Sample sample = metrics.startRun();
+
+        Map<Integer, ClientIdSet> segments = executor.executeUseCasesFused(usecaseNumbers);
+        long time = metrics.stopRun(
+                sample, "fused", usecaseNumbers.stream().map(String::valueOf).collect(Collectors.joining("+")));
+
+        log.info("Use cases {} total time: {}ms", usecaseNumbers, time);
+        try {
+            for (Map.Entry<Integer, ClientIdSet> segment : segments.entrySet()) {
+                ClientIdSet clientIds = segment.getValue();
+                try (SegmentWriter export = SegmentWriter.open(properties.export(), segment.getKey())) {
+                    log.info("Use case {}: {} distinct clients", segment.getKey(), clientIds.size());
+                    export.acceptAll(clientIds);
+                    export.complete();
+                }
+            }
+        } finally {
+            // Also frees the segments that were not exported because an earlier export failed
+            segments.values().forEach(ClientIdSet::close);
+        }
     }
 }
@@ -2,25 +2,34 @@ package thinkmath.com.batch;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.slf4j.event.Level;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
+import thinkmath.com.batch.util.ClusterMonitor;
 import thinkmath.com.batch.util.ElasticsearchExecutor;
 
-import java.io.IOException;
-
 @RequiredArgsConstructor
 @Slf4j
 @Component
 public class ScheduledTasks {
     private final ElasticsearchExecutor executor;
+    private final ClusterMonitor clusterMonitor;
+    private int loggedLimit = -1;
 
-    @Scheduled(fixedRate = 5_000)
-    public void reportCurrentTime() throws IOException {
-        boolean healthCheck = executor.healthCheck();
-        if (healthCheck) {
-            System.out.println("Elasticsearch is healthy");
-        } else {
-            System.out.println("Elasticsearch isn't healthy");
-        }
+    @Scheduled(fixedRateString = "${batch.throttle.interval:5s}")
+    public void monitorCluster() {
+        clusterMonitor.sample();
+        executor.concurrencyStats().ifPresent(stats -> {
+            // INFO only when the limit moved since the last tick, like the throttle logs its level changes
+            Level level = stats.limit() != loggedLimit ? Level.INFO : Level.DEBUG;
+            loggedLimit = stats.limit();
+            log.atLevel(level).log(
+                    "Concurrency limit {} with {} pages in flight, page latency {}ms (avg {}ms), {} rejections",
+                    stats.limit(),
+                    stats.inFlight(),
+                    stats.lastLatencyMillis(),
+                    stats.averageLatencyMillis(),
+                    stats.rejections());
+        });
     }
 }
@@ -0,0 +1,286 @@
+package thinkmath.com.batch.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+@ConfigurationProperties(prefix = "batch")
+public record BatchProperties(
+        @DefaultValue Transport transport,
+        @DefaultValue Run run,
+        @DefaultValue Scan scan,
+        @DefaultValue Pipeline pipeline,
+        @DefaultValue Events events,
+        @DefaultValue Cache cache,
+        @DefaultValue Executor executor,
+        @DefaultValue Throttle throttle,
+        @DefaultValue Requests requests,
+        @DefaultValue Planner planner,
+        @DefaultValue Incremental incremental,
+        @DefaultValue Job job,
+        @DefaultValue Export export,
+        @DefaultValue Generator generator) {
+
+    /**
+     * @param hosts                    nodes requests are spread over, as {@code scheme://host:port}
+     * @param username                 basic authentication user, none when empty
+     * @param password                 basic authentication password, required with a username
+     * @param trustAllCertificates     accept any server certificate and host name, for self-signed clusters
+     * @param nodeSelection            how the coordinating node of each request is picked among {@code hosts}
+     * @param maxConnectionsPerNode    pooled connections per node
+     * @param maxConnections           pooled connections over all nodes
+     * @param ioThreads                HTTP client I/O dispatcher threads, {@code 0} for one per processor
+     * @param connectTimeout           time to open a connection
+     * @param socketTimeout            inactivity allowed on a connection while waiting for a response
+     * @param connectionRequestTimeout time to wait for a pooled connection
+     * @param compression              gzip request bodies and accept gzip responses
+     * @param keepAlive                how long an idle pooled connection is kept open
+     */
+    public record Transport(
+            @DefaultValue("https://localhost:9200") List<String> hosts,
+            @DefaultValue("") String username,
+            @DefaultValue("") String password,
+            @DefaultValue("false") boolean trustAllCertificates,
+            @DefaultValue("ROUND_ROBIN") NodeSelection nodeSelection,
+            @DefaultValue("16") int maxConnectionsPerNode,
+            @DefaultValue("64") int maxConnections,
+            @DefaultValue("0") int ioThreads,
+            @DefaultValue("1s") Duration connectTimeout,
+            @DefaultValue("30s") Duration socketTimeout,
+            @DefaultValue("10s") Duration connectionRequestTimeout,
+            @DefaultValue("true") boolean compression,
+            @DefaultValue("2m") Duration keepAlive) {}
+
+    /**
+     * @param usecases use cases evaluated by a run
+     * @param fused    evaluate all {@code usecases} over a single client scan instead of one scan each
+     */
+    public record Run(
+            @DefaultValue("1") List<Integer> usecases,
+            @DefaultValue("false") boolean fused) {}
+
+    /**
+     * @param mode      how clients are enumerated
+     * @param slices    number of point-in-time slices scanned in parallel in {@link ScanMode#SLICED} mode
+     * @param keepAlive how long the point-in-time is kept open between two pages of a slice
+     */
+    public record Scan(
+            @DefaultValue("PAGED") ScanMode mode,
+            @DefaultValue("3") int slices,
+            @DefaultValue("5m") Duration keepAlive) {}
+
+    /**
+     * @param maxInFlightPages pages evaluated at the same time before producers block
+     * @param maxBufferedIds   matching ids waiting for the sink before producers block
+     * @param staged           run the client scan and the event evaluation as two stages joined by a queue; requires
+     *                         {@link ScanMode#SLICED}
+     * @param clientBatchQueue client id batches buffered between the two stages
+     * @param eventWorkers     concurrent event evaluations in the second stage; the first stage runs one scanner per
+     *                         {@link Scan#slices()}
+     */
+    public record Pipeline(
+            @DefaultValue("6") int maxInFlightPages,
+            @DefaultValue("100000") int maxBufferedIds,
+            @DefaultValue("false") boolean staged,
+            @DefaultValue("4") int clientBatchQueue,
+            @DefaultValue("4") int eventWorkers) {}
+
+    /**
+     * @param strategy            default event strategy
+     * @param usecaseStrategy     per use case overrides, keyed by use case number
+     * @param aggregationPageSize buckets per composite aggregation page in {@link EventStrategy#AGGREGATION} mode
+     * @param msearchBatchSize    per-client searches packed in one {@code _msearch} ({@link EventStrategy#SINGLE})
+     * @param msearchMaxInFlight  {@code _msearch} batches sent at the same time for one page
+     */
+    public record Events(
+            @DefaultValue("TERMS") EventStrategy strategy,
+            Map<Integer, EventStrategy> usecaseStrategy,
+            @DefaultValue("10000") int aggregationPageSize,
+            @DefaultValue("200") int msearchBatchSize,
+            @DefaultValue("4") int msearchMaxInFlight) {
+
+        public EventStrategy strategyFor(int usecaseNumber) {
+            return usecaseStrategy == null ? strategy : usecaseStrategy.getOrDefault(usecaseNumber, strategy);
+        }
+    }
+
+    /**
+     * @param enabled     count the relative dates of the event queries back from the start of the run rounded down
+     *                    to {@code granularity} instead of from {@code now}, and ask for the shard request cache, so
+     *                    that pages and runs within the same interval can reuse the request and query caches
+     * @param granularity what the run timestamp is rounded down to; event windows may end up to this much earlier
+     * @param routing     split every page of client ids by the shard that holds their events and send one routed
+     *                    search per shard; only correct if events are indexed with their {@code client_id} as routing
+     */
+    public record Cache(
+            @DefaultValue("false") boolean enabled,
+            @DefaultValue("1h") Duration granularity,
+            @DefaultValue("false") boolean routing) {}
+
+    /**
+     * @param mode                fixed platform thread pool or adaptive virtual threads
+     * @param initialLimit        concurrent pages when an adaptive run starts
+     * @param minLimit            lowest concurrency the adaptive limit backs off to
+     * @param maxLimit            highest concurrency the adaptive limit grows to
+     * @param latencyThreshold    page latency above which the adaptive limit backs off
+     * @param backoffRatio        factor applied to the adaptive limit on a slow or rejected page
+     * @param maxRejectionRetries times a rejected page is retried before the run fails, each after a backoff drawn
+     *                            like the request retries' from {@link Requests#initialBackoff()}
+     */
+    public record Executor(
+            @DefaultValue("FIXED") ExecutorMode mode,
+            @DefaultValue("3") int initialLimit,
+            @DefaultValue("1") int minLimit,
+            @DefaultValue("32") int maxLimit,
+            @DefaultValue("10s") Duration latencyThreshold,
+            @DefaultValue("0.7") double backoffRatio,
+            @DefaultValue("3") int maxRejectionRetries) {}
+
+    /**
+     * @param enabled             sample cluster health and node statistics and hold pages back under pressure
+     * @param interval            time between two samples
+     * @param slowDownSearchQueue search thread pool queue of the busiest node above which pages are paced
+     * @param pauseSearchQueue    search thread pool queue of the busiest node above which no page is dispatched
+     * @param slowDownHeapPercent heap use of the fullest node above which pages are paced
+     * @param pauseHeapPercent    heap use of the fullest node above which no page is dispatched
+     * @param slowDownOnYellow    pace pages while the cluster is yellow; off by default, as a single-node cluster with
+     *                            replicas configured is yellow for good; a red cluster always pauses them
+     * @param pageInterval        time between two page dispatches while paced
+     * @param maxPause            longest a page waits for the pressure to drop before the run fails
+     * @param staleAfter          age after which the last sample is ignored, so that a monitor which cannot reach the
+     *                            cluster does not hold pages back
+     */
+    public record Throttle(
+            @DefaultValue("true") boolean enabled,
+            @DefaultValue("5s") Duration interval,
+            @DefaultValue("50") long slowDownSearchQueue,
+            @DefaultValue("500") long pauseSearchQueue,
+            @DefaultValue("75") long slowDownHeapPercent,
+            @DefaultValue("90") long pauseHeapPercent,
+            @DefaultValue("false") boolean slowDownOnYellow,
+            @DefaultValue("200ms") Duration pageInterval,
+            @DefaultValue("10m") Duration maxPause,
+            @DefaultValue("1m") Duration staleAfter) {}
+
+    /**
+     * @param deadline        time one attempt of a page request may take before it is cancelled and retried
+     * @param maxRetries      retries of a request after a timeout, a 429, 502, 503 or 504, or a connection error
+     * @param initialBackoff  bound of the first retry delay, doubled on every retry; each delay is drawn uniformly
+     *                        below its bound
+     * @param maxBackoff      cap of the retry delay bound
+     * @param hedge           send a duplicate of a slow page request with another {@code preference}, so that other
+     *                        shard copies serve it, and keep whichever answers first
+     * @param hedgePercentile latency percentile of the request's stage after which the duplicate is sent
+     * @param hedgeMinDelay   shortest wait before a duplicate is sent
+     * @param hedgeMinSamples requests of a stage observed before its requests are hedged
+     */
+    public record Requests(
+            @DefaultValue("30s") Duration deadline,
+            @DefaultValue("3") int maxRetries,
+            @DefaultValue("100ms") Duration initialBackoff,
+            @DefaultValue("5s") Duration maxBackoff,
+            @DefaultValue("false") boolean hedge,
+            @DefaultValue("0.95") double hedgePercentile,
+            @DefaultValue("20ms") Duration hedgeMinDelay,
+            @DefaultValue("50") int hedgeMinSamples) {}
+
+    /**
+     * @param enabled          probe both sides of each use case and let the smaller one drive the evaluation
+     * @param eventDrivenRatio the event side drives when its distinct clients are at most this share of the clients
+     * @param minBatchSize     smallest page the planner picks when spreading a small driving side over the workers
+     */
+    public record Planner(
+            @DefaultValue("false") boolean enabled,
+            @DefaultValue("0.5") double eventDrivenRatio,
+            @DefaultValue("1000") int minBatchSize) {}
+
+    /**
+     * @param enabled            keep each use case's segment on disk and only re-evaluate the clients that may have
+     *                           changed since the previous run
+     * @param directory          where segments and their watermarks are stored
+     * @param overlap            how far before the stored watermark changes are looked for, to cover late events
+     * @param clientUpdatedField client document date field set whenever a client is updated
+     */
+    public record Incremental(
+            @DefaultValue("false") boolean enabled,
+            @DefaultValue("segments") Path directory,
+            @DefaultValue("5m") Duration overlap,
+            @DefaultValue("attributes.a_updated_date") String clientUpdatedField) {}
+
+    /**
+     * @param enabled         run each use case as a restartable partitioned Spring Batch job; a failed run of a use
+     *                        case is resumed from its last checkpoint by the next launch
+     * @param partitions      client creation date ranges the scan is split into
+     * @param concurrency     partitions scanned at the same time
+     * @param outputDirectory where partitions write the matching client ids and the merged segment is kept
+     */
+    public record Job(
+            @DefaultValue("false") boolean enabled,
+            @DefaultValue("8") int partitions,
+            @DefaultValue("3") int concurrency,
+            @DefaultValue("job-output") Path outputDirectory) {}
+
+    /**
+     * @param enabled   write the segment of every use case to a file as its pages arrive
+     * @param format    file format of the segments
+     * @param directory where segment files are written, one per use case
+     * @param blockSize ids per compressed block of a {@link ExportFormat#BINARY} file
+     * @param runSize   memory of the ids buffered before they are sorted and spilled to a temporary run of a
+     *                  {@link ExportFormat#BINARY} export; up to two runs are held at a time
+     */
+    public record Export(
+            @DefaultValue("false") boolean enabled,
+            @DefaultValue("BINARY") ExportFormat format,
+            @DefaultValue("exports") Path directory,
+            @DefaultValue("1024") int blockSize,
+            @DefaultValue("64MB") DataSize runSize) {}
+
+    /**
+     * @param enabled           generate a synthetic dataset instead of evaluating use cases
+     * @param output            load the documents through bulk requests or write them to NDJSON files
+     * @param clients           client documents to generate
+     * @param events            event documents to generate
+     * @param seed              seed of every random choice; the same seed and settings give the same documents
+     * @param end               latest event timestamp, start of the current UTC day when not set
+     * @param eventDays         days before {@code end} that event timestamps are spread over
+     * @param eventSkew         exponent skewing events towards the first clients; {@code 1} spreads them evenly
+     * @param vipRatio          share of clients in a VIP segment or customer level
+     * @param creditCardRatio   share of clients with a credit card
+     * @param clientIndex       index client documents go to
+     * @param eventIndex        index event documents go to
+     * @param directory         where NDJSON files are written
+     * @param threads           generating threads, all available processors when {@code 0}
+     * @param blockSize         documents generated from one seed, the unit of parallelism and of NDJSON files
+     * @param bulkMaxOperations operations per bulk request
+     * @param bulkMaxSize       bytes per bulk request
+     * @param bulkConcurrency   bulk requests in flight before generating threads block
+     * @param replicas          replicas of the indices the generator creates, which load without any and get them once
+     *                          the load ends, whether it succeeded or not
+     */
+    public record Generator(
+            @DefaultValue("false") boolean enabled,
+            @DefaultValue("BULK") GeneratorOutput output,
+            @DefaultValue("1000000") long clients,
+            @DefaultValue("10000000") long events,
+            @DefaultValue("42") long seed,
+            Instant end,
+            @DefaultValue("60") int eventDays,
+            @DefaultValue("2.0") double eventSkew,
+            @DefaultValue("0.05") double vipRatio,
+            @DefaultValue("0.3") double creditCardRatio,
+            @DefaultValue("clients-generated") String clientIndex,
+            @DefaultValue("events-generated") String eventIndex,
+            @DefaultValue("generated") Path directory,
+            @DefaultValue("0") int threads,
+            @DefaultValue("100000") int blockSize,
+            @DefaultValue("5000") int bulkMaxOperations,
+            @DefaultValue("5MB") DataSize bulkMaxSize,
+            @DefaultValue("4") int bulkConcurrency,
+            @DefaultValue("1") int replicas) {}
+}
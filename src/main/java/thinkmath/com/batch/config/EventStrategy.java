@@ -0,0 +1,13 @@
+package thinkmath.com.batch.config;
+
+/**
+ * How a page of client ids is matched against the events of a use case.
+ */
+public enum EventStrategy {
+    /** One {@code terms} query on the page, paging through every matching event with {@code search_after}. */
+    TERMS,
+    /** One query per client id. */
+    SINGLE,
+    /** One {@code terms} query on the page returning only the distinct matching client ids as composite buckets. */
+    AGGREGATION
+}
@@ -0,0 +1,11 @@
+package thinkmath.com.batch.config;
+
+/**
+ * How pages are scheduled.
+ */
+public enum ExecutorMode {
+    /** A fixed pool of {@code QueryBuilder.FIXED_THREAD_POOL} platform threads. */
+    FIXED,
+    /** A virtual thread per page, gated by an AIMD limit driven by page latency and cluster rejections. */
+    ADAPTIVE
+}
@@ -0,0 +1,11 @@
+package thinkmath.com.batch.config;
+
+/**
+ * File format of exported segments.
+ */
+public enum ExportFormat {
+    /** One id per line in arrival order, duplicates included. */
+    TEXT,
+    /** Distinct ids sorted and front-coded in deflated blocks, with a block index for lookups on a mapped file. */
+    BINARY
+}
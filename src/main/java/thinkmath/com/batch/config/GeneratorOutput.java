@@ -0,0 +1,11 @@
+package thinkmath.com.batch.config;
+
+/**
+ * Where the synthetic dataset goes.
+ */
+public enum GeneratorOutput {
+    /** Parallel bulk requests through a {@code BulkIngester}. */
+    BULK,
+    /** One {@code _bulk}-formatted NDJSON file per block, to load later with {@code curl --data-binary}. */
+    NDJSON
+}
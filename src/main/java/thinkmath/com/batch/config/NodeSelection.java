@@ -0,0 +1,11 @@
+package thinkmath.com.batch.config;
+
+/**
+ * Which of the configured hosts coordinates the next request.
+ */
+public enum NodeSelection {
+    /** Each host in turn. */
+    ROUND_ROBIN,
+    /** The hosts with the fewest connections leased or awaited, in turn among equally loaded ones. */
+    LEAST_LOADED
+}
@@ -0,0 +1,11 @@
+package thinkmath.com.batch.config;
+
+/**
+ * How the client population of a use case is enumerated.
+ */
+public enum ScanMode {
+    /** {@code from}/{@code size} pages sorted on {@code attributes.a_created_date}. */
+    PAGED,
+    /** Point-in-time snapshot split into slices, each walked with {@code search_after} on {@code _shard_doc}. */
+    SLICED
+}
@@ -0,0 +1,23 @@
+package thinkmath.com.batch.dto;
+
+/**
+ * Hit and miss counts of the shard request cache and the node query cache over some indices.
+ *
+ * @param requestCacheHits   search responses served from the shard request cache
+ * @param requestCacheMisses cacheable search responses that had to be computed
+ * @param queryCacheHits     filter lookups served from the query cache
+ * @param queryCacheMisses   filter lookups that had to be computed
+ */
+public record CacheStats(long requestCacheHits, long requestCacheMisses, long queryCacheHits, long queryCacheMisses) {
+
+    /**
+     * @return the counts added since {@code earlier}
+     */
+    public CacheStats since(CacheStats earlier) {
+        return new CacheStats(
+                requestCacheHits - earlier.requestCacheHits,
+                requestCacheMisses - earlier.requestCacheMisses,
+                queryCacheHits - earlier.queryCacheHits,
+                queryCacheMisses - earlier.queryCacheMisses);
+    }
+}
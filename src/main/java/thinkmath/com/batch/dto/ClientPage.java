@@ -0,0 +1,24 @@
+package thinkmath.com.batch.dto;
+
+import co.elastic.clients.elasticsearch._types.FieldValue;
+
+import java.util.List;
+
+/**
+ * The only parts of a search response the batch needs: the client id of every hit, the sort values of the last hit
+ * (for {@code search_after}) and the refreshed point-in-time id, if any.
+ *
+ * @param hits         hits in the page, including any without a {@code client_id}; a page is full, and may have a
+ *                     next one, when this reaches the requested size
+ * @param usecaseMasks for fused scans, one bit per use case ({@code 1L << usecaseNumber}) whose named client
+ *                     predicate matched each hit; {@code null} when no hit carried {@code matched_queries}
+ */
+public record ClientPage(
+        String pitId, List<String> clientIds, int hits, List<FieldValue> lastSort, long[] usecaseMasks) {
+    /** Highest use case number a mask has a bit for. */
+    public static final int MAX_FUSED_USECASE = Long.SIZE - 1;
+
+    public boolean matches(int hitIndex, int usecaseNumber) {
+        return usecaseMasks != null && (usecaseMasks[hitIndex] & (1L << usecaseNumber)) != 0;
+    }
+}
@@ -0,0 +1,13 @@
+package thinkmath.com.batch.dto;
+
+/**
+ * One sample of the cluster load that search requests add to.
+ *
+ * @param status           cluster health, {@code green}, {@code yellow} or {@code red}
+ * @param busiestNode      name of the node with the longest search queue
+ * @param searchQueue      search thread pool queue of that node
+ * @param searchRejections search requests rejected over all nodes since the previous sample
+ * @param heapUsedPercent  heap use of the fullest node
+ */
+public record ClusterPressure(
+        String status, String busiestNode, long searchQueue, long searchRejections, long heapUsedPercent) {}
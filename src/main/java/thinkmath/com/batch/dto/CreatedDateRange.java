@@ -0,0 +1,6 @@
+package thinkmath.com.batch.dto;
+
+/**
+ * Earliest and latest {@code attributes.a_created_date} of a set of clients, in epoch milliseconds.
+ */
+public record CreatedDateRange(long min, long max) {}
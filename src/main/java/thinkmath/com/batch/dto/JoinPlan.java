@@ -0,0 +1,27 @@
+package thinkmath.com.batch.dto;
+
+/**
+ * How a use case joins its client and event predicates, with the cardinalities it was chosen from.
+ *
+ * @param estimatedClients      clients matching the client predicate
+ * @param estimatedEventClients distinct clients with events matching the event predicate (HyperLogLog estimate)
+ * @param batchSize             client ids per page on the driving side
+ * @param estimatedRequests     round trips the chosen plan is expected to need
+ * @param estimatedMillis       wall time expected from the probe latency and the page concurrency
+ */
+public record JoinPlan(
+        int usecaseNumber,
+        DrivingSide drivingSide,
+        long estimatedClients,
+        long estimatedEventClients,
+        int batchSize,
+        long estimatedRequests,
+        long estimatedMillis) {
+
+    public enum DrivingSide {
+        /** Scan the clients and check each page against the events. */
+        CLIENTS,
+        /** Collect the distinct clients of the matching events and check each page against the client predicate. */
+        EVENTS
+    }
+}
@@ -0,0 +1,264 @@
+package thinkmath.com.batch.generator;
+
+import co.elastic.clients.elasticsearch._helpers.bulk.BulkIngester;
+import co.elastic.clients.elasticsearch._helpers.bulk.BulkListener;
+import co.elastic.clients.elasticsearch._types.mapping.TypeMapping;
+import co.elastic.clients.elasticsearch.core.BulkRequest;
+import co.elastic.clients.elasticsearch.core.BulkResponse;
+import co.elastic.clients.elasticsearch.core.bulk.BulkOperation;
+import co.elastic.clients.elasticsearch.core.bulk.BulkResponseItem;
+import co.elastic.clients.util.BinaryData;
+import co.elastic.clients.util.ContentType;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import thinkmath.com.batch.config.BatchProperties;
+import thinkmath.com.batch.config.GeneratorOutput;
+import thinkmath.com.batch.util.ElasticsearchService;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates a synthetic dataset of {@code batch.generator.clients} clients and {@code batch.generator.events} events
+ * and bulk loads it or writes it as NDJSON. Documents are generated in blocks of {@code block-size}, each from its own
+ * seed, on {@code threads} threads. Every document has a fixed id, so generating the same dataset again replaces it.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class DatasetGenerator {
+    private static final int CLIENTS = 0;
+    private static final int EVENTS = 1;
+    private static final int FLUSH_BYTES = 1 << 20;
+
+    private final ElasticsearchService client;
+    private final BatchProperties properties;
+
+    public void generate() throws IOException {
+        BatchProperties.Generator settings = properties.generator();
+        Instant end = settings.end() != null
+                ? settings.end()
+                : LocalDate.now(ZoneOffset.UTC).atStartOfDay(ZoneOffset.UTC).toInstant();
+        int threads = settings.threads() > 0 ? settings.threads() : Runtime.getRuntime().availableProcessors();
+        log.info(
+                "Generating {} clients and {} events up to {} with seed {} on {} threads to {}",
+                settings.clients(),
+                settings.events(),
+                end,
+                settings.seed(),
+                threads,
+                settings.output());
+        long start = System.nanoTime();
+
+        BulkLoad bulkLoad = null;
+        List<String> createdIndices = new ArrayList<>();
+        if (settings.output() == GeneratorOutput.BULK) {
+            if (client.createIndexIfMissing(settings.clientIndex(), clientMappings())) {
+                createdIndices.add(settings.clientIndex());
+            }
+            if (client.createIndexIfMissing(settings.eventIndex(), eventMappings())) {
+                createdIndices.add(settings.eventIndex());
+            }
+            bulkLoad = new BulkLoad(settings);
+        } else {
+            Files.createDirectories(settings.directory());
+        }
+
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        try {
+            generate(workers, settings, end, CLIENTS, settings.clients(), bulkLoad);
+            generate(workers, settings, end, EVENTS, settings.events(), bulkLoad);
+        } finally {
+            workers.shutdownNow();
+            if (bulkLoad != null) {
+                try {
+                    bulkLoad.ingester.close();
+                } finally {
+                    // A failed load must not leave the indices without refreshes and replicas
+                    for (String index : createdIndices) {
+                        client.finishBulkLoad(index, settings.replicas());
+                    }
+                }
+            }
+        }
+
+        if (bulkLoad != null) {
+            if (bulkLoad.failed.get() > 0) {
+                throw new IOException(bulkLoad.failed.get() + " documents failed to load");
+            }
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        long documents = settings.clients() + settings.events();
+        log.info(
+                "Generated {} documents in {}ms ({} documents/s)",
+                documents,
+                millis,
+                documents * 1000 / Math.max(1, millis));
+    }
+
+    private void generate(
+            ExecutorService workers,
+            BatchProperties.Generator settings,
+            Instant end,
+            int kind,
+            long count,
+            BulkLoad bulkLoad)
+            throws IOException {
+        long blocks = Math.ceilDiv(count, settings.blockSize());
+        AtomicLong generated = new AtomicLong();
+        List<Future<?>> futures = new ArrayList<>();
+        for (long block = 0; block < blocks; block++) {
+            long first = block * settings.blockSize();
+            long size = Math.min(settings.blockSize(), count - first);
+            long blockNumber = block;
+            futures.add(workers.submit(() -> {
+                generateBlock(settings, end, kind, blockNumber, first, size, bulkLoad);
+                long total = generated.addAndGet(size);
+                if ((blockNumber + 1) % 10 == 0) {
+                    log.info("Generated {}/{} {}", total, count, kind == CLIENTS ? "clients" : "events");
+                }
+                return null;
+            }));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while generating documents", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ioException ? ioException : new IOException(e.getCause());
+        }
+    }
+
+    private void generateBlock(
+            BatchProperties.Generator settings,
+            Instant end,
+            int kind,
+            long block,
+            long first,
+            long size,
+            BulkLoad bulkLoad)
+            throws IOException {
+        SyntheticDocuments documents =
+                new SyntheticDocuments(settings, end, SyntheticDocuments.blockSeed(settings.seed(), kind, block));
+        String index = kind == CLIENTS ? settings.clientIndex() : settings.eventIndex();
+        StringBuilder json = new StringBuilder(512);
+        if (bulkLoad != null) {
+            for (long i = first; i < first + size; i++) {
+                json.setLength(0);
+                appendDocument(documents, kind, i, json);
+                String id = kind == CLIENTS ? SyntheticDocuments.clientId(i) : SyntheticDocuments.eventId(i);
+                BinaryData document =
+                        BinaryData.of(json.toString().getBytes(StandardCharsets.UTF_8), ContentType.APPLICATION_JSON);
+                bulkLoad.ingester.add(
+                        BulkOperation.of(op -> op.index(idx -> idx.index(index).id(id).document(document))));
+            }
+            return;
+        }
+
+        Path file = settings.directory().resolve(String.format("%s-%06d.ndjson", index, block));
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), FLUSH_BYTES)) {
+            for (long i = first; i < first + size; i++) {
+                json.append("{\"index\":{\"_index\":\"").append(index)
+                        .append("\",\"_id\":\"")
+                        .append(kind == CLIENTS ? SyntheticDocuments.clientId(i) : SyntheticDocuments.eventId(i))
+                        .append("\"}}\n");
+                appendDocument(documents, kind, i, json);
+                json.append('\n');
+                if (json.length() >= FLUSH_BYTES) {
+                    out.write(json.toString().getBytes(StandardCharsets.UTF_8));
+                    json.setLength(0);
+                }
+            }
+            out.write(json.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static void appendDocument(SyntheticDocuments documents, int kind, long index, StringBuilder json) {
+        if (kind == CLIENTS) {
+            documents.appendClient(json, index);
+        } else {
+            documents.appendEvent(json);
+        }
+    }
+
+    private static TypeMapping clientMappings() {
+        return TypeMapping.of(m -> m
+                .properties("client_id", p -> p.keyword(k -> k))
+                .properties("attributes", p -> p.object(o -> o
+                        .properties("a_created_date", a -> a.date(d -> d))
+                        .properties("a_c_ins_loyalty_point", a -> a.long_(l -> l))
+                        .properties("a_custom_segment_id", a -> a.keyword(k -> k))
+                        .properties("a_c_ins_customer_level", a -> a.keyword(k -> k))
+                        .properties("a_c_ins_credit_card", a -> a.keyword(k -> k)))));
+    }
+
+    private static TypeMapping eventMappings() {
+        return TypeMapping.of(m -> m
+                .properties("client_id", p -> p.keyword(k -> k))
+                .properties("event_name", p -> p.keyword(k -> k))
+                .properties("@timestamp", p -> p.date(d -> d))
+                .properties("ins_vay_success_term", p -> p.text(t -> t))
+                .properties("ins_vay_success_type", p -> p.text(t -> t))
+                .properties("e_journey_id", p -> p.keyword(k -> k))
+                .properties("a_c_ins_credit_card", p -> p.keyword(k -> k)));
+    }
+
+    /**
+     * The shared bulk ingester and its counts of loaded and failed documents.
+     */
+    private final class BulkLoad implements BulkListener<Void> {
+        private final BulkIngester<Void> ingester;
+        private final AtomicLong loaded = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+
+        BulkLoad(BatchProperties.Generator settings) {
+            this.ingester = client.bulkIngester(
+                    settings.bulkMaxOperations(),
+                    settings.bulkMaxSize().toBytes(),
+                    settings.bulkConcurrency(),
+                    this);
+        }
+
+        @Override
+        public void beforeBulk(long executionId, BulkRequest request, List<Void> contexts) {}
+
+        @Override
+        public void afterBulk(long executionId, BulkRequest request, List<Void> contexts, BulkResponse response) {
+            long errors = 0;
+            for (BulkResponseItem item : response.items()) {
+                if (item.error() != null) {
+                    if (errors++ == 0) {
+                        log.warn("Bulk request {} rejected a document: {}", executionId, item.error().reason());
+                    }
+                }
+            }
+            failed.addAndGet(errors);
+            loaded.addAndGet(response.items().size() - errors);
+        }
+
+        @Override
+        public void afterBulk(long executionId, BulkRequest request, List<Void> contexts, Throwable failure) {
+            failed.addAndGet(request.operations().size());
+            log.error("Bulk request {} of {} documents failed", executionId, request.operations().size(), failure);
+        }
+    }
+}
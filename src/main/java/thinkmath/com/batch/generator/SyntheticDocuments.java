@@ -0,0 +1,146 @@
+package thinkmath.com.batch.generator;
+
+import net.datafaker.Faker;
+import net.datafaker.service.RandomService;
+import thinkmath.com.batch.config.BatchProperties;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Random;
+
+/**
+ * Writes synthetic {@code clients-*} and {@code events-*} documents as JSON, drawing every value from a datafaker
+ * {@link Faker} seeded for one block of documents. A block's documents only depend on the generator settings and the
+ * block's seed, so blocks can be generated in any order and on any thread and still give the same dataset.
+ */
+public final class SyntheticDocuments {
+    private static final String[] EVENT_NAMES = {
+        "ins_dangnhap_success",
+        "push_delivered",
+        "ins_the_giaodich",
+        "ins_card_tragop_success",
+        "ins_vay_dangky_success",
+        "ins_vay_giaingan_success"
+    };
+    /** Cumulative share of each of {@link #EVENT_NAMES}. */
+    private static final double[] EVENT_WEIGHTS = {0.50, 0.75, 0.85, 0.91, 0.96, 1.0};
+    private static final long CREATED_DAYS = 5 * 365;
+
+    private final Faker faker;
+    private final RandomService random;
+    private final BatchProperties.Generator settings;
+    private final long endMillis;
+    private final long eventSpanMillis;
+
+    public SyntheticDocuments(BatchProperties.Generator settings, Instant end, long blockSeed) {
+        this.faker = new Faker(new Random(blockSeed));
+        this.random = faker.random();
+        this.settings = settings;
+        this.endMillis = end.toEpochMilli();
+        this.eventSpanMillis = Duration.ofDays(settings.eventDays()).toMillis();
+    }
+
+    /**
+     * Seed of block {@code block} of a document {@code kind}, mixed so that neighbouring blocks get unrelated seeds.
+     */
+    public static long blockSeed(long seed, int kind, long block) {
+        long h = seed ^ ((long) kind << 56) ^ block * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    public static String clientId(long index) {
+        return paddedId("C0000000000", index);
+    }
+
+    /**
+     * Id of event {@code index}, so that loading the same dataset again overwrites its events instead of adding them.
+     */
+    public static String eventId(long index) {
+        return paddedId("E000000000000", index);
+    }
+
+    private static String paddedId(String zeros, long index) {
+        StringBuilder id = new StringBuilder(zeros);
+        String digits = Long.toString(index);
+        id.replace(id.length() - digits.length(), id.length(), digits);
+        return id.toString();
+    }
+
+    /**
+     * Appends the client document of client {@code index}.
+     */
+    public void appendClient(StringBuilder json, long index) {
+        boolean vip = random.nextDouble() < settings.vipRatio();
+        json.append("{\"client_id\":\"").append(clientId(index)).append("\",\"attributes\":{");
+        json.append("\"a_created_date\":\"")
+                .append(Instant.ofEpochMilli(endMillis - random.nextLong(Duration.ofDays(CREATED_DAYS).toMillis())))
+                .append('"');
+        if (random.nextDouble() >= 0.1) {
+            // Exponential around 3000 points: about 30% of clients under 1000
+            json.append(",\"a_c_ins_loyalty_point\":").append((long) (-3000 * Math.log(1 - random.nextDouble())));
+        }
+        boolean vipSegment = vip && random.nextBoolean();
+        json.append(",\"a_custom_segment_id\":\"")
+                .append(vipSegment ? faker.options().option("240", "981") : regularSegment())
+                .append('"');
+        json.append(",\"a_c_ins_customer_level\":\"")
+                .append(vip && !vipSegment ? random.nextInt(9, 15) : random.nextInt(1, 8))
+                .append('"');
+        json.append(",\"a_c_ins_credit_card\":\"").append(random.nextDouble() < settings.creditCardRatio()).append('"');
+        json.append("}}");
+    }
+
+    /**
+     * Appends an event document of a client drawn with the configured skew.
+     */
+    public void appendEvent(StringBuilder json) {
+        String eventName = eventName();
+        long clientIndex = (long) (settings.clients() * Math.pow(random.nextDouble(), settings.eventSkew()));
+        Instant timestamp = Instant.ofEpochMilli(endMillis - random.nextLong(eventSpanMillis));
+        json.append("{\"event_name\":\"").append(eventName)
+                .append("\",\"@timestamp\":\"").append(timestamp)
+                .append("\",\"client_id\":\"").append(clientId(Math.min(clientIndex, settings.clients() - 1)))
+                .append('"');
+        switch (eventName) {
+            case "ins_vay_dangky_success", "ins_vay_giaingan_success" -> json
+                    .append(",\"ins_vay_success_term\":\"")
+                    .append(faker.options().option("6 tháng", "12 tháng", "24 tháng"))
+                    .append("\",\"ins_vay_success_type\":\"")
+                    .append(faker.options().option("Tín dụng VietQR", "Vay tiêu dùng", "Vay tín chấp"))
+                    .append('"');
+            case "push_delivered" -> json
+                    .append(",\"e_journey_id\":\"")
+                    .append(faker.options().option("1861", "1865", "1870", "1902"))
+                    .append('"');
+            case "ins_the_giaodich", "ins_card_tragop_success" -> json
+                    .append(",\"a_c_ins_credit_card\":\"")
+                    .append(random.nextDouble() < settings.creditCardRatio() ? "True" : "False")
+                    .append('"');
+            default -> {}
+        }
+        json.append('}');
+    }
+
+    private String eventName() {
+        double draw = random.nextDouble();
+        int i = 0;
+        while (draw >= EVENT_WEIGHTS[i]) {
+            i++;
+        }
+        return EVENT_NAMES[i];
+    }
+
+    private int regularSegment() {
+        while (true) {
+            int segment = random.nextInt(100, 999);
+            if (segment != 240 && segment != 981) {
+                return segment;
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package thinkmath.com.batch.job;
+
+import org.springframework.batch.item.Chunk;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.batch.item.ItemStreamException;
+import org.springframework.batch.item.ItemStreamWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Appends the matching client ids of a partition to a file, one per line. The file length is saved with every chunk
+ * and a restarted partition truncates the file back to it, dropping whatever the failed chunk had written.
+ */
+public class ClientIdFileWriter implements ItemStreamWriter<List<String>> {
+    private static final String WRITTEN_BYTES = "written.bytes";
+
+    private final Path file;
+    private FileChannel channel;
+
+    public ClientIdFileWriter(Path file) {
+        this.file = file;
+    }
+
+    @Override
+    public void open(ExecutionContext executionContext) {
+        try {
+            Files.createDirectories(file.getParent());
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            long committed = executionContext.getLong(WRITTEN_BYTES, 0L);
+            channel.truncate(committed);
+            channel.position(committed);
+        } catch (IOException e) {
+            throw new ItemStreamException("Could not open " + file, e);
+        }
+    }
+
+    @Override
+    public void write(Chunk<? extends List<String>> chunk) throws IOException {
+        ByteArrayOutputStream lines = new ByteArrayOutputStream();
+        for (List<String> clientIds : chunk) {
+            for (String clientId : clientIds) {
+                lines.writeBytes(clientId.getBytes(StandardCharsets.UTF_8));
+                lines.write('\n');
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(lines.toByteArray());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    @Override
+    public void update(ExecutionContext executionContext) {
+        try {
+            channel.force(false);
+            executionContext.putLong(WRITTEN_BYTES, channel.position());
+        } catch (IOException e) {
+            throw new ItemStreamException("Could not flush " + file, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            throw new ItemStreamException("Could not close " + file, e);
+        }
+    }
+}
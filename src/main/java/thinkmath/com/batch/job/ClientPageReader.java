@@ -0,0 +1,70 @@
+package thinkmath.com.batch.job;
+
+import co.elastic.clients.elasticsearch._types.FieldValue;
+import co.elastic.clients.elasticsearch._types.query_dsl.Query;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.batch.item.ItemStreamException;
+import org.springframework.batch.item.ItemStreamReader;
+import thinkmath.com.batch.dto.ClientPage;
+import thinkmath.com.batch.util.ElasticsearchService;
+import thinkmath.com.batch.util.QueryBuilder;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Reads the clients of one partition a page at a time with {@code search_after} on
+ * ({@code attributes.a_created_date}, {@code client_id}). The sort values of the last page read are the checkpoint:
+ * they are saved with every chunk, and a restarted partition continues right after them.
+ */
+public class ClientPageReader implements ItemStreamReader<List<String>> {
+    private static final String AFTER_CREATED_DATE = "after.createdDate";
+    private static final String AFTER_CLIENT_ID = "after.clientId";
+
+    private final ElasticsearchService client;
+    private final Query query;
+    private List<FieldValue> searchAfter;
+    private boolean exhausted;
+
+    public ClientPageReader(ElasticsearchService client, int usecaseNumber, Long createdFrom, Long createdTo) {
+        this.client = client;
+        this.query = QueryBuilder.buildClientQuery(usecaseNumber, createdFrom, createdTo);
+    }
+
+    @Override
+    public void open(ExecutionContext executionContext) {
+        if (executionContext.containsKey(AFTER_CLIENT_ID)) {
+            searchAfter = List.of(
+                    FieldValue.of(executionContext.getLong(AFTER_CREATED_DATE)),
+                    FieldValue.of(executionContext.getString(AFTER_CLIENT_ID)));
+        }
+    }
+
+    @Override
+    public List<String> read() throws IOException {
+        // A full page whose hits all lack a client_id is skipped, not taken for the end
+        while (!exhausted) {
+            ClientPage page = client.searchClientsAfter(query, searchAfter);
+            exhausted = page.hits() < QueryBuilder.BATCH_SIZE;
+            if (page.hits() > 0) {
+                searchAfter = page.lastSort();
+            }
+            if (!page.clientIds().isEmpty()) {
+                return page.clientIds();
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void update(ExecutionContext executionContext) {
+        if (searchAfter == null) {
+            return;
+        }
+        if (searchAfter.size() != 2 || !searchAfter.get(0).isLong() || !searchAfter.get(1).isString()) {
+            throw new ItemStreamException("Unexpected client sort values: " + searchAfter);
+        }
+        executionContext.putLong(AFTER_CREATED_DATE, searchAfter.get(0).longValue());
+        executionContext.putString(AFTER_CLIENT_ID, searchAfter.get(1).stringValue());
+    }
+}
@@ -0,0 +1,61 @@
+package thinkmath.com.batch.job;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.batch.core.partition.support.Partitioner;
+import org.springframework.batch.item.ExecutionContext;
+import thinkmath.com.batch.dto.CreatedDateRange;
+import thinkmath.com.batch.util.ElasticsearchService;
+import thinkmath.com.batch.util.QueryBuilder;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Splits the clients of a use case into {@code gridSize} equal ranges of {@code attributes.a_created_date}. The first
+ * range has no lower bound and the last has no upper bound, so it also takes the clients without a creation date.
+ */
+@Slf4j
+public class CreatedDatePartitioner implements Partitioner {
+    public static final String PARTITION = "partition";
+    public static final String CREATED_FROM = "createdFrom";
+    public static final String CREATED_TO = "createdTo";
+
+    private final ElasticsearchService client;
+    private final int usecaseNumber;
+
+    public CreatedDatePartitioner(ElasticsearchService client, int usecaseNumber) {
+        this.client = client;
+        this.usecaseNumber = usecaseNumber;
+    }
+
+    @Override
+    public Map<String, ExecutionContext> partition(int gridSize) {
+        Optional<CreatedDateRange> range;
+        try {
+            range = client.createdDateRange(QueryBuilder.buildClientQuery(usecaseNumber));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        int partitions = range.isPresent() ? gridSize : 1;
+        long min = range.map(CreatedDateRange::min).orElse(0L);
+        long width = range.map(r -> Math.max(1, Math.ceilDiv(r.max() - r.min() + 1, partitions))).orElse(0L);
+
+        Map<String, ExecutionContext> contexts = new LinkedHashMap<>();
+        for (int partition = 0; partition < partitions; partition++) {
+            ExecutionContext context = new ExecutionContext();
+            context.putInt(PARTITION, partition);
+            if (partition > 0) {
+                context.putLong(CREATED_FROM, min + partition * width);
+            }
+            if (partition < partitions - 1) {
+                context.putLong(CREATED_TO, min + (partition + 1) * width);
+            }
+            contexts.put(PARTITION + partition, context);
+        }
+        log.info("Use case {} split into {} created date partitions from {}", usecaseNumber, partitions, range);
+        return contexts;
+    }
+}
@@ -0,0 +1,26 @@
+package thinkmath.com.batch.job;
+
+import org.springframework.batch.item.ItemProcessor;
+import thinkmath.com.batch.util.ElasticsearchService;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Keeps the clients of a page that match the event predicate of the use case; pages without any are filtered out.
+ */
+public class EventFilterProcessor implements ItemProcessor<List<String>, List<String>> {
+    private final ElasticsearchService client;
+    private final int usecaseNumber;
+
+    public EventFilterProcessor(ElasticsearchService client, int usecaseNumber) {
+        this.client = client;
+        this.usecaseNumber = usecaseNumber;
+    }
+
+    @Override
+    public List<String> process(List<String> clientIds) throws IOException {
+        List<String> resultIds = client.executeEventsQuery(clientIds, usecaseNumber);
+        return resultIds.isEmpty() ? null : resultIds;
+    }
+}
@@ -0,0 +1,210 @@
+package thinkmath.com.batch.job;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.batch.core.Job;
+import org.springframework.batch.core.Step;
+import org.springframework.batch.core.StepContribution;
+import org.springframework.batch.core.configuration.annotation.JobScope;
+import org.springframework.batch.core.configuration.annotation.StepScope;
+import org.springframework.batch.core.job.builder.JobBuilder;
+import org.springframework.batch.core.partition.support.Partitioner;
+import org.springframework.batch.core.repository.JobRepository;
+import org.springframework.batch.core.scope.context.ChunkContext;
+import org.springframework.batch.core.step.builder.StepBuilder;
+import org.springframework.batch.repeat.RepeatStatus;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.util.FileSystemUtils;
+import thinkmath.com.batch.config.BatchProperties;
+import thinkmath.com.batch.segment.ClientIdSet;
+import thinkmath.com.batch.util.ElasticsearchService;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+/**
+ * Segment evaluation as a partitioned job: {@code scanClients} splits the clients of the use case into creation date
+ * partitions, each {@code scanPartition} worker reads its clients a page per chunk, keeps the ones matching the events
+ * and appends them to its own file, {@code mergeSegment} merges the partition files into {@code usecase-<n>.ids}
+ * and {@code cleanPartitions} deletes them. Every chunk commits the partition's sort key and file length to the job
+ * repository, so a restart only redoes the partitions that did not complete, from their last committed page. The
+ * partition files are only deleted once the merge has committed, so a merge that fails to commit is redone from
+ * them.
+ */
+@Slf4j
+@Configuration
+public class SegmentJobConfiguration {
+    public static final String JOB_NAME = "segmentJob";
+    public static final String USECASE = "usecase";
+    public static final String SEGMENT_SIZE = "segment.size";
+
+    @Bean
+    public Job segmentJob(JobRepository jobRepository, Step scanClients, Step mergeSegment, Step cleanPartitions) {
+        return new JobBuilder(JOB_NAME, jobRepository)
+                .start(scanClients)
+                .next(mergeSegment)
+                .next(cleanPartitions)
+                .build();
+    }
+
+    @Bean
+    public Step scanClients(
+            JobRepository jobRepository,
+            Step scanPartition,
+            Partitioner createdDatePartitioner,
+            BatchProperties properties) {
+        SimpleAsyncTaskExecutor taskExecutor = new SimpleAsyncTaskExecutor("partition-");
+        taskExecutor.setVirtualThreads(true);
+        taskExecutor.setConcurrencyLimit(properties.job().concurrency());
+        return new StepBuilder("scanClients", jobRepository)
+                .partitioner(scanPartition.getName(), createdDatePartitioner)
+                .step(scanPartition)
+                .gridSize(properties.job().partitions())
+                .taskExecutor(taskExecutor)
+                .build();
+    }
+
+    @Bean
+    @JobScope
+    public CreatedDatePartitioner createdDatePartitioner(
+            ElasticsearchService client, @Value("#{jobParameters['usecase']}") Long usecaseNumber) {
+        return new CreatedDatePartitioner(client, usecaseNumber.intValue());
+    }
+
+    @Bean
+    public Step scanPartition(
+            JobRepository jobRepository,
+            PlatformTransactionManager transactionManager,
+            ClientPageReader clientPageReader,
+            EventFilterProcessor eventFilterProcessor,
+            ClientIdFileWriter clientIdFileWriter) {
+        return new StepBuilder("scanPartition", jobRepository)
+                .<List<String>, List<String>>chunk(1, transactionManager)
+                .reader(clientPageReader)
+                .processor(eventFilterProcessor)
+                .writer(clientIdFileWriter)
+                .build();
+    }
+
+    @Bean
+    @StepScope
+    public ClientPageReader clientPageReader(
+            ElasticsearchService client,
+            @Value("#{jobParameters['usecase']}") Long usecaseNumber,
+            @Value("#{stepExecutionContext['createdFrom']}") Long createdFrom,
+            @Value("#{stepExecutionContext['createdTo']}") Long createdTo) {
+        return new ClientPageReader(client, usecaseNumber.intValue(), createdFrom, createdTo);
+    }
+
+    @Bean
+    @StepScope
+    public EventFilterProcessor eventFilterProcessor(
+            ElasticsearchService client, @Value("#{jobParameters['usecase']}") Long usecaseNumber) {
+        return new EventFilterProcessor(client, usecaseNumber.intValue());
+    }
+
+    @Bean
+    @StepScope
+    public ClientIdFileWriter clientIdFileWriter(
+            BatchProperties properties,
+            @Value("#{jobParameters['usecase']}") Long usecaseNumber,
+            @Value("#{stepExecution.jobExecution.jobId}") Long jobInstanceId,
+            @Value("#{stepExecutionContext['partition']}") Integer partition) {
+        Path directory = partitionDirectory(properties, usecaseNumber, jobInstanceId);
+        return new ClientIdFileWriter(directory.resolve("partition-" + partition + ".ids"));
+    }
+
+    @Bean
+    public Step mergeSegment(
+            JobRepository jobRepository, PlatformTransactionManager transactionManager, BatchProperties properties) {
+        return new StepBuilder("mergeSegment", jobRepository)
+                .tasklet(
+                        (contribution, chunkContext) -> merge(properties, contribution, chunkContext),
+                        transactionManager)
+                .build();
+    }
+
+    @Bean
+    public Step cleanPartitions(
+            JobRepository jobRepository, PlatformTransactionManager transactionManager, BatchProperties properties) {
+        return new StepBuilder("cleanPartitions", jobRepository)
+                .tasklet(
+                        (contribution, chunkContext) -> {
+                            FileSystemUtils.deleteRecursively(partitionDirectory(properties, contribution));
+                            return RepeatStatus.FINISHED;
+                        },
+                        transactionManager)
+                .build();
+    }
+
+    /**
+     * Writes the merged segment to a temporary file moved over {@code usecase-<n>.ids}, so the previous segment stays
+     * whole until the new one is.
+     */
+    private static RepeatStatus merge(
+            BatchProperties properties, StepContribution contribution, ChunkContext chunkContext) throws IOException {
+        long usecaseNumber = contribution.getStepExecution().getJobParameters().getLong(USECASE);
+        Path directory = partitionDirectory(properties, contribution);
+        Path segmentFile = properties.job().outputDirectory().resolve("usecase-" + usecaseNumber + ".ids");
+
+        try (ClientIdSet segment = new ClientIdSet()) {
+            if (Files.isDirectory(directory)) {
+                try (DirectoryStream<Path> partitionFiles = Files.newDirectoryStream(directory, "partition-*.ids")) {
+                    for (Path partitionFile : partitionFiles) {
+                        try (BufferedReader reader = Files.newBufferedReader(partitionFile)) {
+                            reader.lines().forEach(segment::add);
+                        }
+                    }
+                }
+            }
+            Files.createDirectories(segmentFile.getParent());
+            Path temporary =
+                    Files.createTempFile(segmentFile.getParent(), segmentFile.getFileName().toString(), ".tmp");
+            try {
+                try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16)) {
+                    segment.forEachEntry((chunk, offset, length) -> {
+                        byte[] bytes = new byte[length];
+                        chunk.get(offset, bytes);
+                        try {
+                            out.write(bytes);
+                            out.write('\n');
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                Files.move(temporary, segmentFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+            chunkContext.getStepContext().getStepExecution().getJobExecution().getExecutionContext()
+                    .putInt(SEGMENT_SIZE, segment.size());
+            log.info("Use case {} merged {} distinct clients into {}", usecaseNumber, segment.size(), segmentFile);
+        }
+        return RepeatStatus.FINISHED;
+    }
+
+    private static Path partitionDirectory(BatchProperties properties, StepContribution contribution) {
+        return partitionDirectory(
+                properties,
+                contribution.getStepExecution().getJobParameters().getLong(USECASE),
+                contribution.getStepExecution().getJobExecution().getJobId());
+    }
+
+    private static Path partitionDirectory(BatchProperties properties, long usecaseNumber, long jobInstanceId) {
+        return properties.job().outputDirectory().resolve("usecase-" + usecaseNumber).resolve("job-" + jobInstanceId);
+    }
+}
@@ -0,0 +1,98 @@
+package thinkmath.com.batch.job;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.batch.core.BatchStatus;
+import org.springframework.batch.core.ExitStatus;
+import org.springframework.batch.core.Job;
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.JobInstance;
+import org.springframework.batch.core.JobParameters;
+import org.springframework.batch.core.JobParametersBuilder;
+import org.springframework.batch.core.StepExecution;
+import org.springframework.batch.core.explore.JobExplorer;
+import org.springframework.batch.core.launch.JobLauncher;
+import org.springframework.batch.core.repository.JobRepository;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.util.Comparator;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Launches {@link SegmentJobConfiguration#JOB_NAME} for a use case. When the latest run of that use case did not
+ * complete, it is restarted with the same parameters instead, so that only its unfinished partitions run again.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class SegmentJobLauncher {
+    private static final int RECENT_INSTANCES = 100;
+
+    private final JobLauncher jobLauncher;
+    private final JobExplorer jobExplorer;
+    private final JobRepository jobRepository;
+    private final Job segmentJob;
+
+    public JobExecution run(int usecaseNumber) throws Exception {
+        JobParameters parameters;
+        Optional<JobExecution> unfinished = lastExecution(usecaseNumber)
+                .filter(execution -> execution.getStatus() != BatchStatus.COMPLETED
+                        && execution.getStatus() != BatchStatus.ABANDONED);
+        if (unfinished.isPresent()) {
+            JobExecution previous = unfinished.get();
+            if (previous.isRunning()) {
+                markFailed(previous);
+            }
+            parameters = previous.getJobParameters();
+            log.info("Restarting use case {} from job execution {}", usecaseNumber, previous.getId());
+        } else {
+            parameters = new JobParametersBuilder()
+                    .addLong(SegmentJobConfiguration.USECASE, (long) usecaseNumber)
+                    .addLocalDateTime("run.started", LocalDateTime.now())
+                    .toJobParameters();
+        }
+
+        JobExecution execution = jobLauncher.run(segmentJob, parameters);
+        if (execution.getStatus() != BatchStatus.COMPLETED) {
+            throw new IllegalStateException("Use case " + usecaseNumber + " job ended " + execution.getStatus()
+                    + ", launch again to resume it", execution.getAllFailureExceptions().stream()
+                    .findFirst()
+                    .orElse(null));
+        }
+        return execution;
+    }
+
+    private Optional<JobExecution> lastExecution(int usecaseNumber) {
+        String jobName = SegmentJobConfiguration.JOB_NAME;
+        for (JobInstance instance : jobExplorer.getJobInstances(jobName, 0, RECENT_INSTANCES)) {
+            Optional<JobExecution> last = jobExplorer.getJobExecutions(instance).stream()
+                    .max(Comparator.comparing(JobExecution::getId));
+            if (last.isPresent() && Objects.equals(
+                    (long) usecaseNumber, last.get().getJobParameters().getLong(SegmentJobConfiguration.USECASE))) {
+                return Optional.of(jobExplorer.getJobExecution(last.get().getId()));
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * A run that is still marked as running was cut short by a crash; it has to be marked failed before it can be
+     * restarted.
+     */
+    private void markFailed(JobExecution execution) {
+        for (StepExecution stepExecution : execution.getStepExecutions()) {
+            if (stepExecution.getStatus().isRunning()) {
+                stepExecution.setStatus(BatchStatus.FAILED);
+                stepExecution.setExitStatus(ExitStatus.FAILED);
+                stepExecution.setEndTime(LocalDateTime.now());
+                jobRepository.update(stepExecution);
+            }
+        }
+        execution.setStatus(BatchStatus.FAILED);
+        execution.setExitStatus(ExitStatus.FAILED);
+        execution.setEndTime(LocalDateTime.now());
+        jobRepository.update(execution);
+    }
+}
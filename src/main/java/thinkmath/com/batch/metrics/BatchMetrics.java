@@ -0,0 +1,324 @@
+package thinkmath.com.batch.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import thinkmath.com.batch.dto.CacheStats;
+import thinkmath.com.batch.dto.ClusterPressure;
+import thinkmath.com.batch.pipeline.AdaptiveConcurrencyLimiter;
+import thinkmath.com.batch.pipeline.ClusterThrottle;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Micrometer meters of a batch run: one latency histogram per stage, use case and index with the hits and response
+ * bytes of its requests, requests in flight, executor queue depth, cluster rejections, throttling and cache hits.
+ * Everything is registered on the application's {@link MeterRegistry}, so any Micrometer registry on the classpath
+ * exports it, and {@link #logSummary()} writes the same figures to the log at the end of a run.
+ */
+@Slf4j
+@Component
+public class BatchMetrics {
+    public static final String CLIENTS_PAGE = "clients.page";
+    public static final String CLIENTS_SLICE = "clients.slice";
+    public static final String CLIENTS_AFTER = "clients.after";
+    public static final String CLIENTS_FILTER = "clients.filter";
+    public static final String EVENTS_TERMS = "events.terms";
+    public static final String EVENTS_AGGREGATION = "events.aggregation";
+    public static final String EVENTS_MSEARCH = "events.msearch";
+    public static final String EVENTS_FUSED = "events.fused";
+    /** Use case tag of requests that are not specific to one use case. */
+    public static final String ANY_USECASE = "any";
+
+    public static final String RETRIES = "batch.retries";
+    public static final String HEDGES = "batch.hedges";
+    public static final String HEDGE_WINS = "batch.hedges.won";
+    public static final String DEADLINES_EXCEEDED = "batch.deadlines.exceeded";
+
+    private static final String STAGE_LATENCY = "batch.stage.latency";
+    private static final String STAGE_HITS = "batch.stage.hits";
+    private static final String STAGE_BYTES = "batch.stage.response.size";
+    private static final String STAGE_ERRORS = "batch.stage.errors";
+    private static final String RUN_DURATION = "batch.run.duration";
+    private static final String THROTTLE_WAIT = "batch.throttle.wait";
+    private static final String NODE_RESPONSES = "batch.node.responses";
+    private static final String NODE_FAILURES = "batch.node.failures";
+    private static final String NODE_BYTES_SENT = "batch.node.bytes.sent";
+    private static final String NODE_BYTES_RECEIVED = "batch.node.bytes.received";
+    private static final String CACHE_HITS = "batch.cache.hits";
+    private static final String CACHE_MISSES = "batch.cache.misses";
+
+    private final MeterRegistry registry;
+    private final AtomicInteger inFlightRequests = new AtomicInteger();
+
+    public BatchMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        Gauge.builder("batch.requests.in.flight", inFlightRequests, AtomicInteger::get)
+                .description("Requests sent to Elasticsearch and not answered yet")
+                .register(registry);
+    }
+
+    /**
+     * Starts timing one request of {@code stage}; the returned handle records it when stopped.
+     */
+    public Request start(String stage, String usecase, String index) {
+        inFlightRequests.incrementAndGet();
+        return new Request(Tags.of("stage", stage, "usecase", usecase, "index", index), System.nanoTime());
+    }
+
+    /**
+     * Counts one retry, hedge or other per-stage event named {@code name}.
+     */
+    public void count(String name, String stage) {
+        registry.counter(name, "stage", stage).increment();
+    }
+
+    /**
+     * Counts a response from {@code node} and the bytes exchanged with it on the wire.
+     */
+    public void nodeResponse(String node, long bytesSent, long bytesReceived) {
+        registry.counter(NODE_RESPONSES, "node", node).increment();
+        registry.counter(NODE_BYTES_SENT, "node", node).increment(bytesSent);
+        registry.counter(NODE_BYTES_RECEIVED, "node", node).increment(bytesReceived);
+    }
+
+    /**
+     * Counts a request to {@code node} that got no response.
+     */
+    public void nodeFailure(String node) {
+        registry.counter(NODE_FAILURES, "node", node).increment();
+    }
+
+    /**
+     * Publishes the connections {@code node} has leased or awaited.
+     */
+    public <T> void monitorNode(String node, T pool, ToDoubleFunction<T> connections) {
+        Gauge.builder("batch.node.connections", pool, connections).tag("node", node).register(registry);
+    }
+
+    /**
+     * Counts the request and query cache hits and misses of the event indices over a run.
+     */
+    public void cacheUsage(CacheStats run) {
+        registry.counter(CACHE_HITS, "cache", "request").increment(run.requestCacheHits());
+        registry.counter(CACHE_MISSES, "cache", "request").increment(run.requestCacheMisses());
+        registry.counter(CACHE_HITS, "cache", "query").increment(run.queryCacheHits());
+        registry.counter(CACHE_MISSES, "cache", "query").increment(run.queryCacheMisses());
+    }
+
+    /**
+     * Starts timing a run of the given mode and use cases.
+     */
+    public Timer.Sample startRun() {
+        return Timer.start(registry);
+    }
+
+    /**
+     * @return the run duration in milliseconds
+     */
+    public long stopRun(Timer.Sample sample, String mode, String usecase) {
+        long nanos = sample.stop(Timer.builder(RUN_DURATION)
+                .description("Duration of a run")
+                .tags("mode", mode, "usecase", usecase)
+                .register(registry));
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    /**
+     * Wraps {@code executorService} so that its queue depth, active threads and task durations are published.
+     */
+    public ExecutorService monitor(ExecutorService executorService, String name) {
+        return ExecutorServiceMetrics.monitor(registry, executorService, name);
+    }
+
+    /**
+     * Publishes the limit, pages in flight and rejection count of an adaptive limiter.
+     */
+    public void monitor(AdaptiveConcurrencyLimiter limiter) {
+        Gauge.builder("batch.concurrency.limit", limiter, l -> l.stats().limit()).register(registry);
+        Gauge.builder("batch.concurrency.in.flight", limiter, l -> l.stats().inFlight()).register(registry);
+        FunctionCounter.builder("batch.rejections", limiter, l -> l.stats().rejections())
+                .description("Pages rejected by the cluster with 429 or es_rejected_execution_exception")
+                .register(registry);
+    }
+
+    /**
+     * Publishes the throttle level ({@code 0} normal, {@code 1} paced, {@code 2} paused), the sampled search queue
+     * and heap use, and the time pages waited for it.
+     */
+    public void monitor(ClusterThrottle throttle) {
+        Gauge.builder("batch.throttle.level", throttle, t -> t.level().ordinal()).register(registry);
+        Gauge.builder("batch.cluster.search.queue", throttle, t -> pressure(t, ClusterPressure::searchQueue))
+                .description("Search thread pool queue of the busiest node")
+                .register(registry);
+        Gauge.builder("batch.cluster.heap.used", throttle, t -> pressure(t, ClusterPressure::heapUsedPercent))
+                .baseUnit("percent")
+                .register(registry);
+        FunctionCounter.builder(THROTTLE_WAIT, throttle, ClusterThrottle::waitedMillis)
+                .baseUnit("milliseconds")
+                .description("Time pages waited for the cluster throttle")
+                .register(registry);
+    }
+
+    /**
+     * Logs, per stage, use case and index, the request count and rate, hits and hit rate, bytes received and
+     * latency percentiles, sorted by total time spent.
+     */
+    public void logSummary() {
+        double runSeconds = registry.find(RUN_DURATION).timers().stream()
+                .mapToDouble(timer -> timer.totalTime(TimeUnit.SECONDS))
+                .sum();
+        registry.find(STAGE_LATENCY).timers().stream()
+                .sorted(Comparator.comparingDouble((Timer timer) -> timer.totalTime(TimeUnit.SECONDS)).reversed())
+                .forEach(timer -> {
+                    Meter.Id id = timer.getId();
+                    HistogramSnapshot snapshot = timer.takeSnapshot();
+                    double hits = registry.find(STAGE_HITS).tags(id.getTags()).counters().stream()
+                            .mapToDouble(Counter::count)
+                            .sum();
+                    double bytes = registry.find(STAGE_BYTES).tags(id.getTags()).summaries().stream()
+                            .mapToDouble(DistributionSummary::totalAmount)
+                            .sum();
+                    double errors = registry.find(STAGE_ERRORS).tags(id.getTags()).counters().stream()
+                            .mapToDouble(Counter::count)
+                            .sum();
+                    log.info(
+                            "Stage {} use case {} on {}: {} requests ({}/s), {} failed, {} hits ({}/s), "
+                                    + "{} MB received, latency avg {}ms {}, max {}ms",
+                            id.getTag("stage"),
+                            id.getTag("usecase"),
+                            id.getTag("index"),
+                            snapshot.count(),
+                            rate(snapshot.count(), runSeconds),
+                            (long) errors,
+                            (long) hits,
+                            rate(hits, runSeconds),
+                            Math.round(bytes / (1 << 20)),
+                            Math.round(snapshot.mean(TimeUnit.MILLISECONDS)),
+                            percentiles(snapshot),
+                            Math.round(snapshot.max(TimeUnit.MILLISECONDS)));
+                });
+        registry.find("batch.rejections").functionCounters().forEach(counter ->
+                log.info("Rejections: {}", (long) counter.count()));
+        registry.find(THROTTLE_WAIT).functionCounters().forEach(counter ->
+                log.info("Pages waited {}ms for the cluster throttle", (long) counter.count()));
+        double responses = registry.find(NODE_RESPONSES).counters().stream().mapToDouble(Counter::count).sum();
+        registry.find(NODE_RESPONSES).counters().forEach(counter -> {
+            String node = counter.getId().getTag("node");
+            log.info(
+                    "Node {}: {} responses ({}%), {} failures, {} MB sent, {} MB received",
+                    node,
+                    (long) counter.count(),
+                    Math.round(100 * counter.count() / responses),
+                    (long) registry.counter(NODE_FAILURES, "node", node).count(),
+                    Math.round(registry.counter(NODE_BYTES_SENT, "node", node).count() / (1 << 20)),
+                    Math.round(registry.counter(NODE_BYTES_RECEIVED, "node", node).count() / (1 << 20)));
+        });
+        registry.find(CACHE_HITS).counters().forEach(counter -> {
+            String cache = counter.getId().getTag("cache");
+            double misses = registry.counter(CACHE_MISSES, "cache", cache).count();
+            log.info(
+                    "Event {} cache: {} hits, {} misses, {}% hit rate",
+                    cache,
+                    (long) counter.count(),
+                    (long) misses,
+                    counter.count() + misses > 0 ? Math.round(100 * counter.count() / (counter.count() + misses)) : 0);
+        });
+        for (String name : List.of(RETRIES, DEADLINES_EXCEEDED, HEDGES, HEDGE_WINS)) {
+            registry.find(name).counters().forEach(counter ->
+                    log.info("{} for stage {}: {}", name, counter.getId().getTag("stage"), (long) counter.count()));
+        }
+    }
+
+    private static double pressure(ClusterThrottle throttle, ToDoubleFunction<ClusterPressure> value) {
+        ClusterPressure pressure = throttle.pressure();
+        return pressure == null ? Double.NaN : value.applyAsDouble(pressure);
+    }
+
+    private static long rate(double count, double seconds) {
+        return seconds > 0 ? Math.round(count / seconds) : 0;
+    }
+
+    private static String percentiles(HistogramSnapshot snapshot) {
+        StringBuilder percentiles = new StringBuilder();
+        for (ValueAtPercentile value : snapshot.percentileValues()) {
+            if (!percentiles.isEmpty()) {
+                percentiles.append(' ');
+            }
+            percentiles.append('p').append(Math.round(value.percentile() * 100)).append(' ')
+                    .append(Math.round(value.value(TimeUnit.MILLISECONDS))).append("ms");
+        }
+        return percentiles.toString();
+    }
+
+    /**
+     * One timed request. Either {@link #stop} records its latency and hits or {@link #fail} counts it as failed,
+     * exactly once.
+     */
+    public final class Request {
+        private final Tags tags;
+        private final long startNanos;
+        private long bytes;
+
+        private Request(Tags tags, long startNanos) {
+            this.tags = tags;
+            this.startNanos = startNanos;
+        }
+
+        public void addBytes(long count) {
+            bytes += count;
+        }
+
+        public String stage() {
+            return tags.stream().filter(tag -> tag.getKey().equals("stage")).findFirst().orElseThrow().getValue();
+        }
+
+        public long elapsedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        }
+
+        public void fail() {
+            inFlightRequests.decrementAndGet();
+            Counter.builder(STAGE_ERRORS).tags(tags).register(registry).increment();
+        }
+
+        /**
+         * @return the request latency in milliseconds
+         */
+        public long stop(int hits) {
+            inFlightRequests.decrementAndGet();
+            long nanos = System.nanoTime() - startNanos;
+            Timer.builder(STAGE_LATENCY)
+                    .description("Latency of one request of a stage")
+                    .tags(tags)
+                    .publishPercentiles(0.5, 0.95, 0.99)
+                    .publishPercentileHistogram()
+                    .register(registry)
+                    .record(nanos, TimeUnit.NANOSECONDS);
+            Counter.builder(STAGE_HITS).tags(tags).register(registry).increment(hits);
+            if (bytes > 0) {
+                DistributionSummary.builder(STAGE_BYTES)
+                        .baseUnit("bytes")
+                        .tags(tags)
+                        .register(registry)
+                        .record(bytes);
+            }
+            return TimeUnit.NANOSECONDS.toMillis(nanos);
+        }
+    }
+}
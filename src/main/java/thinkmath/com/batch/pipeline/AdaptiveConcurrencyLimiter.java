@@ -0,0 +1,181 @@
+package thinkmath.com.batch.pipeline;
+
+import lombok.extern.slf4j.Slf4j;
+import thinkmath.com.batch.util.ElasticsearchErrors;
+
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * AIMD concurrency limit for page execution. Every page that finishes under {@code latencyThreshold} while the limit
+ * is in use raises the limit by {@code 1/limit} (about one per round of pages); a slow page or a rejection
+ * ({@code 429}/{@code es_rejected_execution_exception}) multiplies it by {@code backoffRatio}, at most once per
+ * observed page latency so a burst of rejections counts as one signal. Rejected pages are retried once the limit has
+ * been lowered and after a jittered exponential backoff, so requests sent while a page runs ({@link #isLimiting})
+ * should leave rejections to the limiter.
+ */
+@Slf4j
+public class AdaptiveConcurrencyLimiter {
+    private static final ThreadLocal<Boolean> LIMITING = new ThreadLocal<>();
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long latencyThresholdNanos;
+    private final double backoffRatio;
+    private final int maxRejectionRetries;
+    private final Duration initialBackoff;
+    private final Duration maxBackoff;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition permitReleased = lock.newCondition();
+    private double limit;
+    private int inFlight;
+    private long lastDecreaseNanos;
+    private double averageLatencyNanos;
+    private long lastLatencyNanos;
+    private long successes;
+    private long rejections;
+
+    public AdaptiveConcurrencyLimiter(
+            int initialLimit,
+            int minLimit,
+            int maxLimit,
+            Duration latencyThreshold,
+            double backoffRatio,
+            int maxRejectionRetries,
+            Duration initialBackoff,
+            Duration maxBackoff) {
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.latencyThresholdNanos = latencyThreshold.toNanos();
+        this.backoffRatio = backoffRatio;
+        this.maxRejectionRetries = maxRejectionRetries;
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+    }
+
+    public record Stats(
+            int limit, int inFlight, long lastLatencyMillis, long averageLatencyMillis, long successes, long rejections) {}
+
+    /**
+     * @return whether the current thread is running a page of a limiter
+     */
+    public static boolean isLimiting() {
+        return LIMITING.get() != null;
+    }
+
+    /**
+     * Runs {@code page} once a permit is available, feeding its latency or rejection back into the limit.
+     */
+    public <T> T call(Callable<T> page) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            acquire();
+            long start = System.nanoTime();
+            Boolean outer = LIMITING.get();
+            LIMITING.set(Boolean.TRUE);
+            try {
+                T result = page.call();
+                onSuccess(System.nanoTime() - start);
+                return result;
+            } catch (Exception e) {
+                if (!ElasticsearchErrors.isRejection(e)) {
+                    throw e;
+                }
+                onRejected();
+                if (attempt >= maxRejectionRetries) {
+                    throw e;
+                }
+            } finally {
+                release();
+                if (outer == null) {
+                    LIMITING.remove();
+                }
+            }
+            long backoff = ElasticsearchErrors.backoffNanos(initialBackoff, maxBackoff, attempt + 1);
+            log.warn(
+                    "Page rejected by the cluster, retrying in {}ms with concurrency limit {}",
+                    TimeUnit.NANOSECONDS.toMillis(backoff),
+                    stats().limit());
+            TimeUnit.NANOSECONDS.sleep(backoff);
+        }
+    }
+
+    public Stats stats() {
+        lock.lock();
+        try {
+            return new Stats(
+                    (int) limit,
+                    inFlight,
+                    lastLatencyNanos / 1_000_000,
+                    (long) averageLatencyNanos / 1_000_000,
+                    successes,
+                    rejections);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void acquire() throws InterruptedException {
+        lock.lock();
+        try {
+            while (inFlight >= (int) limit) {
+                permitReleased.await();
+            }
+            inFlight++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release() {
+        lock.lock();
+        try {
+            inFlight--;
+            permitReleased.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onSuccess(long latencyNanos) {
+        lock.lock();
+        try {
+            successes++;
+            lastLatencyNanos = latencyNanos;
+            averageLatencyNanos =
+                    averageLatencyNanos == 0 ? latencyNanos : 0.8 * averageLatencyNanos + 0.2 * latencyNanos;
+            if (latencyNanos > latencyThresholdNanos) {
+                decrease();
+            } else if (inFlight >= (int) limit) {
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onRejected() {
+        lock.lock();
+        try {
+            rejections++;
+            decrease();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void decrease() {
+        long now = System.nanoTime();
+        if (now - lastDecreaseNanos < averageLatencyNanos) {
+            return;
+        }
+        lastDecreaseNanos = now;
+        double previous = limit;
+        limit = Math.max(minLimit, limit * backoffRatio);
+        log.debug("Concurrency limit lowered from {} to {}", (int) previous, (int) limit);
+    }
+}
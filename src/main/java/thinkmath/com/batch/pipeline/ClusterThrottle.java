@@ -0,0 +1,145 @@
+package thinkmath.com.batch.pipeline;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import thinkmath.com.batch.config.BatchProperties;
+import thinkmath.com.batch.dto.ClusterPressure;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Holds pages back while the cluster is under pressure, from the latest {@link ClusterPressure} sample. A red cluster,
+ * a search queue or heap use past the pause thresholds stops page dispatch; a yellow cluster, a queue or heap past the
+ * slow-down thresholds, or new search rejections let one page through per {@code pageInterval}. Samples older than
+ * {@code staleAfter} are ignored.
+ */
+@Slf4j
+@Component
+public class ClusterThrottle {
+    public enum Level {
+        NORMAL,
+        SLOW,
+        PAUSED
+    }
+
+    private final BatchProperties.Throttle settings;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private ClusterPressure pressure;
+    private Level level = Level.NORMAL;
+    private long sampledAtNanos;
+    private long nextPageNanos;
+    private long waitedNanos;
+
+    public ClusterThrottle(BatchProperties properties) {
+        this.settings = properties.throttle();
+    }
+
+    public void update(ClusterPressure pressure) {
+        Level next = classify(pressure);
+        lock.lock();
+        try {
+            if (next != level) {
+                log.info("Cluster pressure {}: throttle {} -> {}", pressure, level, next);
+            } else {
+                log.debug("Cluster pressure {}: throttle {}", pressure, next);
+            }
+            this.pressure = pressure;
+            this.level = next;
+            this.sampledAtNanos = System.nanoTime();
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until a page may be dispatched.
+     *
+     * @throws IOException if the cluster stayed under pause pressure for {@code maxPause}
+     */
+    public void acquire() throws IOException, InterruptedException {
+        if (!settings.enabled()) {
+            return;
+        }
+        long start = System.nanoTime();
+        long pauseDeadline = start + settings.maxPause().toNanos();
+        lock.lock();
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                Level current = level(now);
+                if (current == Level.NORMAL) {
+                    return;
+                }
+                if (current == Level.SLOW) {
+                    if (now >= nextPageNanos) {
+                        nextPageNanos = now + settings.pageInterval().toNanos();
+                        return;
+                    }
+                    changed.awaitNanos(nextPageNanos - now);
+                    continue;
+                }
+                if (now >= pauseDeadline) {
+                    throw new IOException("Cluster stayed under pressure for " + settings.maxPause() + ": " + pressure);
+                }
+                changed.awaitNanos(Math.min(pauseDeadline, sampledAtNanos + settings.staleAfter().toNanos()) - now);
+            }
+        } finally {
+            waitedNanos += System.nanoTime() - start;
+            lock.unlock();
+        }
+    }
+
+    public Level level() {
+        lock.lock();
+        try {
+            return level(System.nanoTime());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the latest sample, {@code null} before the first one
+     */
+    public ClusterPressure pressure() {
+        lock.lock();
+        try {
+            return pressure;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long waitedMillis() {
+        lock.lock();
+        try {
+            return TimeUnit.NANOSECONDS.toMillis(waitedNanos);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Level level(long now) {
+        return pressure == null || now - sampledAtNanos > settings.staleAfter().toNanos() ? Level.NORMAL : level;
+    }
+
+    Level classify(ClusterPressure pressure) {
+        if ("red".equals(pressure.status())
+                || pressure.searchQueue() >= settings.pauseSearchQueue()
+                || pressure.heapUsedPercent() >= settings.pauseHeapPercent()) {
+            return Level.PAUSED;
+        }
+        if (("yellow".equals(pressure.status()) && settings.slowDownOnYellow())
+                || pressure.searchQueue() >= settings.slowDownSearchQueue()
+                || pressure.heapUsedPercent() >= settings.slowDownHeapPercent()
+                || pressure.searchRejections() > 0) {
+            return Level.SLOW;
+        }
+        return Level.NORMAL;
+    }
+}
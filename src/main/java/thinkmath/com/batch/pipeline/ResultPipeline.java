@@ -0,0 +1,204 @@
+package thinkmath.com.batch.pipeline;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs page tasks on an executor and pushes their results to a {@link SegmentSink} as each page completes.
+ * At most {@code maxInFlightPages} pages run at the same time and at most {@code maxBufferedIds} ids wait for the
+ * sink, so memory stays flat whatever the segment size: producers block instead of piling results up.
+ *
+ * <p>Close the pipeline in a {@code finally}: a run that fails before {@link #await()} would otherwise leave the sink
+ * thread waiting for pages.
+ */
+@Slf4j
+public class ResultPipeline implements AutoCloseable {
+    // Matched by identity: a fresh instance, so that a page which matched no client never ends the drain
+    private static final List<String> END = Collections.unmodifiableList(new ArrayList<>());
+
+    private final ExecutorService executorService;
+    private final SegmentSink sink;
+    private final int maxInFlightPages;
+    private final int maxBufferedIds;
+    private final Semaphore inFlightPages;
+    private final Semaphore bufferedIds;
+    private final BlockingQueue<List<String>> completedPages = new LinkedBlockingQueue<>();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final Thread drainer;
+    private boolean drained;
+
+    public ResultPipeline(ExecutorService executorService, SegmentSink sink, int maxInFlightPages, int maxBufferedIds) {
+        this.executorService = executorService;
+        this.sink = sink;
+        this.maxInFlightPages = maxInFlightPages;
+        this.maxBufferedIds = maxBufferedIds;
+        this.inFlightPages = new Semaphore(maxInFlightPages);
+        this.bufferedIds = new Semaphore(maxBufferedIds);
+        this.drainer = Thread.ofPlatform().name("segment-sink").daemon().start(this::drain);
+    }
+
+    /**
+     * Schedules a page, blocking while {@code maxInFlightPages} pages are already running.
+     *
+     * @return {@code false} if the pipeline has already failed and the page was dropped; {@link #await()} reports
+     *     the cause
+     */
+    public boolean submit(Callable<List<String>> page) throws InterruptedException {
+        if (isFailed()) {
+            return false;
+        }
+        inFlightPages.acquire();
+        try {
+            executorService.execute(() -> {
+                try {
+                    emit(page.call());
+                } catch (Throwable e) {
+                    fail(e);
+                } finally {
+                    inFlightPages.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlightPages.release();
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * Hands ids produced by a running task to the sink, blocking while the buffer is full.
+     *
+     * @throws CancellationException if the pipeline has failed, so that a task producing several pages stops; its
+     *     cause is the recorded failure, which {@link #await()} reports
+     */
+    public void emit(List<String> clientIds) throws InterruptedException {
+        ensureRunning();
+        if (clientIds.isEmpty()) {
+            return;
+        }
+        int permits = permits(clientIds);
+        bufferedIds.acquire(permits);
+        if (isFailed()) {
+            bufferedIds.release(permits);
+            ensureRunning();
+        }
+        completedPages.put(clientIds);
+    }
+
+    /**
+     * @throws CancellationException if the pipeline has failed, with the recorded failure as its cause
+     */
+    public void ensureRunning() {
+        Throwable error = failure.get();
+        if (error != null) {
+            CancellationException cancelled = new CancellationException("Segment pipeline has failed");
+            cancelled.initCause(error);
+            throw cancelled;
+        }
+    }
+
+    /**
+     * Waits for every submitted page and for the sink to drain, then completes the sink.
+     *
+     * @throws IOException if a page or the sink failed
+     */
+    public void await() throws IOException, InterruptedException {
+        awaitPages();
+        stopDrainer();
+
+        Throwable error = failure.get();
+        if (error != null) {
+            throw asIOException(error);
+        }
+        sink.complete();
+    }
+
+    /**
+     * Stops the pipeline without completing the sink if {@link #await()} has not run: pages still running are dropped
+     * as they finish, and the sink thread exits once the pages already buffered are released.
+     */
+    @Override
+    public void close() {
+        if (drained) {
+            return;
+        }
+        failure.compareAndSet(null, new IOException("Segment pipeline closed before completion"));
+        try {
+            stopDrainer();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void stopDrainer() throws InterruptedException {
+        if (!drained) {
+            drained = true;
+            completedPages.put(END);
+        }
+        drainer.join();
+    }
+
+    /**
+     * Waits until every submitted page has finished running. Their results may still be buffered for the sink.
+     */
+    public void awaitPages() throws InterruptedException {
+        inFlightPages.acquire(maxInFlightPages);
+        inFlightPages.release(maxInFlightPages);
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                List<String> clientIds = completedPages.take();
+                if (clientIds == END) {
+                    return;
+                }
+                try {
+                    if (failure.get() == null) {
+                        sink.accept(clientIds);
+                    }
+                } catch (Throwable e) {
+                    fail(e);
+                } finally {
+                    bufferedIds.release(permits(clientIds));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(e);
+        }
+    }
+
+    private int permits(List<String> clientIds) {
+        return Math.min(clientIds.size(), maxBufferedIds);
+    }
+
+    private void fail(Throwable e) {
+        if (failure.compareAndSet(null, e)) {
+            log.error("Segment pipeline failed", e);
+        }
+    }
+
+    public boolean isFailed() {
+        return failure.get() != null;
+    }
+
+    private static IOException asIOException(Throwable error) {
+        if (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error instanceof IOException ioException ? ioException : new IOException(error);
+    }
+}
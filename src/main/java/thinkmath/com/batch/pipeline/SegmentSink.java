@@ -0,0 +1,18 @@
+package thinkmath.com.batch.pipeline;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Receives the matching client ids of a use case page by page, in completion order. Calls are made from a single
+ * thread, so implementations don't need to be thread-safe.
+ */
+@FunctionalInterface
+public interface SegmentSink {
+    void accept(List<String> clientIds) throws IOException;
+
+    /**
+     * Called once after the last page has been accepted.
+     */
+    default void complete() throws IOException {}
+}
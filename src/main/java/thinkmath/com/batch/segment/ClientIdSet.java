@@ -0,0 +1,315 @@
+package thinkmath.com.batch.segment;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Off-heap set of client ids used to collect segment membership.
+ *
+ * <p>Ids are stored once as length-prefixed UTF-8 bytes in 16 MiB direct-buffer chunks, and an open-addressing,
+ * linear-probing table of {@code long} slots points into them. A slot keeps 24 bits of the id's hash next to its
+ * 40-bit address, so most probes are resolved without touching the id bytes. The footprint is the UTF-8 bytes plus
+ * two bytes per id, plus 12 to 23 bytes per id for the table depending on its fill, none of it on the Java heap.
+ *
+ * <p>Set operations walk the id bytes directly and never build {@code String}s. Not thread-safe; direct memory is
+ * released when the set is garbage collected, {@link #close()} only drops the references early and the set must not
+ * be used afterwards.
+ */
+public final class ClientIdSet implements AutoCloseable {
+    public static final int MAX_ID_BYTES = 0xFFFF;
+
+    private static final int CHUNK_SHIFT = 24;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int SLOT_SEGMENT_SHIFT = 27;
+    private static final int SLOT_SEGMENT_MASK = (1 << SLOT_SEGMENT_SHIFT) - 1;
+    private static final int MAX_CAPACITY = 1 << 30;
+    private static final long ADDRESS_MASK = (1L << 40) - 1;
+    private static final int MIN_CAPACITY = 1 << 10;
+    private static final double LOAD_FACTOR = 0.7;
+
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private ByteBuffer[] slots;
+    private int capacity;
+    private int mask;
+    private int resizeThreshold;
+    private int size;
+
+    public ClientIdSet() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize number of ids the set should hold without growing its table
+     */
+    public ClientIdSet(int expectedSize) {
+        allocateSlots(tableSizeFor(expectedSize));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Direct memory held by the id bytes and the table.
+     */
+    public long offHeapBytes() {
+        return (long) chunks.size() * CHUNK_SIZE + (long) capacity * Long.BYTES;
+    }
+
+    public boolean add(String clientId) {
+        return add(encode(clientId));
+    }
+
+    public boolean add(byte[] clientId) {
+        ByteBuffer key = ByteBuffer.wrap(clientId);
+        return add(key, 0, clientId.length, hash(key, 0, clientId.length));
+    }
+
+    public void addAll(Collection<String> clientIds) {
+        for (String clientId : clientIds) {
+            add(clientId);
+        }
+    }
+
+    /**
+     * Adds every id of {@code other} to this set.
+     */
+    public void addAll(ClientIdSet other) {
+        other.forEachEntry((chunk, offset, length) -> add(chunk, offset, length, hash(chunk, offset, length)));
+    }
+
+    public boolean contains(String clientId) {
+        byte[] bytes = encode(clientId);
+        ByteBuffer key = ByteBuffer.wrap(bytes);
+        return contains(key, 0, bytes.length, hash(key, 0, bytes.length));
+    }
+
+    public ClientIdSet union(ClientIdSet other) {
+        ClientIdSet result = new ClientIdSet(size + other.size);
+        result.addAll(this);
+        result.addAll(other);
+        return result;
+    }
+
+    public ClientIdSet intersection(ClientIdSet other) {
+        ClientIdSet smaller = size <= other.size ? this : other;
+        ClientIdSet larger = smaller == this ? other : this;
+        ClientIdSet result = new ClientIdSet(smaller.size);
+        smaller.forEachEntry((chunk, offset, length) -> {
+            long hash = hash(chunk, offset, length);
+            if (larger.contains(chunk, offset, length, hash)) {
+                result.add(chunk, offset, length, hash);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return the ids of this set that are not in {@code other}
+     */
+    public ClientIdSet difference(ClientIdSet other) {
+        ClientIdSet result = new ClientIdSet(size);
+        forEachEntry((chunk, offset, length) -> {
+            long hash = hash(chunk, offset, length);
+            if (!other.contains(chunk, offset, length, hash)) {
+                result.add(chunk, offset, length, hash);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Visits every id in insertion order, decoding it to a {@code String}.
+     */
+    public void forEach(Consumer<String> action) {
+        forEachEntry((chunk, offset, length) -> {
+            byte[] bytes = new byte[length];
+            chunk.get(offset, bytes);
+            action.accept(new String(bytes, StandardCharsets.UTF_8));
+        });
+    }
+
+    /**
+     * Visits the raw UTF-8 bytes of every id in insertion order. The buffer is shared; only read
+     * {@code [offset, offset + length)} and don't keep a reference to it.
+     */
+    public void forEachEntry(EntryVisitor visitor) {
+        for (ByteBuffer chunk : chunks) {
+            int position = 0;
+            int limit = chunk.position();
+            while (position < limit) {
+                int length = Short.toUnsignedInt(chunk.getShort(position));
+                visitor.visit(chunk, position + Short.BYTES, length);
+                position += Short.BYTES + length;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        chunks.clear();
+        slots = new ByteBuffer[0];
+        capacity = 0;
+        size = 0;
+    }
+
+    @FunctionalInterface
+    public interface EntryVisitor {
+        void visit(ByteBuffer chunk, int offset, int length);
+    }
+
+    private boolean add(ByteBuffer key, int offset, int length, long hash) {
+        if (length > MAX_ID_BYTES) {
+            throw new IllegalArgumentException("Client id is longer than " + MAX_ID_BYTES + " bytes");
+        }
+        long fragment = fragment(hash);
+        int index = (int) hash & mask;
+        while (true) {
+            long slot = slot(index);
+            if (slot == 0) {
+                break;
+            }
+            if ((slot & ~ADDRESS_MASK) == fragment && equalsAt(slot, key, offset, length)) {
+                return false;
+            }
+            index = (index + 1) & mask;
+        }
+
+        long address = append(key, offset, length);
+        setSlot(index, fragment | (address + 1));
+        if (++size > resizeThreshold) {
+            grow();
+        }
+        return true;
+    }
+
+    private boolean contains(ByteBuffer key, int offset, int length, long hash) {
+        long fragment = fragment(hash);
+        int index = (int) hash & mask;
+        while (true) {
+            long slot = slot(index);
+            if (slot == 0) {
+                return false;
+            }
+            if ((slot & ~ADDRESS_MASK) == fragment && equalsAt(slot, key, offset, length)) {
+                return true;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    private boolean equalsAt(long slot, ByteBuffer key, int offset, int length) {
+        long address = (slot & ADDRESS_MASK) - 1;
+        ByteBuffer chunk = chunks.get((int) (address >>> CHUNK_SHIFT));
+        int position = (int) (address & (CHUNK_SIZE - 1));
+        if (Short.toUnsignedInt(chunk.getShort(position)) != length) {
+            return false;
+        }
+        position += Short.BYTES;
+        for (int i = 0; i < length; i++) {
+            if (chunk.get(position + i) != key.get(offset + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long append(ByteBuffer key, int offset, int length) {
+        int entrySize = Short.BYTES + length;
+        ByteBuffer chunk = chunks.isEmpty() ? null : chunks.getLast();
+        if (chunk == null || chunk.remaining() < entrySize) {
+            chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+            chunks.add(chunk);
+        }
+        long address = ((long) (chunks.size() - 1) << CHUNK_SHIFT) | chunk.position();
+        chunk.putShort((short) length);
+        chunk.put(chunk.position(), key, offset, length);
+        chunk.position(chunk.position() + length);
+        return address;
+    }
+
+    private void grow() {
+        if (capacity == MAX_CAPACITY) {
+            throw new IllegalStateException("Client id set is full: " + size + " ids");
+        }
+        allocateSlots(capacity << 1);
+        for (int chunkIndex = 0; chunkIndex < chunks.size(); chunkIndex++) {
+            ByteBuffer chunk = chunks.get(chunkIndex);
+            int position = 0;
+            int limit = chunk.position();
+            while (position < limit) {
+                int length = Short.toUnsignedInt(chunk.getShort(position));
+                long hash = hash(chunk, position + Short.BYTES, length);
+                int index = (int) hash & mask;
+                while (slot(index) != 0) {
+                    index = (index + 1) & mask;
+                }
+                long address = ((long) chunkIndex << CHUNK_SHIFT) | position;
+                setSlot(index, fragment(hash) | (address + 1));
+                position += Short.BYTES + length;
+            }
+        }
+    }
+
+    private void allocateSlots(int newCapacity) {
+        int segmentSize = Math.min(newCapacity, 1 << SLOT_SEGMENT_SHIFT);
+        ByteBuffer[] newSlots = new ByteBuffer[newCapacity / segmentSize];
+        for (int i = 0; i < newSlots.length; i++) {
+            newSlots[i] = ByteBuffer.allocateDirect(segmentSize * Long.BYTES);
+        }
+        slots = newSlots;
+        capacity = newCapacity;
+        mask = newCapacity - 1;
+        resizeThreshold = (int) (newCapacity * LOAD_FACTOR);
+    }
+
+    private long slot(int index) {
+        return slots[index >>> SLOT_SEGMENT_SHIFT].getLong((index & SLOT_SEGMENT_MASK) << 3);
+    }
+
+    private void setSlot(int index, long value) {
+        slots[index >>> SLOT_SEGMENT_SHIFT].putLong((index & SLOT_SEGMENT_MASK) << 3, value);
+    }
+
+    private static int tableSizeFor(int expectedSize) {
+        long needed = (long) Math.ceil(Math.max(expectedSize, 1) / LOAD_FACTOR) + 1;
+        if (needed > MAX_CAPACITY) {
+            return MAX_CAPACITY;
+        }
+        return Math.max(MIN_CAPACITY, Integer.highestOneBit((int) needed - 1) << 1);
+    }
+
+    private static long fragment(long hash) {
+        return (hash >>> 40) << 40;
+    }
+
+    private static byte[] encode(String clientId) {
+        return clientId.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * FNV-1a over the id bytes followed by the MurmurHash3 finalizer, so both the low bits (slot index) and the
+     * high bits (fragment) are well mixed.
+     */
+    private static long hash(ByteBuffer buffer, int offset, int length) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = offset; i < offset + length; i++) {
+            h ^= buffer.get(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,281 @@
+package thinkmath.com.batch.segment;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Memory-mapped reader of a segment written by {@link SortedSegmentWriter}.
+ *
+ * <p>The file starts with a 32-byte header: {@code SID1} magic, ids per block, id count, block count and the offset
+ * of the block index, followed by the blocks and the index. Ids are distinct and sorted by their unsigned UTF-8 bytes.
+ * Each block is deflated and holds its ids front-coded: the length of the prefix shared with the previous id and the
+ * length of the rest as varints, then the rest. The index gives every block's offset, compressed and raw length, id
+ * count and first id, so a lookup binary searches the first ids and inflates a single block.
+ *
+ * <p>Not thread-safe: lookups reuse the last inflated block. Cursors have their own buffers and may run side by side.
+ */
+public final class SegmentFile implements AutoCloseable {
+    public static final String EXTENSION = ".sid";
+
+    static final int MAGIC = 0x53494431;
+    static final int HEADER_SIZE = 32;
+
+    private final ByteBuffer mapped;
+    private final int blockSize;
+    private final long size;
+    private final long[] offsets;
+    private final int[] compressedLengths;
+    private final int[] rawLengths;
+    private final int[] counts;
+    private final byte[][] firstIds;
+    private final Cursor lookup;
+
+    private SegmentFile(Path file, ByteBuffer mapped) throws IOException {
+        this.mapped = mapped;
+        if (mapped.capacity() < HEADER_SIZE || mapped.getInt(0) != MAGIC) {
+            throw new IOException("Not a segment file: " + file);
+        }
+        blockSize = mapped.getInt(4);
+        size = mapped.getLong(8);
+        int blocks = mapped.getInt(16);
+        long indexOffset = mapped.getLong(20);
+
+        offsets = new long[blocks];
+        compressedLengths = new int[blocks];
+        rawLengths = new int[blocks];
+        counts = new int[blocks];
+        firstIds = new byte[blocks][];
+        ByteBuffer index = mapped.slice((int) indexOffset, mapped.capacity() - (int) indexOffset);
+        for (int block = 0; block < blocks; block++) {
+            offsets[block] = index.getLong();
+            compressedLengths[block] = index.getInt();
+            rawLengths[block] = index.getInt();
+            counts[block] = index.getInt();
+            firstIds[block] = new byte[Short.toUnsignedInt(index.getShort())];
+            index.get(firstIds[block]);
+        }
+        lookup = new Cursor();
+    }
+
+    public static SegmentFile open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Segment file is larger than 2 GiB: " + file);
+            }
+            return new SegmentFile(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public int blockSize() {
+        return blockSize;
+    }
+
+    public boolean contains(String clientId) throws IOException {
+        byte[] key = clientId.getBytes(StandardCharsets.UTF_8);
+        int block = findBlock(key);
+        if (block < 0) {
+            return false;
+        }
+        lookup.start(block);
+        while (lookup.nextInBlock()) {
+            int comparison = Arrays.compareUnsigned(lookup.id, 0, lookup.length, key, 0, key.length);
+            if (comparison >= 0) {
+                return comparison == 0;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return a cursor over every id in sorted order, positioned before the first one
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    public void forEach(Consumer<String> action) throws IOException {
+        Cursor cursor = cursor();
+        while (cursor.next()) {
+            action.accept(cursor.id());
+        }
+    }
+
+    /**
+     * Visits the ids of both this file and {@code other}, in sorted order.
+     *
+     * @return the number of ids visited
+     */
+    public long intersection(SegmentFile other, Consumer<String> action) throws IOException {
+        Cursor left = cursor();
+        Cursor right = other.cursor();
+        boolean hasLeft = left.next();
+        boolean hasRight = right.next();
+        long visited = 0;
+        while (hasLeft && hasRight) {
+            int comparison = left.compareTo(right);
+            if (comparison == 0) {
+                action.accept(left.id());
+                visited++;
+                hasLeft = left.next();
+                hasRight = right.next();
+            } else if (comparison < 0) {
+                hasLeft = left.next();
+            } else {
+                hasRight = right.next();
+            }
+        }
+        return visited;
+    }
+
+    /**
+     * Visits the ids of this file that are not in {@code other}, in sorted order.
+     *
+     * @return the number of ids visited
+     */
+    public long difference(SegmentFile other, Consumer<String> action) throws IOException {
+        Cursor left = cursor();
+        Cursor right = other.cursor();
+        boolean hasLeft = left.next();
+        boolean hasRight = right.next();
+        long visited = 0;
+        while (hasLeft) {
+            int comparison = hasRight ? left.compareTo(right) : -1;
+            if (comparison < 0) {
+                action.accept(left.id());
+                visited++;
+                hasLeft = left.next();
+            } else {
+                if (comparison == 0) {
+                    hasLeft = left.next();
+                }
+                hasRight = right.next();
+            }
+        }
+        return visited;
+    }
+
+    @Override
+    public void close() {
+        lookup.inflater.end();
+    }
+
+    /**
+     * Index of the last block whose first id is at most {@code key}, or {@code -1} if {@code key} sorts first.
+     */
+    private int findBlock(byte[] key) {
+        int low = 0;
+        int high = firstIds.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (Arrays.compareUnsigned(firstIds[middle], key) <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low - 1;
+    }
+
+    /**
+     * Walks the ids in sorted order, inflating one block at a time into its own buffer.
+     */
+    public final class Cursor {
+        private final Inflater inflater = new Inflater();
+        private final byte[] id = new byte[ClientIdSet.MAX_ID_BYTES];
+        private byte[] raw = new byte[0];
+        private int block = -1;
+        private int position;
+        private int remaining;
+        private int length;
+
+        private Cursor() {}
+
+        public boolean next() throws IOException {
+            while (remaining == 0) {
+                if (block + 1 >= offsets.length) {
+                    return false;
+                }
+                start(block + 1);
+            }
+            return nextInBlock();
+        }
+
+        public String id() {
+            return new String(id, 0, length, StandardCharsets.UTF_8);
+        }
+
+        public int compareTo(Cursor other) {
+            return Arrays.compareUnsigned(id, 0, length, other.id, 0, other.length);
+        }
+
+        private void start(int block) throws IOException {
+            if (block != this.block) {
+                inflate(block);
+                this.block = block;
+            }
+            position = 0;
+            remaining = counts[block];
+            length = 0;
+        }
+
+        private boolean nextInBlock() {
+            if (remaining == 0) {
+                return false;
+            }
+            int shared = readVarint();
+            int suffix = readVarint();
+            System.arraycopy(raw, position, id, shared, suffix);
+            position += suffix;
+            length = shared + suffix;
+            remaining--;
+            return true;
+        }
+
+        private void inflate(int block) throws IOException {
+            int rawLength = rawLengths[block];
+            if (raw.length < rawLength) {
+                raw = new byte[rawLength];
+            }
+            inflater.reset();
+            inflater.setInput(mapped.slice((int) offsets[block], compressedLengths[block]));
+            try {
+                int inflated = 0;
+                while (inflated < rawLength && !inflater.finished()) {
+                    int count = inflater.inflate(raw, inflated, rawLength - inflated);
+                    if (count == 0 && inflater.needsInput()) {
+                        break;
+                    }
+                    inflated += count;
+                }
+                if (inflated != rawLength) {
+                    throw new IOException("Truncated segment block " + block);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt segment block " + block, e);
+            }
+        }
+
+        private int readVarint() {
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = raw[position++];
+                value |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package thinkmath.com.batch.segment;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Optional;
+
+/**
+ * Keeps one segment per use case on disk next to its watermark, the time the segment was known to be complete.
+ *
+ * <p>A segment file is a header ({@code SEG1} magic, watermark in epoch milliseconds, id count) followed by every id
+ * as a two-byte length and its UTF-8 bytes, the same encoding {@link ClientIdSet} keeps off-heap. Files are written
+ * to a temporary file and moved into place, so a failed run leaves the previous segment untouched.
+ */
+public final class SegmentStore {
+    private static final int MAGIC = 0x53454731;
+
+    private final Path directory;
+
+    public record StoredSegment(ClientIdSet clientIds, Instant watermark) {}
+
+    public SegmentStore(Path directory) {
+        this.directory = directory;
+    }
+
+    public Optional<StoredSegment> load(int usecaseNumber) throws IOException {
+        Path file = segmentFile(usecaseNumber);
+        if (!Files.exists(file)) {
+            return Optional.empty();
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a segment file: " + file);
+            }
+            Instant watermark = Instant.ofEpochMilli(in.readLong());
+            int count = in.readInt();
+            ClientIdSet clientIds = new ClientIdSet(count);
+            for (int i = 0; i < count; i++) {
+                byte[] clientId = new byte[in.readUnsignedShort()];
+                in.readFully(clientId);
+                clientIds.add(clientId);
+            }
+            return Optional.of(new StoredSegment(clientIds, watermark));
+        }
+    }
+
+    public void save(int usecaseNumber, ClientIdSet clientIds, Instant watermark) throws IOException {
+        Files.createDirectories(directory);
+        Path file = segmentFile(usecaseNumber);
+        Path temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out =
+                    new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeLong(watermark.toEpochMilli());
+                out.writeInt(clientIds.size());
+                byte[] buffer = new byte[ClientIdSet.MAX_ID_BYTES];
+                clientIds.forEachEntry((chunk, offset, length) -> {
+                    chunk.get(offset, buffer, 0, length);
+                    try {
+                        out.writeShort(length);
+                        out.write(buffer, 0, length);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private Path segmentFile(int usecaseNumber) {
+        return directory.resolve("usecase-" + usecaseNumber + ".seg");
+    }
+}
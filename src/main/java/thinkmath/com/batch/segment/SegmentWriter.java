@@ -0,0 +1,68 @@
+package thinkmath.com.batch.segment;
+
+import thinkmath.com.batch.config.BatchProperties;
+import thinkmath.com.batch.pipeline.SegmentSink;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes a segment file as pages of ids arrive. The file only appears once {@link #complete()} returns; closing a
+ * writer that was not completed discards everything written so far.
+ */
+public interface SegmentWriter extends SegmentSink, Closeable {
+    /** Ids handed to {@link #accept} per call when a whole {@link ClientIdSet} is written. */
+    int BATCH_SIZE = 10_000;
+
+    /** Writes nothing, for runs that don't export. */
+    SegmentWriter NONE = new SegmentWriter() {
+        @Override
+        public void accept(List<String> clientIds) {}
+
+        @Override
+        public void close() {}
+    };
+
+    static SegmentWriter open(BatchProperties.Export settings, int usecaseNumber) throws IOException {
+        if (!settings.enabled()) {
+            return NONE;
+        }
+        return switch (settings.format()) {
+            case TEXT -> new TextSegmentWriter(settings.directory().resolve("usecase-" + usecaseNumber + ".txt"));
+            case BINARY -> new SortedSegmentWriter(
+                    settings.directory().resolve("usecase-" + usecaseNumber + SegmentFile.EXTENSION),
+                    settings.blockSize(),
+                    settings.runSize().toBytes());
+        };
+    }
+
+    /**
+     * Writes every id of {@code clientIds}.
+     */
+    default void acceptAll(ClientIdSet clientIds) throws IOException {
+        List<String> batch = new ArrayList<>(BATCH_SIZE);
+        byte[] buffer = new byte[ClientIdSet.MAX_ID_BYTES];
+        try {
+            clientIds.forEachEntry((chunk, offset, length) -> {
+                chunk.get(offset, buffer, 0, length);
+                batch.add(new String(buffer, 0, length, StandardCharsets.UTF_8));
+                if (batch.size() == BATCH_SIZE) {
+                    try {
+                        accept(batch);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    batch.clear();
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        accept(batch);
+    }
+}
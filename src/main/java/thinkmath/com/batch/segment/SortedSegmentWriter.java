@@ -0,0 +1,503 @@
+package thinkmath.com.batch.segment;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a segment in the {@link SegmentFile} format. Ids are packed into a byte arena until it takes
+ * {@code runBytes}, then sorted and spilled to a temporary run file on a background thread while the next run fills
+ * up; completion merges the runs, dropping duplicates, into front-coded deflated blocks. A segment that fits in one
+ * run never touches a temporary file. Memory stays within two runs whatever the segment size.
+ */
+@Slf4j
+public final class SortedSegmentWriter implements SegmentWriter {
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final int RUN_BUFFER_SIZE = 1 << 16;
+
+    private final Path file;
+    private final Path directory;
+    private final int blockSize;
+    private final long runBytes;
+    private final ExecutorService spiller;
+    private final List<Path> runs = new ArrayList<>();
+    private Run run = new Run();
+    private Future<Path> spilling;
+
+    public SortedSegmentWriter(Path file, int blockSize, long runBytes) throws IOException {
+        this.file = file;
+        this.directory = file.toAbsolutePath().getParent();
+        this.blockSize = blockSize;
+        this.runBytes = runBytes;
+        this.spiller = Executors.newSingleThreadExecutor(Thread.ofPlatform().name("segment-spill").daemon().factory());
+        Files.createDirectories(directory);
+    }
+
+    @Override
+    public void accept(List<String> clientIds) throws IOException {
+        for (String clientId : clientIds) {
+            byte[] bytes = clientId.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > ClientIdSet.MAX_ID_BYTES) {
+                throw new IOException("Client id is longer than " + ClientIdSet.MAX_ID_BYTES + " bytes");
+            }
+            run.add(bytes);
+            if (run.bytes() >= runBytes) {
+                spill();
+            }
+        }
+    }
+
+    @Override
+    public void complete() throws IOException {
+        awaitSpill();
+        Run last = run;
+        run = new Run();
+        int[] order = last.sort();
+        Path temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            int spilledRuns = runs.size();
+            BlockEncoder encoder;
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                encoder = new BlockEncoder(channel);
+                if (runs.isEmpty()) {
+                    for (int id : order) {
+                        encoder.add(last.arena, last.start(id), last.length(id));
+                    }
+                } else {
+                    if (order.length > 0) {
+                        runs.add(writeRun(last, order));
+                    }
+                    merge(encoder);
+                }
+                encoder.finish();
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.info("Exported {} distinct client ids to {} ({} runs spilled)", encoder.count, file, spilledRuns);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            awaitSpill();
+        } catch (IOException e) {
+            log.debug("Discarding failed segment run: {}", e.toString());
+        }
+        spiller.shutdown();
+        for (Path runFile : runs) {
+            Files.deleteIfExists(runFile);
+        }
+        runs.clear();
+        run = new Run();
+    }
+
+    private void spill() throws IOException {
+        awaitSpill();
+        Run full = run;
+        run = new Run();
+        spilling = spiller.submit(() -> writeRun(full, full.sort()));
+    }
+
+    private void awaitSpill() throws IOException {
+        if (spilling == null) {
+            return;
+        }
+        try {
+            runs.add(spilling.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while spilling a segment run", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ioException ? ioException : new IOException(e.getCause());
+        } finally {
+            spilling = null;
+        }
+    }
+
+    /**
+     * Writes the ids of {@code run} in sorted order as two-byte lengths and UTF-8 bytes.
+     */
+    private Path writeRun(Run run, int[] order) throws IOException {
+        Path runFile = Files.createTempFile(directory, file.getFileName().toString(), ".run");
+        try (FileChannel channel = FileChannel.open(runFile, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            for (int id : order) {
+                int length = run.length(id);
+                if (buffer.remaining() < Short.BYTES + length) {
+                    write(channel, buffer);
+                }
+                buffer.putShort((short) length).put(run.arena, run.start(id), length);
+            }
+            write(channel, buffer);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(runFile);
+            throw e;
+        }
+        return runFile;
+    }
+
+    private void merge(BlockEncoder encoder) throws IOException {
+        PriorityQueue<RunReader> readers = new PriorityQueue<>(runs.size());
+        try {
+            for (Path runFile : runs) {
+                RunReader reader = new RunReader(runFile);
+                if (reader.advance()) {
+                    readers.add(reader);
+                } else {
+                    reader.channel.close();
+                }
+            }
+            while (!readers.isEmpty()) {
+                RunReader reader = readers.poll();
+                encoder.add(reader.current, 0, reader.length);
+                if (reader.advance()) {
+                    readers.add(reader);
+                } else {
+                    reader.channel.close();
+                }
+            }
+        } finally {
+            for (RunReader reader : readers) {
+                reader.channel.close();
+            }
+        }
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * The ids of one run, back to back in a byte array. They are sorted by a multikey quicksort whose characters are
+     * 7-byte slices of the ids cached in a {@code long[]} next to the order, so partitioning scans two arrays in
+     * sequence and only reads the arena again for ids that share a whole slice.
+     */
+    static final class Run {
+        private static final int INSERTION_SORT_SIZE = 16;
+        private static final int SLICE_BYTES = 7;
+        private static final int MAX_DEPTH = 1024;
+
+        private byte[] arena = new byte[1 << 16];
+        /** Id {@code i} spans {@code [starts[i], starts[i + 1])}. */
+        private int[] starts = new int[1 << 12];
+        private int size;
+
+        void add(byte[] id) {
+            int used = starts[size];
+            if (used + id.length > arena.length) {
+                arena = Arrays.copyOf(arena, Math.max(arena.length * 2, used + id.length));
+            }
+            if (size + 2 > starts.length) {
+                starts = Arrays.copyOf(starts, starts.length * 2);
+            }
+            System.arraycopy(id, 0, arena, used, id.length);
+            starts[++size] = used + id.length;
+        }
+
+        /**
+         * Id bytes plus the start, sort slot and sort key of every id.
+         */
+        long bytes() {
+            return starts[size] + (2L * Integer.BYTES + Long.BYTES) * size;
+        }
+
+        int start(int id) {
+            return starts[id];
+        }
+
+        int length(int id) {
+            return starts[id + 1] - starts[id];
+        }
+
+        /**
+         * @return the ids in unsigned byte order
+         */
+        int[] sort() {
+            int[] order = new int[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            sort(order, new long[size], 0, size, 0);
+            return order;
+        }
+
+        /**
+         * Sorts {@code order[low, high)}, whose ids share their first {@code depth} bytes.
+         */
+        private void sort(int[] order, long[] keys, int low, int high, int depth) {
+            if (high - low <= INSERTION_SORT_SIZE || depth >= MAX_DEPTH) {
+                insertionSort(order, low, high, depth);
+                return;
+            }
+            for (int i = low; i < high; i++) {
+                keys[i] = key(order[i], depth);
+            }
+            sortByKey(order, keys, low, high, depth);
+        }
+
+        private void sortByKey(int[] order, long[] keys, int low, int high, int depth) {
+            while (high - low > INSERTION_SORT_SIZE) {
+                long pivot = median(keys[low], keys[(low + high) >>> 1], keys[high - 1]);
+                int lessThan = low;
+                int greaterThan = high - 1;
+                int i = low;
+                while (i <= greaterThan) {
+                    if (keys[i] < pivot) {
+                        swap(order, keys, lessThan++, i++);
+                    } else if (keys[i] > pivot) {
+                        swap(order, keys, i, greaterThan--);
+                    } else {
+                        i++;
+                    }
+                }
+                sortByKey(order, keys, low, lessThan, depth);
+                // Equal keys of ids that end within the slice are equal ids
+                if ((pivot & 0xFF) > SLICE_BYTES) {
+                    sort(order, keys, lessThan, greaterThan + 1, depth + SLICE_BYTES);
+                }
+                low = greaterThan + 1;
+            }
+            insertionSort(order, low, high, depth);
+        }
+
+        /**
+         * The {@value #SLICE_BYTES} bytes of {@code id} from {@code depth}, zero-padded, then how many bytes are left
+         * from {@code depth} capped at {@code SLICE_BYTES + 1}, so that an id sorts before the ids it is a prefix of.
+         * The sign bit is flipped so that signed comparison orders the bytes as unsigned.
+         */
+        private long key(int id, int depth) {
+            int start = starts[id] + depth;
+            int remaining = starts[id + 1] - start;
+            long key = 0;
+            for (int i = 0; i < Math.min(remaining, SLICE_BYTES); i++) {
+                key |= (long) (arena[start + i] & 0xFF) << (Byte.SIZE * (SLICE_BYTES - i));
+            }
+            return (key | Math.min(remaining, SLICE_BYTES + 1)) ^ Long.MIN_VALUE;
+        }
+
+        private void insertionSort(int[] order, int low, int high, int depth) {
+            for (int i = low + 1; i < high; i++) {
+                int id = order[i];
+                int j = i;
+                while (j > low && compare(order[j - 1], id, depth) > 0) {
+                    order[j] = order[j - 1];
+                    j--;
+                }
+                order[j] = id;
+            }
+        }
+
+        private int compare(int left, int right, int depth) {
+            return Arrays.compareUnsigned(
+                    arena, starts[left] + depth, starts[left + 1], arena, starts[right] + depth, starts[right + 1]);
+        }
+
+        private static long median(long a, long b, long c) {
+            return Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+        }
+
+        private static void swap(int[] order, long[] keys, int i, int j) {
+            int id = order[i];
+            order[i] = order[j];
+            order[j] = id;
+            long key = keys[i];
+            keys[i] = keys[j];
+            keys[j] = key;
+        }
+    }
+
+    private final class BlockEncoder {
+        private final FileChannel channel;
+        private final ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+        private final DataOutputStream index = new DataOutputStream(indexBytes);
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final byte[] previous = new byte[ClientIdSet.MAX_ID_BYTES];
+        private final byte[] firstId = new byte[ClientIdSet.MAX_ID_BYTES];
+        private byte[] raw = new byte[1 << 16];
+        private byte[] compressed = new byte[1 << 16];
+        private int rawLength;
+        private int previousLength = -1;
+        private int firstIdLength;
+        private int blockIds;
+        private long offset = SegmentFile.HEADER_SIZE;
+        private long count;
+        private int blocks;
+
+        BlockEncoder(FileChannel channel) throws IOException {
+            this.channel = channel;
+            channel.position(SegmentFile.HEADER_SIZE);
+        }
+
+        /**
+         * Appends the next id in sorted order, unless it repeats the previous one.
+         */
+        void add(byte[] id, int start, int length) throws IOException {
+            int mismatch = 0;
+            if (previousLength >= 0) {
+                mismatch = Arrays.mismatch(previous, 0, previousLength, id, start, start + length);
+                if (mismatch < 0) {
+                    return;
+                }
+            }
+            int shared = blockIds == 0 ? 0 : mismatch;
+            if (blockIds == 0) {
+                System.arraycopy(id, start, firstId, 0, length);
+                firstIdLength = length;
+            }
+            int suffix = length - shared;
+            if (rawLength + 10 + suffix > raw.length) {
+                raw = Arrays.copyOf(raw, Math.max(raw.length * 2, rawLength + 10 + suffix));
+            }
+            writeVarint(shared);
+            writeVarint(suffix);
+            System.arraycopy(id, start + shared, raw, rawLength, suffix);
+            rawLength += suffix;
+            System.arraycopy(id, start + mismatch, previous, mismatch, length - mismatch);
+            previousLength = length;
+            count++;
+            if (++blockIds == blockSize) {
+                flushBlock();
+            }
+        }
+
+        void finish() throws IOException {
+            if (blockIds > 0) {
+                flushBlock();
+            }
+            deflater.end();
+            write(channel, out);
+            long indexOffset = offset;
+            ByteBuffer indexBuffer = ByteBuffer.wrap(indexBytes.toByteArray());
+            while (indexBuffer.hasRemaining()) {
+                channel.write(indexBuffer);
+            }
+            ByteBuffer header = ByteBuffer.allocate(SegmentFile.HEADER_SIZE)
+                    .putInt(SegmentFile.MAGIC)
+                    .putInt(blockSize)
+                    .putLong(count)
+                    .putInt(blocks)
+                    .putLong(indexOffset)
+                    .putInt(0)
+                    .flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(false);
+        }
+
+        private void flushBlock() throws IOException {
+            deflater.reset();
+            deflater.setInput(raw, 0, rawLength);
+            deflater.finish();
+            int compressedLength = 0;
+            while (!deflater.finished()) {
+                if (compressedLength == compressed.length) {
+                    compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                }
+                compressedLength +=
+                        deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+            }
+            if (out.remaining() < compressedLength) {
+                write(channel, out);
+            }
+            if (compressedLength > out.capacity()) {
+                ByteBuffer block = ByteBuffer.wrap(compressed, 0, compressedLength);
+                while (block.hasRemaining()) {
+                    channel.write(block);
+                }
+            } else {
+                out.put(compressed, 0, compressedLength);
+            }
+
+            index.writeLong(offset);
+            index.writeInt(compressedLength);
+            index.writeInt(rawLength);
+            index.writeInt(blockIds);
+            index.writeShort(firstIdLength);
+            index.write(firstId, 0, firstIdLength);
+            offset += compressedLength;
+            blocks++;
+            blockIds = 0;
+            rawLength = 0;
+        }
+
+        private void writeVarint(int value) {
+            while ((value & ~0x7F) != 0) {
+                raw[rawLength++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            raw[rawLength++] = (byte) value;
+        }
+    }
+
+    /**
+     * Reads one run back through a direct buffer, one id at a time into a reused array.
+     */
+    private static final class RunReader implements Comparable<RunReader> {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(RUN_BUFFER_SIZE).flip();
+        private final byte[] current = new byte[ClientIdSet.MAX_ID_BYTES];
+        private int length;
+
+        RunReader(Path runFile) throws IOException {
+            this.channel = FileChannel.open(runFile, StandardOpenOption.READ);
+        }
+
+        boolean advance() throws IOException {
+            if (!fill(Short.BYTES)) {
+                return false;
+            }
+            length = Short.toUnsignedInt(buffer.getShort());
+            if (!fill(length)) {
+                throw new IOException("Truncated segment run");
+            }
+            buffer.get(current, 0, length);
+            return true;
+        }
+
+        @Override
+        public int compareTo(RunReader other) {
+            return Arrays.compareUnsigned(current, 0, length, other.current, 0, other.length);
+        }
+
+        private boolean fill(int needed) throws IOException {
+            if (buffer.remaining() >= needed) {
+                return true;
+            }
+            buffer.compact();
+            while (buffer.position() < needed) {
+                if (channel.read(buffer) < 0) {
+                    buffer.flip();
+                    return false;
+                }
+            }
+            buffer.flip();
+            return true;
+        }
+    }
+}
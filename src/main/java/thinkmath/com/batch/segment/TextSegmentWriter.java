@@ -0,0 +1,77 @@
+package thinkmath.com.batch.segment;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Writes ids one per line, in arrival order, through a direct buffer to a temporary file that is moved into place on
+ * completion.
+ */
+@Slf4j
+public final class TextSegmentWriter implements SegmentWriter {
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final Path file;
+    private final Path temporary;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private long written;
+    private boolean completed;
+
+    public TextSegmentWriter(Path file) throws IOException {
+        this.file = file;
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        this.temporary = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+        this.channel = FileChannel.open(temporary, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    @Override
+    public void accept(List<String> clientIds) throws IOException {
+        for (String clientId : clientIds) {
+            byte[] bytes = clientId.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > ClientIdSet.MAX_ID_BYTES) {
+                throw new IOException("Client id is longer than " + ClientIdSet.MAX_ID_BYTES + " bytes");
+            }
+            if (buffer.remaining() < bytes.length + 1) {
+                flush();
+            }
+            buffer.put(bytes).put((byte) '\n');
+            written++;
+        }
+    }
+
+    @Override
+    public void complete() throws IOException {
+        flush();
+        channel.force(false);
+        channel.close();
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        completed = true;
+        log.info("Exported {} client ids to {}", written, file);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        if (!completed) {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,202 @@
+package thinkmath.com.batch.util;
+
+import co.elastic.clients.elasticsearch._types.FieldValue;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import lombok.experimental.UtilityClass;
+import thinkmath.com.batch.dto.ClientPage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Streaming decoder for search responses that pulls {@code pit_id}, {@code hits.hits._source.client_id}, the use cases
+ * named in {@code hits.hits.matched_queries} and the {@code sort} values of the last hit, and skips everything else
+ * without materializing it. Pair it with
+ * {@link #FILTER_PATH} so the cluster doesn't send the rest in the first place.
+ */
+@UtilityClass
+public class ClientHitsReader {
+    public final String FILTER_PATH =
+            "pit_id,hits.hits._source.client_id,hits.hits.sort,hits.hits.matched_queries";
+
+    private final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    public ClientPage read(InputStream in) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(in)) {
+            String pitId = null;
+            int hits = 0;
+            List<String> clientIds = new ArrayList<>();
+            SortValues lastSort = new SortValues();
+            UsecaseMasks usecaseMasks = new UsecaseMasks();
+            expect(parser.nextToken(), JsonToken.START_OBJECT);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                parser.nextToken();
+                if ("pit_id".equals(field)) {
+                    pitId = parser.getText();
+                } else if ("hits".equals(field) && parser.currentToken() == JsonToken.START_OBJECT) {
+                    hits = readHitsMetadata(parser, clientIds, lastSort, usecaseMasks);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return new ClientPage(
+                    pitId, clientIds, hits, lastSort.toFieldValues(), usecaseMasks.toArray(clientIds.size()));
+        }
+    }
+
+    /**
+     * @return the number of hits read, with or without a {@code client_id}
+     */
+    private int readHitsMetadata(
+            JsonParser parser, List<String> clientIds, SortValues lastSort, UsecaseMasks usecaseMasks)
+            throws IOException {
+        int hits = 0;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            if ("hits".equals(field) && parser.currentToken() == JsonToken.START_ARRAY) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    readHit(parser, clientIds, lastSort, usecaseMasks);
+                    hits++;
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return hits;
+    }
+
+    private void readHit(JsonParser parser, List<String> clientIds, SortValues lastSort, UsecaseMasks usecaseMasks)
+            throws IOException {
+        int hitIndex = clientIds.size();
+        long mask = 0;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            if ("_source".equals(field) && parser.currentToken() == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String sourceField = parser.currentName();
+                    parser.nextToken();
+                    if (QueryBuilder.CLIENT_ID.equals(sourceField) && parser.currentToken() != JsonToken.VALUE_NULL) {
+                        clientIds.add(parser.getValueAsString());
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } else if ("sort".equals(field) && parser.currentToken() == JsonToken.START_ARRAY) {
+                lastSort.clear();
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    lastSort.add(parser);
+                }
+            } else if ("matched_queries".equals(field)) {
+                mask = readUsecaseMask(parser);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (mask != 0 && clientIds.size() > hitIndex) {
+            usecaseMasks.set(hitIndex, mask);
+        }
+    }
+
+    /**
+     * Reads {@code matched_queries}, either a list of names or, with {@code include_named_queries_score}, an object
+     * of name to score.
+     */
+    private long readUsecaseMask(JsonParser parser) throws IOException {
+        long mask = 0;
+        JsonToken end = parser.currentToken() == JsonToken.START_ARRAY ? JsonToken.END_ARRAY : JsonToken.END_OBJECT;
+        JsonToken token;
+        while ((token = parser.nextToken()) != end) {
+            String name = token == JsonToken.FIELD_NAME ? parser.currentName() : parser.getText();
+            if (token == JsonToken.FIELD_NAME) {
+                parser.nextToken();
+            }
+            if (name.startsWith(QueryBuilder.USECASE_QUERY_PREFIX)) {
+                mask |= 1L << Integer.parseInt(name, QueryBuilder.USECASE_QUERY_PREFIX.length(), name.length(), 10);
+            }
+        }
+        return mask;
+    }
+
+    private void expect(JsonToken actual, JsonToken expected) throws IOException {
+        if (actual != expected) {
+            throw new IOException("Unexpected search response: expected " + expected + " but got " + actual);
+        }
+    }
+
+    /**
+     * Sort values of the current hit, overwritten in place for every hit so only the last one becomes
+     * {@link FieldValue}s.
+     */
+    private static final class SortValues {
+        private JsonToken[] kinds = new JsonToken[2];
+        private long[] longs = new long[2];
+        private double[] doubles = new double[2];
+        private String[] texts = new String[2];
+        private int size;
+
+        void clear() {
+            size = 0;
+        }
+
+        void add(JsonParser parser) throws IOException {
+            if (size == kinds.length) {
+                kinds = Arrays.copyOf(kinds, size * 2);
+                longs = Arrays.copyOf(longs, size * 2);
+                doubles = Arrays.copyOf(doubles, size * 2);
+                texts = Arrays.copyOf(texts, size * 2);
+            }
+            JsonToken kind = parser.currentToken();
+            kinds[size] = kind;
+            switch (kind) {
+                case VALUE_NUMBER_INT -> longs[size] = parser.getLongValue();
+                case VALUE_NUMBER_FLOAT -> doubles[size] = parser.getDoubleValue();
+                case VALUE_TRUE, VALUE_FALSE, VALUE_NULL -> {}
+                default -> texts[size] = parser.getText();
+            }
+            size++;
+        }
+
+        List<FieldValue> toFieldValues() {
+            if (size == 0) {
+                return null;
+            }
+            List<FieldValue> values = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                values.add(switch (kinds[i]) {
+                    case VALUE_NUMBER_INT -> FieldValue.of(longs[i]);
+                    case VALUE_NUMBER_FLOAT -> FieldValue.of(doubles[i]);
+                    case VALUE_TRUE -> FieldValue.of(true);
+                    case VALUE_FALSE -> FieldValue.of(false);
+                    case VALUE_NULL -> FieldValue.NULL;
+                    default -> FieldValue.of(texts[i]);
+                });
+            }
+            return values;
+        }
+    }
+
+    private static final class UsecaseMasks {
+        private long[] masks;
+
+        void set(int hitIndex, long mask) {
+            if (masks == null) {
+                masks = new long[Math.max(16, hitIndex + 1)];
+            } else if (hitIndex >= masks.length) {
+                masks = Arrays.copyOf(masks, Math.max(masks.length * 2, hitIndex + 1));
+            }
+            masks[hitIndex] = mask;
+        }
+
+        long[] toArray(int hits) {
+            return masks == null ? null : Arrays.copyOf(masks, hits);
+        }
+    }
+}
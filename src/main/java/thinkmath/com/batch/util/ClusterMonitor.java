@@ -0,0 +1,81 @@
+package thinkmath.com.batch.util;
+
+import co.elastic.clients.elasticsearch._types.ElasticsearchException;
+import co.elastic.clients.elasticsearch.nodes.Stats;
+import co.elastic.clients.elasticsearch.nodes.ThreadCount;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import thinkmath.com.batch.config.BatchProperties;
+import thinkmath.com.batch.dto.ClusterPressure;
+import thinkmath.com.batch.metrics.BatchMetrics;
+import thinkmath.com.batch.pipeline.ClusterThrottle;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Samples cluster health and the search thread pool and heap of every node, and feeds the result to the
+ * {@link ClusterThrottle} that paces page dispatch.
+ */
+@Slf4j
+@Component
+public class ClusterMonitor {
+    private static final String SEARCH_POOL = "search";
+
+    private final ElasticsearchService client;
+    private final ClusterThrottle throttle;
+    private final boolean enabled;
+    private final Map<String, Long> searchRejected = new HashMap<>();
+
+    public ClusterMonitor(
+            ElasticsearchService client, ClusterThrottle throttle, BatchProperties properties, BatchMetrics metrics) {
+        this.client = client;
+        this.throttle = throttle;
+        this.enabled = properties.throttle().enabled();
+        metrics.monitor(throttle);
+    }
+
+    /**
+     * Takes one sample; a cluster that cannot be reached leaves the throttle on its previous sample until it goes
+     * stale.
+     */
+    public synchronized void sample() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            String status = client.clusterHealth().jsonValue();
+            throttle.update(pressure(status, client.nodesStats()));
+        } catch (IOException | ElasticsearchException e) {
+            log.warn("Cannot sample cluster pressure: {}", e.toString());
+        }
+    }
+
+    ClusterPressure pressure(String status, Map<String, Stats> nodes) {
+        String busiestNode = null;
+        long searchQueue = 0;
+        long rejections = 0;
+        long heapUsedPercent = 0;
+        for (Map.Entry<String, Stats> node : nodes.entrySet()) {
+            Stats stats = node.getValue();
+            ThreadCount search = stats.threadPool().get(SEARCH_POOL);
+            if (search != null) {
+                long queue = Optional.ofNullable(search.queue()).orElse(0L);
+                if (busiestNode == null || queue > searchQueue) {
+                    busiestNode = stats.name();
+                    searchQueue = queue;
+                }
+                long rejected = Optional.ofNullable(search.rejected()).orElse(0L);
+                Long previous = searchRejected.put(node.getKey(), rejected);
+                // Counters restart with the node
+                rejections += previous == null ? 0 : rejected >= previous ? rejected - previous : rejected;
+            }
+            if (stats.jvm() != null && stats.jvm().mem() != null && stats.jvm().mem().heapUsedPercent() != null) {
+                heapUsedPercent = Math.max(heapUsedPercent, stats.jvm().mem().heapUsedPercent());
+            }
+        }
+        return new ClusterPressure(status, busiestNode, searchQueue, rejections, heapUsedPercent);
+    }
+}
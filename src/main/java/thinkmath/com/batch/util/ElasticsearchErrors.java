@@ -0,0 +1,101 @@
+package thinkmath.com.batch.util;
+
+import co.elastic.clients.elasticsearch._types.ElasticsearchException;
+import co.elastic.clients.elasticsearch._types.ErrorCause;
+import co.elastic.clients.transport.TransportException;
+import lombok.experimental.UtilityClass;
+import org.apache.http.ConnectionClosedException;
+import org.apache.http.NoHttpResponseException;
+import org.elasticsearch.client.ResponseException;
+
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+
+@UtilityClass
+public class ElasticsearchErrors {
+    public final int TOO_MANY_REQUESTS = 429;
+    public final String REJECTED_EXECUTION = "es_rejected_execution_exception";
+
+    /**
+     * Delay before retry number {@code retry} (from 1), drawn uniformly below {@code initialBackoff} doubled on every
+     * retry and capped at {@code maxBackoff} (exponential backoff with full jitter).
+     */
+    public long backoffNanos(Duration initialBackoff, Duration maxBackoff, int retry) {
+        long bound = initialBackoff.toNanos() << Math.min(retry - 1, 30);
+        bound = Math.min(bound < 0 ? Long.MAX_VALUE : bound, maxBackoff.toNanos());
+        return ThreadLocalRandom.current().nextLong(bound + 1);
+    }
+
+    /**
+     * @return the HTTP status of the first Elasticsearch error in the cause chain, or {@code -1}
+     */
+    public int statusOf(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ElasticsearchException e) {
+                return e.status();
+            }
+            if (cause instanceof TransportException e) {
+                return e.statusCode();
+            }
+            if (cause instanceof ResponseException e) {
+                return e.getResponse().getStatusLine().getStatusCode();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return whether the cluster refused the request because its thread pools or queues were full
+     */
+    public boolean isRejection(Throwable error) {
+        if (statusOf(error) == TOO_MANY_REQUESTS) {
+            return true;
+        }
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ElasticsearchException e && isRejection(e.error())) {
+                return true;
+            }
+            if (cause.getMessage() != null && cause.getMessage().contains(REJECTED_EXECUTION)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether sending the same request again may succeed: a rejection, a {@code 502}, {@code 503} or
+     *     {@code 504}, a timeout or a dropped connection
+     */
+    public boolean isRetryable(Throwable error) {
+        int status = statusOf(error);
+        if (status == 502 || status == 503 || status == 504 || isRejection(error)) {
+            return true;
+        }
+        if (status > 0) {
+            return false;
+        }
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof TimeoutException
+                    || cause instanceof SocketTimeoutException
+                    || cause instanceof ConnectException
+                    || cause instanceof ConnectionClosedException
+                    || cause instanceof NoHttpResponseException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isRejection(ErrorCause cause) {
+        if (cause == null) {
+            return false;
+        }
+        if (REJECTED_EXECUTION.equals(cause.type())) {
+            return true;
+        }
+        return isRejection(cause.causedBy()) || cause.rootCause().stream().anyMatch(ElasticsearchErrors::isRejection);
+    }
+}
@@ -1,59 +1,472 @@
 package thinkmath.com.batch.util;
 
+import co.elastic.clients.elasticsearch._types.Time;
 import co.elastic.clients.elasticsearch.core.SearchResponse;
-import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
+import thinkmath.com.batch.config.BatchProperties;
+import thinkmath.com.batch.config.ExecutorMode;
+import thinkmath.com.batch.config.ScanMode;
+import thinkmath.com.batch.dto.ClientPage;
+import thinkmath.com.batch.dto.JoinPlan;
 import thinkmath.com.batch.dto.Page;
+import thinkmath.com.batch.metrics.BatchMetrics;
+import thinkmath.com.batch.pipeline.AdaptiveConcurrencyLimiter;
+import thinkmath.com.batch.pipeline.ClusterThrottle;
+import thinkmath.com.batch.pipeline.ResultPipeline;
+import thinkmath.com.batch.pipeline.SegmentSink;
+import thinkmath.com.batch.segment.ClientIdSet;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 @Slf4j
-@RequiredArgsConstructor
 @Component
-public class ElasticsearchExecutor {
+public class ElasticsearchExecutor implements AutoCloseable {
+    private static final List<String> END_OF_SCAN = Collections.unmodifiableList(new ArrayList<>());
+
     private final ElasticsearchService client;
-    private final ExecutorService executorService = Executors.newFixedThreadPool(QueryBuilder.FIXED_THREAD_POOL);
+    private final BatchProperties properties;
+    private final ExecutorService executorService;
+    private final AdaptiveConcurrencyLimiter limiter;
+    private final JoinPlanner planner;
+    private final ClusterThrottle throttle;
+
+    public ElasticsearchExecutor(
+            ElasticsearchService client,
+            BatchProperties properties,
+            JoinPlanner planner,
+            ClusterThrottle throttle,
+            BatchMetrics metrics) {
+        this.client = client;
+        this.properties = properties;
+        this.planner = planner;
+        this.throttle = throttle;
+        if (properties.pipeline().staged() && properties.scan().mode() != ScanMode.SLICED) {
+            throw new IllegalStateException(
+                    "batch.pipeline.staged scans clients in slices: set batch.scan.mode=SLICED to use it");
+        }
+        BatchProperties.Executor executor = properties.executor();
+        if (executor.mode() == ExecutorMode.ADAPTIVE) {
+            // Pages in flight are published by the limiter; a thread-per-task executor has no queue to monitor
+            this.executorService = Executors.newVirtualThreadPerTaskExecutor();
+            this.limiter = new AdaptiveConcurrencyLimiter(
+                    executor.initialLimit(),
+                    executor.minLimit(),
+                    executor.maxLimit(),
+                    executor.latencyThreshold(),
+                    executor.backoffRatio(),
+                    executor.maxRejectionRetries(),
+                    properties.requests().initialBackoff(),
+                    properties.requests().maxBackoff());
+            metrics.monitor(limiter);
+        } else {
+            this.executorService = metrics.monitor(
+                    Executors.newFixedThreadPool(Math.max(QueryBuilder.FIXED_THREAD_POOL, properties.scan().slices())),
+                    "batch.pages");
+            this.limiter = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        executorService.shutdownNow();
+    }
 
-    public boolean healthCheck() throws IOException {
-        return client.healthCheck();
+    /**
+     * @return the current adaptive concurrency limit, latency and rejection counts, empty in
+     *     {@link ExecutorMode#FIXED} mode
+     */
+    public Optional<AdaptiveConcurrencyLimiter.Stats> concurrencyStats() {
+        return Optional.ofNullable(limiter).map(AdaptiveConcurrencyLimiter::stats);
     }
 
+    /**
+     * Evaluates a use case and collects every matching client id. Prefer
+     * {@link #streamUseCase(int, SegmentSink)} for large segments.
+     */
     public List<String> executeUseCase(int usecaseNumber) throws IOException {
+        List<String> resultIds = new ArrayList<>();
+        streamUseCase(usecaseNumber, resultIds::addAll);
+        return resultIds;
+    }
+
+    /**
+     * Evaluates a use case and pushes the matching client ids to {@code sink} page by page, in completion order.
+     */
+    public void streamUseCase(int usecaseNumber, SegmentSink sink) throws IOException {
+        try {
+            JoinPlan plan = properties.planner().enabled() ? planner.plan(usecaseNumber) : null;
+            long start = System.nanoTime();
+            AtomicLong requests = new AtomicLong();
+            boolean eventDriven = plan != null && plan.drivingSide() == JoinPlan.DrivingSide.EVENTS;
+            int batchSize = plan != null ? plan.batchSize() : QueryBuilder.BATCH_SIZE;
+
+            // An event-driven plan has no client scan to split into stages, so it runs on the regular pipeline
+            if (properties.pipeline().staged() && !eventDriven) {
+                streamUseCaseStaged(usecaseNumber, batchSize, sink, requests);
+            } else {
+                try (ResultPipeline pipeline = new ResultPipeline(
+                        executorService, sink, maxInFlightPages(), properties.pipeline().maxBufferedIds())) {
+                    if (eventDriven) {
+                        streamUseCaseEventDriven(usecaseNumber, batchSize, pipeline, requests);
+                    } else {
+                        switch (properties.scan().mode()) {
+                            case PAGED -> streamUseCasePaged(usecaseNumber, batchSize, pipeline, requests);
+                            case SLICED -> streamUseCaseSliced(
+                                    usecaseNumber, properties.scan().slices(), batchSize, pipeline, requests);
+                        }
+                    }
+                    pipeline.await();
+                }
+            }
+
+            if (plan != null) {
+                planner.report(plan, requests.get(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while executing use case " + usecaseNumber, e);
+        }
+    }
+
+    /**
+     * Evaluates only {@code clientIds} against a use case, both its client and its event predicate, and pushes the
+     * ones that match to {@code sink}.
+     */
+    public void streamClients(int usecaseNumber, ClientIdSet clientIds, SegmentSink sink) throws IOException {
+        List<List<String>> batches = new ArrayList<>();
+        clientIds.forEach(clientId -> {
+            if (batches.isEmpty() || batches.getLast().size() == QueryBuilder.BATCH_SIZE) {
+                batches.add(new ArrayList<>(QueryBuilder.BATCH_SIZE));
+            }
+            batches.getLast().add(clientId);
+        });
+
+        try (ResultPipeline pipeline = new ResultPipeline(
+                executorService, sink, maxInFlightPages(), properties.pipeline().maxBufferedIds())) {
+            for (List<String> batch : batches) {
+                if (!pipeline.submit(() -> runPage(() -> {
+                    List<String> clients = client.filterClients(batch, usecaseNumber);
+                    return clients.isEmpty() ? clients : client.executeEventsQuery(clients, usecaseNumber);
+                }))) {
+                    break;
+                }
+            }
+            pipeline.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while evaluating clients of use case " + usecaseNumber, e);
+        }
+    }
+
+    /**
+     * Drives a use case from the event side: the distinct clients of the matching events are listed
+     * {@code batchSize} at a time with a composite aggregation, and every page is checked against the client
+     * predicate.
+     */
+    private void streamUseCaseEventDriven(
+            int usecaseNumber, int batchSize, ResultPipeline pipeline, AtomicLong requests)
+            throws IOException, InterruptedException {
+        int compositeRequests = client.scanEventClientIds(
+                QueryBuilder.buildEventQuery(usecaseNumber, client.anchor()),
+                String.valueOf(usecaseNumber),
+                batchSize,
+                clientIds -> {
+                    try {
+                        pipeline.submit(() -> runPage(() -> {
+                            requests.incrementAndGet();
+                            return client.filterClients(clientIds, usecaseNumber);
+                        }));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while submitting event-driven page", e);
+                    }
+                });
+        requests.addAndGet(compositeRequests);
+    }
+
+    /**
+     * Evaluates several use cases over a single sliced scan of their shared client population. Every client is
+     * tagged with the use cases whose client predicate it matches, and each page's event checks for all of them go
+     * out in one combined request.
+     *
+     * @return the matching client ids, keyed by use case number; the caller closes them
+     * @throws IllegalArgumentException if a use case number is outside {@code 0} to
+     *                                  {@link ClientPage#MAX_FUSED_USECASE}, the bits of a client's use case mask
+     */
+    public Map<Integer, ClientIdSet> executeUseCasesFused(List<Integer> usecaseNumbers) throws IOException {
+        for (int usecaseNumber : usecaseNumbers) {
+            if (usecaseNumber < 0 || usecaseNumber > ClientPage.MAX_FUSED_USECASE) {
+                throw new IllegalArgumentException("Use case " + usecaseNumber
+                        + " cannot be fused: use case numbers must be between 0 and " + ClientPage.MAX_FUSED_USECASE);
+            }
+        }
+        Map<Integer, ClientIdSet> segments = new TreeMap<>();
+        usecaseNumbers.forEach(usecaseNumber -> segments.put(usecaseNumber, new ClientIdSet()));
+        int slices = properties.scan().slices();
+
+        Time keepAlive = pointInTimeKeepAlive();
+        String pitId = client.openPointInTime(QueryBuilder.CLIENT_INDEX, keepAlive);
+        log.info(
+                "Opened point-in-time on {} for use cases {} over {} slices",
+                QueryBuilder.CLIENT_INDEX,
+                usecaseNumbers,
+                slices);
+        // The first failure stops the other slices at their next page instead of letting them scan to the end
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        boolean completed = false;
+        try {
+            List<CompletableFuture<Void>> allFutures = new ArrayList<>();
+            for (int slice = 0; slice < slices; slice++) {
+                int sliceId = slice;
+                allFutures.add(CompletableFuture.runAsync(
+                                () -> {
+                                    try {
+                                        client.scanFusedClientsSlice(
+                                                pitId, sliceId, slices, usecaseNumbers, keepAlive, page -> {
+                                                    if (failure.get() != null) {
+                                                        throw new CancellationException(
+                                                                "Fused scan failed in another slice");
+                                                    }
+                                                    collectFused(page, usecaseNumbers, segments);
+                                                });
+                                    } catch (IOException e) {
+                                        throw new CompletionException(e);
+                                    }
+                                },
+                                executorService)
+                        .whenComplete((result, error) -> {
+                            if (error != null) {
+                                failure.compareAndSet(
+                                        null, error instanceof CompletionException ? error.getCause() : error);
+                            }
+                        }));
+            }
+            CompletableFuture.allOf(allFutures.toArray(CompletableFuture[]::new)).join();
+            completed = true;
+        } catch (CompletionException e) {
+            Throwable cause = failure.get() != null ? failure.get() : e.getCause();
+            throw cause instanceof IOException ioException ? ioException : new IOException(cause);
+        } finally {
+            if (!completed) {
+                segments.values().forEach(ClientIdSet::close);
+            }
+            client.closePointInTime(pitId);
+        }
+        return segments;
+    }
+
+    private void collectFused(ClientPage page, List<Integer> usecaseNumbers, Map<Integer, ClientIdSet> segments)
+            throws IOException {
+        Map<Integer, List<String>> clientIdsByUsecase = new LinkedHashMap<>();
+        for (int usecaseNumber : usecaseNumbers) {
+            List<String> clientIds = new ArrayList<>();
+            for (int i = 0; i < page.clientIds().size(); i++) {
+                if (page.matches(i, usecaseNumber)) {
+                    clientIds.add(page.clientIds().get(i));
+                }
+            }
+            clientIdsByUsecase.put(usecaseNumber, clientIds);
+        }
+
+        Map<Integer, List<String>> resultIds;
+        try {
+            resultIds = runPage(() -> client.executeEventsQueryFused(clientIdsByUsecase));
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+        resultIds.forEach((usecaseNumber, clientIds) -> {
+            ClientIdSet segment = segments.get(usecaseNumber);
+            synchronized (segment) {
+                segment.addAll(clientIds);
+            }
+        });
+    }
+
+    private void streamUseCasePaged(int usecaseNumber, int batchSize, ResultPipeline pipeline, AtomicLong requests)
+            throws IOException, InterruptedException {
         SearchResponse<Map> clientQuery =
-                client.query(QueryBuilder.CLIENT_INDEX, QueryBuilder.buildClientQueryUsecase1(), true);
+                client.query(QueryBuilder.CLIENT_INDEX, QueryBuilder.buildClientQuery(usecaseNumber), true);
 
         long totalClients = Objects.requireNonNull(clientQuery.hits().total()).value();
-        List<Page> clientPaginate = paginate(totalClients, QueryBuilder.BATCH_SIZE);
+        List<Page> clientPaginate = paginate(totalClients, batchSize);
+        requests.addAndGet(1 + 2L * clientPaginate.size());
 
-        List<CompletableFuture<List<String>>> allFutures = new ArrayList<>();
         for (Page clientPage : clientPaginate) {
-            CompletableFuture<List<String>> future = CompletableFuture.supplyAsync(
-                    () -> {
+            if (!pipeline.submit(() -> runPage(
+                    () -> client.executeQueries(clientPage.pageNumber(), clientPage.size(), usecaseNumber)))) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Enumerates the clients of a use case from a single point-in-time split into {@code slices} parallel slices, in
+     * pages of {@code batchSize}. Every page of a slice is evaluated against the events as soon as it arrives.
+     */
+    private void streamUseCaseSliced(
+            int usecaseNumber, int slices, int batchSize, ResultPipeline pipeline, AtomicLong requests)
+            throws IOException, InterruptedException {
+        Time keepAlive = pointInTimeKeepAlive();
+        String pitId = client.openPointInTime(QueryBuilder.CLIENT_INDEX, keepAlive);
+        log.info("Opened point-in-time on {} for {} slices", QueryBuilder.CLIENT_INDEX, slices);
+        try {
+            for (int slice = 0; slice < slices; slice++) {
+                int sliceId = slice;
+                pipeline.submit(() -> {
+                    client.scanClientsSlice(pitId, sliceId, slices, batchSize, usecaseNumber, keepAlive, clientIds -> {
+                        requests.addAndGet(2);
                         try {
-                            return client.executeQueries(clientPage.pageNumber(), clientPage.size(), usecaseNumber);
-                        } catch (IOException e) {
-                            throw new CompletionException(e);
+                            // Stops the slice before its next event query once another page has failed
+                            pipeline.ensureRunning();
+                            pipeline.emit(runPage(() -> client.executeEventsQuery(clientIds, usecaseNumber)));
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new IOException("Interrupted while emitting slice " + sliceId, e);
+                        } catch (IOException | RuntimeException e) {
+                            throw e;
+                        } catch (Exception e) {
+                            throw new IOException(e);
                         }
-                    },
-                    executorService);
-            allFutures.add(future);
+                    });
+                    return List.of();
+                });
+            }
+            pipeline.awaitPages();
+        } finally {
+            client.closePointInTime(pitId);
         }
-        return allFutures.stream()
-                .map(CompletableFuture::join)
-                .flatMap(List::stream)
-                .toList();
     }
 
-    private List<Page> paginate(long totalSize, int batchSize) {
+    /**
+     * Runs the client scan and the event evaluation as two stages: one scanner per slice fetches client pages of
+     * {@code batchSize} on the async client and puts them on a bounded queue, and {@code eventWorkers} workers take
+     * them off and evaluate the events. Both stages run at the same time, so throughput is bounded by the slower one
+     * and a full queue holds the scanners back.
+     */
+    private void streamUseCaseStaged(int usecaseNumber, int batchSize, SegmentSink sink, AtomicLong requests)
+            throws IOException, InterruptedException {
+        int slices = properties.scan().slices();
+        int workers = properties.pipeline().eventWorkers();
+        BlockingQueue<List<String>> clientBatches = new ArrayBlockingQueue<>(properties.pipeline().clientBatchQueue());
+        AtomicInteger runningScanners = new AtomicInteger(slices);
+
+        Time keepAlive = pointInTimeKeepAlive();
+        String pitId = client.openPointInTime(QueryBuilder.CLIENT_INDEX, keepAlive);
+        log.info(
+                "Opened point-in-time on {} for {} scanners and {} event workers",
+                QueryBuilder.CLIENT_INDEX,
+                slices,
+                workers);
+        try (ExecutorService stages = Executors.newVirtualThreadPerTaskExecutor();
+                ResultPipeline pipeline =
+                        new ResultPipeline(stages, sink, slices + workers, properties.pipeline().maxBufferedIds())) {
+            for (int slice = 0; slice < slices; slice++) {
+                int sliceId = slice;
+                pipeline.submit(() -> {
+                    try {
+                        client.scanClientsSlice(
+                                pitId,
+                                sliceId,
+                                slices,
+                                batchSize,
+                                usecaseNumber,
+                                keepAlive,
+                                clientIds -> {
+                                    requests.incrementAndGet();
+                                    handOff(clientBatches, clientIds, pipeline);
+                                });
+                    } finally {
+                        // Workers stop by themselves once the pipeline has failed
+                        if (runningScanners.decrementAndGet() == 0 && !pipeline.isFailed()) {
+                            for (int i = 0; i < workers; i++) {
+                                handOff(clientBatches, END_OF_SCAN, pipeline);
+                            }
+                        }
+                    }
+                    return List.of();
+                });
+            }
+            for (int worker = 0; worker < workers; worker++) {
+                pipeline.submit(() -> {
+                    while (true) {
+                        List<String> clientIds = clientBatches.poll(1, TimeUnit.SECONDS);
+                        if (clientIds == END_OF_SCAN || pipeline.isFailed()) {
+                            return List.of();
+                        }
+                        if (clientIds != null) {
+                            requests.incrementAndGet();
+                            pipeline.emit(runPage(() -> client.executeEventsQuery(clientIds, usecaseNumber)));
+                        }
+                    }
+                });
+            }
+            pipeline.await();
+        } finally {
+            client.closePointInTime(pitId);
+        }
+    }
+
+    /**
+     * Queues a batch for the event stage, blocking while the queue is full.
+     *
+     * @throws java.util.concurrent.CancellationException once the pipeline has failed, which ends the scanner
+     */
+    private static void handOff(
+            BlockingQueue<List<String>> clientBatches, List<String> clientIds, ResultPipeline pipeline)
+            throws IOException {
+        try {
+            pipeline.ensureRunning();
+            while (!clientBatches.offer(clientIds, 1, TimeUnit.SECONDS)) {
+                pipeline.ensureRunning();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while handing client ids to the event stage", e);
+        }
+    }
+
+    private int maxInFlightPages() {
+        return limiter == null
+                ? properties.pipeline().maxInFlightPages()
+                : Math.max(properties.pipeline().maxInFlightPages(), properties.executor().maxLimit());
+    }
+
+    Time pointInTimeKeepAlive() {
+        return Time.of(t -> t.time(properties.scan().keepAlive().toSeconds() + "s"));
+    }
+
+    /**
+     * Runs one page once the cluster throttle lets it through, under the adaptive limit if there is one.
+     */
+    private <T> T runPage(Callable<T> page) throws Exception {
+        throttle.acquire();
+        return limiter == null ? page.call() : limiter.call(page);
+    }
+
+    static List<Page> paginate(long totalSize, int batchSize) {
         List<Page> pages = new ArrayList<>();
         int pageNumber = 0;
         while (totalSize > 0) {
@@ -1,99 +1,211 @@
 package thinkmath.com.batch.util;
 
+import co.elastic.clients.elasticsearch.ElasticsearchAsyncClient;
 import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._helpers.bulk.BulkIngester;
+import co.elastic.clients.elasticsearch._helpers.bulk.BulkListener;
 import co.elastic.clients.elasticsearch._types.FieldValue;
+import co.elastic.clients.elasticsearch._types.HealthStatus;
 import co.elastic.clients.elasticsearch._types.Time;
+import co.elastic.clients.elasticsearch._types.aggregations.CompositeAggregate;
+import co.elastic.clients.elasticsearch._types.aggregations.CompositeAggregationSource;
+import co.elastic.clients.elasticsearch._types.aggregations.CompositeBucket;
+import co.elastic.clients.elasticsearch._types.mapping.TypeMapping;
 import co.elastic.clients.elasticsearch._types.query_dsl.Query;
+import co.elastic.clients.elasticsearch.core.MsearchRequest;
+import co.elastic.clients.elasticsearch.core.MsearchResponse;
 import co.elastic.clients.elasticsearch.core.SearchRequest;
 import co.elastic.clients.elasticsearch.core.SearchResponse;
-import co.elastic.clients.elasticsearch.core.search.Hit;
+import co.elastic.clients.elasticsearch.core.msearch.MultiSearchResponseItem;
+import co.elastic.clients.elasticsearch.core.search.TotalHits;
+import co.elastic.clients.elasticsearch.indices.stats.IndexStats;
+import co.elastic.clients.elasticsearch.nodes.Stats;
+import co.elastic.clients.json.JsonpMapper;
+import co.elastic.clients.json.JsonpUtils;
 import co.elastic.clients.json.jackson.JacksonJsonpMapper;
 import co.elastic.clients.transport.ElasticsearchTransport;
-import co.elastic.clients.transport.endpoints.BooleanResponse;
 import co.elastic.clients.transport.rest_client.RestClientTransport;
+import jakarta.json.JsonObject;
+import jakarta.json.JsonValue;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.http.HttpHost;
-import org.apache.http.auth.AuthScope;
-import org.apache.http.auth.UsernamePasswordCredentials;
-import org.apache.http.client.CredentialsProvider;
-import org.apache.http.conn.ssl.NoopHostnameVerifier;
-import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.elasticsearch.client.Cancellable;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseListener;
 import org.elasticsearch.client.RestClient;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
-import org.springframework.util.StopWatch;
+import thinkmath.com.batch.config.BatchProperties;
+import thinkmath.com.batch.dto.CacheStats;
+import thinkmath.com.batch.dto.ClientPage;
+import thinkmath.com.batch.dto.CreatedDateRange;
+import thinkmath.com.batch.metrics.BatchMetrics;
 
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.X509TrustManager;
 import java.io.IOException;
-import java.security.SecureRandom;
-import java.security.cert.X509Certificate;
+import java.io.InputStream;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 @Slf4j
 @Component
 public class ElasticsearchService implements AutoCloseable {
     public static final Time KEEP_ALIVE = new Time.Builder().time("1m").build();
+    private final RestClient restClient;
+    private final JsonpMapper mapper = new JacksonJsonpMapper();
     private final ElasticsearchClient client;
+    private final ElasticsearchAsyncClient asyncClient;
+    private final BatchProperties properties;
+    private final BatchMetrics metrics;
+    private final RequestRunner requestRunner;
+    private final Map<String, QueryTemplate> templates = new ConcurrentHashMap<>();
+    private volatile Instant anchor;
+    private volatile ShardRouter router;
 
-    public ElasticsearchService() {
-        RestClient restClient = RestClient.builder(new HttpHost("localhost", 9200, "https"))
-                .setHttpClientConfigCallback(httpAsyncClientBuilder -> {
-                    try {
-                        return httpAsyncClientBuilder
-                                .setDefaultCredentialsProvider(credentialsProvider())
-                                .setSSLHostnameVerifier(NoopHostnameVerifier.INSTANCE)
-                                .setSSLContext(createInsecureSSLContext());
-                    } catch (Exception e) {
-                        throw new RuntimeException(e);
-                    }
-                })
-                .build();
+    @FunctionalInterface
+    public interface PageConsumer {
+        void accept(List<String> clientIds) throws IOException;
+    }
+
+    @FunctionalInterface
+    public interface ClientPageConsumer {
+        void accept(ClientPage page) throws IOException;
+    }
+
+    @Autowired
+    public ElasticsearchService(BatchProperties properties, BatchMetrics metrics) {
+        this(properties, metrics, RestClientFactory.build(properties.transport(), metrics));
+    }
+
+    /**
+     * Uses {@code restClient} as is, for example one pointing at a local stand-in.
+     */
+    public ElasticsearchService(BatchProperties properties, BatchMetrics metrics, RestClient restClient) {
+        this.properties = properties;
+        this.metrics = metrics;
+        this.requestRunner = new RequestRunner(properties.requests(), metrics);
+        this.restClient = restClient;
 
         // Create transport and client
-        ElasticsearchTransport transport = new RestClientTransport(restClient, new JacksonJsonpMapper());
+        ElasticsearchTransport transport = new RestClientTransport(restClient, mapper);
 
         client = new ElasticsearchClient(transport);
+        asyncClient = new ElasticsearchAsyncClient(transport);
     }
 
-    private CredentialsProvider credentialsProvider() {
-        CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
-        credentialsProvider.setCredentials(
-                AuthScope.ANY,
-                new UsernamePasswordCredentials(
-                        "elastic", "CJQ+govn44V*D-sNeyHp"));
-        return credentialsProvider;
+    public HealthStatus clusterHealth() throws IOException {
+        return client.cluster().health().status();
     }
 
-    private SSLContext createInsecureSSLContext() throws Exception {
-        SSLContext sslContext = SSLContext.getInstance("SSL");
-        sslContext.init(
-                null,
-                new TrustManager[] {
-                    new X509TrustManager() {
-                        public void checkClientTrusted(X509Certificate[] certs, String authType) {
-                            /* TODO document why this method is empty */
-                        }
+    /**
+     * JVM and thread pool statistics of every node, keyed by node id.
+     */
+    public Map<String, Stats> nodesStats() throws IOException {
+        return client.nodes().stats(s -> s.metric("jvm", "thread_pool")).nodes();
+    }
 
-                        public void checkServerTrusted(X509Certificate[] certs, String authType) {
-                            /* TODO document why this method is empty */
-                        }
+    /**
+     * Fixes what the event queries of this run are evaluated against: with {@code batch.cache.enabled}, their
+     * relative dates are counted back from {@code runTime} rounded down to the configured granularity, and with
+     * {@code batch.cache.routing}, the shard layouts of the event indices are read so that pages can be routed.
+     */
+    public void startRun(Instant runTime) throws IOException {
+        BatchProperties.Cache cache = properties.cache();
+        if (cache.enabled()) {
+            anchor = QueryBuilder.anchor(runTime, cache.granularity());
+            templates.clear();
+            log.info("Event queries are anchored at {}", anchor);
+        }
+        if (cache.routing()) {
+            List<ShardRouter.Layout> layouts = shardLayouts(QueryBuilder.EVENT_INDEX);
+            router = layouts.isEmpty() ? null : new ShardRouter(layouts);
+            if (router != null) {
+                log.info("Event pages are routed over {} shard groups", router.groups());
+            }
+        }
+    }
 
-                        public X509Certificate[] getAcceptedIssuers() {
-                            return new X509Certificate[0];
-                        }
-                    }
-                },
-                new SecureRandom());
-        return sslContext;
+    /**
+     * @return the instant relative dates of event queries are counted back from, or {@code null} for {@code now}
+     */
+    public Instant anchor() {
+        return anchor;
+    }
+
+    /**
+     * Request and query cache counts summed over every shard copy of {@code index}. They are cluster-wide: other
+     * searches on the same indices count as well.
+     */
+    public CacheStats cacheStats(String index) throws IOException {
+        IndexStats total = client.indices()
+                .stats(s -> s.index(index).metric("request_cache", "query_cache"))
+                .all()
+                .total();
+        if (total == null || total.requestCache() == null || total.queryCache() == null) {
+            return new CacheStats(0, 0, 0, 0);
+        }
+        return new CacheStats(
+                total.requestCache().hitCount(),
+                total.requestCache().missCount(),
+                total.queryCache().hitCount(),
+                total.queryCache().missCount());
+    }
+
+    /**
+     * The distinct shard layouts of the indices matching {@code index}, from the cluster metadata. Indices with a
+     * {@code routing_partition_size} spread one routing value over several shards, so none is returned for them.
+     */
+    private List<ShardRouter.Layout> shardLayouts(String index) throws IOException {
+        JsonObject indices = client.cluster()
+                .state(s -> s.metric("metadata").index(index))
+                .valueBody()
+                .toJson()
+                .asJsonObject()
+                .getJsonObject("metadata")
+                .getJsonObject("indices");
+        List<ShardRouter.Layout> layouts = new ArrayList<>();
+        for (Map.Entry<String, JsonValue> entry : indices.entrySet()) {
+            JsonObject metadata = entry.getValue().asJsonObject();
+            JsonObject settings = metadata.getJsonObject("settings").getJsonObject("index");
+            if (Integer.parseInt(settings.getString("routing_partition_size", "1")) > 1) {
+                log.warn("{} has a routing partition size, event pages are not routed", entry.getKey());
+                return List.of();
+            }
+            layouts.add(new ShardRouter.Layout(
+                    metadata.getInt("routing_num_shards"),
+                    Integer.parseInt(settings.getString("number_of_shards"))));
+        }
+        return layouts;
     }
 
-    public boolean healthCheck() throws IOException {
-        BooleanResponse ping = client.ping();
-        return ping.value();
+    /**
+     * Splits a page of client ids into one group per shard when event pages are routed.
+     *
+     * @return the ids of every group keyed by its routing value, a single {@code null} key when not routed
+     */
+    private Map<String, List<String>> route(List<String> clientIds) {
+        ShardRouter shardRouter = router;
+        return shardRouter == null ? Collections.singletonMap(null, clientIds) : shardRouter.group(clientIds);
+    }
+
+    private Boolean requestCache() {
+        return properties.cache().enabled() ? Boolean.TRUE : null;
     }
 
     public SearchResponse<Map> query(String index, Query query, boolean trackTotalHits) throws IOException {
@@ -110,22 +222,85 @@ public class ElasticsearchService implements AutoCloseable {
         }
     }
 
+    public String openPointInTime(String index, Time keepAlive) throws IOException {
+        return client.openPointInTime(p -> p.index(index).keepAlive(keepAlive)).id();
+    }
+
+    public void closePointInTime(String pitId) throws IOException {
+        client.closePointInTime(c -> c.id(pitId));
+    }
+
+    /**
+     * Creates {@code index} with {@code mappings} unless it exists. New indices start without replicas and without
+     * refreshes, for bulk loading; see {@link #finishBulkLoad}.
+     *
+     * @return whether the index was created
+     */
+    public boolean createIndexIfMissing(String index, TypeMapping mappings) throws IOException {
+        if (client.indices().exists(e -> e.index(index)).value()) {
+            return false;
+        }
+        client.indices().create(c -> c
+                .index(index)
+                .settings(settings -> settings.numberOfReplicas("0").refreshInterval(r -> r.time("-1")))
+                .mappings(mappings));
+        return true;
+    }
+
+    /**
+     * Turns periodic refreshes of {@code index} back on, gives it {@code replicas} replicas and makes everything
+     * loaded so far searchable.
+     */
+    public void finishBulkLoad(String index, int replicas) throws IOException {
+        client.indices().putSettings(p -> p.index(index).settings(settings -> settings
+                .numberOfReplicas(Integer.toString(replicas))
+                .refreshInterval(r -> r.time("1s"))));
+        client.indices().refresh(r -> r.index(index));
+    }
+
+    /**
+     * A bulk ingester that sends requests of up to {@code maxOperations} operations or {@code maxSizeBytes} bytes,
+     * with at most {@code maxConcurrentRequests} in flight; {@code add} blocks beyond that.
+     */
+    public BulkIngester<Void> bulkIngester(
+            int maxOperations, long maxSizeBytes, int maxConcurrentRequests, BulkListener<Void> listener) {
+        return BulkIngester.of(b -> b
+                .client(client)
+                .maxOperations(maxOperations)
+                .maxSize(maxSizeBytes)
+                .maxConcurrentRequests(maxConcurrentRequests)
+                .flushInterval(1, TimeUnit.SECONDS)
+                .listener(listener));
+    }
+
     @Override
     public void close() throws Exception {
+        requestRunner.close();
         client.close();
     }
 
-    // TODO: Execute this code
     public List<String> executeQueries(int pageNumber, int pageSize, int usecaseNumber) throws IOException {
         List<String> clientIds = executeClientsQuery(pageNumber, pageSize, usecaseNumber);
-        // return executeEventsQuerySingle(clientIds, usecaseNumber);
-        return executeEventsQueryTerms(clientIds);
+        return executeEventsQuery(clientIds, usecaseNumber);
     }
 
-    private List<String> executeClientsQuery(int pageNumber, int pageSize, int usecaseNumber) throws IOException {
-        log.info("Start executing clients query from {} with {} size", pageNumber * pageSize, pageSize);
-        StopWatch stopwatch = new StopWatch("executeQueries");
+    /**
+     * Returns the client ids of {@code clientIds} that match the event predicate of the use case, using the event
+     * strategy configured for it.
+     */
+    public List<String> executeEventsQuery(List<String> clientIds, int usecaseNumber) throws IOException {
+        if (clientIds.isEmpty()) {
+            return List.of();
+        }
+        return switch (properties.events().strategyFor(usecaseNumber)) {
+            case TERMS -> executeEventsQueryTerms(clientIds, usecaseNumber);
+            case SINGLE -> executeEventsQuerySingle(clientIds, usecaseNumber);
+            case AGGREGATION -> executeEventsQueryAggregation(clientIds, usecaseNumber);
+        };
+    }
 
+    private List<String> executeClientsQuery(int pageNumber, int pageSize, int usecaseNumber) throws IOException {
+        log.debug("Start executing clients query from {} with {} size", pageNumber * pageSize, pageSize);
         SearchRequest.Builder builder = new SearchRequest.Builder()
                 .index(QueryBuilder.CLIENT_INDEX)
                 .from(pageNumber * pageSize)
@@ -135,77 +310,631 @@ public class ElasticsearchService implements AutoCloseable {
                         source.filter(filter -> filter.includes(QueryBuilder.CLIENT_ID, "attributes.a_created_date")))
                 .sort(sort -> sort.field(field -> field.field("attributes.a_created_date")));
 
-        stopwatch.start("Client query from " + pageNumber + " with size " + pageSize);
+        BatchMetrics.Request request =
+                metrics.start(BatchMetrics.CLIENTS_PAGE, String.valueOf(usecaseNumber), QueryBuilder.CLIENT_INDEX);
+        List<String> clientIds = searchClientPage(QueryBuilder.CLIENT_INDEX, builder.build(), request).clientIds();
+        log.debug("Client query from {} with size {} took {}ms", pageNumber, pageSize, request.elapsedMillis());
 
-        SearchResponse<Map> response = client.search(builder.build(), Map.class);
-        List<String> clientIds = response.hits().hits().stream()
-                .map(h -> ((String) Objects.requireNonNull(h.source()).get("client_id")))
-                .toList();
+        return clientIds;
+    }
 
-        stopwatch.stop();
-        log.info("Client query from {} with size {} took {}ms", pageNumber, pageSize, stopwatch.getTotalTimeMillis());
+    /**
+     * Walks one slice of a point-in-time over the clients of a use case and hands every page of up to
+     * {@code batchSize} client ids to {@code pageConsumer} as soon as it is fetched. Pages are ordered by
+     * {@code _shard_doc}, so no client is skipped or repeated even while the underlying indices change.
+     *
+     * <p>Pages are fetched on the async client one request ahead: the request for page N+1 is on the wire while
+     * page N is decoded and consumed.
+     */
+    public void scanClientsSlice(
+            String pitId,
+            int sliceId,
+            int maxSlices,
+            int batchSize,
+            int usecaseNumber,
+            Time keepAlive,
+            PageConsumer pageConsumer)
+            throws IOException {
+        scanSlice(
+                pitId,
+                sliceId,
+                maxSlices,
+                batchSize,
+                String.valueOf(usecaseNumber),
+                QueryBuilder.buildClientQuery(usecaseNumber),
+                keepAlive,
+                page -> pageConsumer.accept(page.clientIds()));
+    }
 
-        return clientIds;
+    /**
+     * Same as {@link #scanClientsSlice} over the union of several use cases' client predicates
+     * ({@link QueryBuilder#buildFusedClientQuery}); each page carries, per client, the use cases it belongs to.
+     */
+    public void scanFusedClientsSlice(
+            String pitId,
+            int sliceId,
+            int maxSlices,
+            List<Integer> usecaseNumbers,
+            Time keepAlive,
+            ClientPageConsumer pageConsumer)
+            throws IOException {
+        Query query = QueryBuilder.buildFusedClientQuery(usecaseNumbers);
+        String usecases = usecaseNumbers.stream().map(String::valueOf).collect(Collectors.joining("+"));
+        scanSlice(pitId, sliceId, maxSlices, QueryBuilder.BATCH_SIZE, usecases, query, keepAlive, pageConsumer);
+    }
+
+    /**
+     * Walks the client ids matching {@code query} through a point-in-time in a single slice.
+     */
+    public void scanClients(String pitId, Query query, Time keepAlive, PageConsumer pageConsumer) throws IOException {
+        scanSlice(
+                pitId,
+                0,
+                1,
+                QueryBuilder.BATCH_SIZE,
+                BatchMetrics.ANY_USECASE,
+                query,
+                keepAlive,
+                page -> pageConsumer.accept(page.clientIds()));
+    }
+
+    /**
+     * Fetches the next page of client ids matching {@code query} in ({@code attributes.a_created_date},
+     * {@code client_id}) order, a sort key that stays valid across runs and can be checkpointed.
+     *
+     * @param searchAfter sort values of the last client of the previous page, {@code null} for the first page
+     */
+    public ClientPage searchClientsAfter(Query query, List<FieldValue> searchAfter) throws IOException {
+        SearchRequest.Builder builder = new SearchRequest.Builder()
+                .index(QueryBuilder.CLIENT_INDEX)
+                .size(QueryBuilder.BATCH_SIZE)
+                .trackTotalHits(tth -> tth.enabled(false))
+                .query(query)
+                .source(source -> source.filter(filter -> filter.includes(QueryBuilder.CLIENT_ID)))
+                .sort(sort -> sort.field(field -> field.field(QueryBuilder.CREATED_DATE).missing("_last")))
+                .sort(sort -> sort.field(field -> field.field(QueryBuilder.CLIENT_ID)));
+        if (searchAfter != null) {
+            builder = builder.searchAfter(searchAfter);
+        }
+        return searchClientPage(
+                QueryBuilder.CLIENT_INDEX,
+                builder.build(),
+                metrics.start(BatchMetrics.CLIENTS_AFTER, BatchMetrics.ANY_USECASE, QueryBuilder.CLIENT_INDEX));
+    }
+
+    /**
+     * @return the earliest and latest {@code attributes.a_created_date} of the clients matching {@code query}, in
+     *     epoch milliseconds, or empty when none of them has one
+     */
+    public Optional<CreatedDateRange> createdDateRange(Query query) throws IOException {
+        SearchResponse<Void> response = client.search(
+                s -> s.index(QueryBuilder.CLIENT_INDEX)
+                        .size(0)
+                        .trackTotalHits(tth -> tth.enabled(false))
+                        .query(query)
+                        .aggregations("min", a -> a.min(m -> m.field(QueryBuilder.CREATED_DATE)))
+                        .aggregations("max", a -> a.max(m -> m.field(QueryBuilder.CREATED_DATE))),
+                Void.class);
+        Double min = response.aggregations().get("min").min().value();
+        Double max = response.aggregations().get("max").max().value();
+        if (min == null || max == null || min.isInfinite() || max.isInfinite()) {
+            return Optional.empty();
+        }
+        return Optional.of(new CreatedDateRange(min.longValue(), max.longValue()));
+    }
+
+    private void scanSlice(
+            String pitId,
+            int sliceId,
+            int maxSlices,
+            int batchSize,
+            String usecase,
+            Query query,
+            Time keepAlive,
+            ClientPageConsumer pageConsumer)
+            throws IOException {
+        log.info("Start scanning clients slice {}/{}", sliceId, maxSlices);
+        long start = System.nanoTime();
+
+        QueryTemplate template = QueryTemplate.of(clientSliceRequest(sliceId, maxSlices, batchSize, query), mapper);
+        CompletableFuture<ClientPage> pending = searchClientPageAsync(
+                template.renderPointInTime(pitId, keepAlive.time(), null),
+                metrics.start(BatchMetrics.CLIENTS_SLICE, usecase, QueryBuilder.CLIENT_INDEX));
+        long scanned = 0;
+        while (pending != null) {
+            ClientPage page = await(pending);
+            List<String> clientIds = page.clientIds();
+            if (page.hits() == 0) {
+                break;
+            }
+            pending = null;
+            // Count hits, not ids: a hit without a client_id must not end the scan early
+            if (page.hits() == batchSize) {
+                String nextPitId = page.pitId() != null ? page.pitId() : pitId;
+                pending = searchClientPageAsync(
+                        template.renderPointInTime(nextPitId, keepAlive.time(), page.lastSort()),
+                        metrics.start(BatchMetrics.CLIENTS_SLICE, usecase, QueryBuilder.CLIENT_INDEX));
+            }
+            if (!clientIds.isEmpty()) {
+                pageConsumer.accept(page);
+            }
+
+            scanned += clientIds.size();
+        }
+
+        log.info(
+                "Client slice {}/{} scanned {} clients in {}ms",
+                sliceId,
+                maxSlices,
+                scanned,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * The page request of a slice without its point-in-time and {@code search_after}, which
+     * {@link QueryTemplate#renderPointInTime} adds per page.
+     */
+    private SearchRequest clientSliceRequest(int sliceId, int maxSlices, int batchSize, Query query) {
+        SearchRequest.Builder builder = new SearchRequest.Builder()
+                .size(batchSize)
+                .trackTotalHits(tth -> tth.enabled(false))
+                .query(query)
+                .source(source -> source.filter(filter -> filter.includes(QueryBuilder.CLIENT_ID)))
+                .sort(sort -> sort.field(field -> field.field(QueryBuilder.SHARD_DOC)));
+        if (maxSlices > 1) {
+            builder = builder.slice(slice -> slice.id(String.valueOf(sliceId)).max(maxSlices));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Runs a search that only needs client ids and sort values through the low-level client, with
+     * {@code filter_path} trimming the response and {@link ClientHitsReader} decoding it without building a
+     * {@code Map} per hit.
+     *
+     * @param index the target index, or {@code null} for point-in-time searches
+     */
+    private ClientPage searchClientPage(String index, SearchRequest request, BatchMetrics.Request timer)
+            throws IOException {
+        return searchClientPage(
+                index,
+                new StringEntity(JsonpUtils.toJsonString(request, mapper), ContentType.APPLICATION_JSON),
+                timer);
+    }
+
+    private ClientPage searchClientPage(String index, HttpEntity body, BatchMetrics.Request timer) throws IOException {
+        return searchClientPage(index, body, null, timer);
+    }
+
+    /**
+     * Sends the search through {@link RequestRunner} and decodes its page on the calling thread, recording the
+     * request on {@code timer}.
+     */
+    private ClientPage searchClientPage(String index, HttpEntity body, String routing, BatchMetrics.Request timer)
+            throws IOException {
+        try {
+            Response response = await(sendClientPage(index, body, routing, timer));
+            ClientPage page = readClientPage(response, timer);
+            timer.stop(page.clientIds().size());
+            return page;
+        } catch (IOException | RuntimeException e) {
+            timer.fail();
+            throw e;
+        }
+    }
+
+    private CompletableFuture<ClientPage> searchClientPageAsync(HttpEntity body, BatchMetrics.Request timer) {
+        return sendClientPage(null, body, null, timer).handle((response, error) -> {
+            try {
+                if (error != null) {
+                    throw error instanceof CompletionException ? error.getCause() : error;
+                }
+                ClientPage page = readClientPage(response, timer);
+                timer.stop(page.clientIds().size());
+                return page;
+            } catch (Throwable e) {
+                timer.fail();
+                throw e instanceof CompletionException completion ? completion : new CompletionException(e);
+            }
+        });
+    }
+
+    /**
+     * Point-in-time searches are bound to the shard copies the point-in-time was opened on, so only searches on an
+     * index are hedged.
+     */
+    private CompletableFuture<Response> sendClientPage(
+            String index, HttpEntity body, String routing, BatchMetrics.Request timer) {
+        return requestRunner.call(timer.stage(), index != null, preference -> {
+            CompletableFuture<Response> future = new CompletableFuture<>();
+            Cancellable cancellable = restClient.performRequestAsync(
+                    clientPageRequest(index, body, routing, preference), new ResponseListener() {
+                        @Override
+                        public void onSuccess(Response response) {
+                            future.complete(response);
+                        }
+
+                        @Override
+                        public void onFailure(Exception e) {
+                            future.completeExceptionally(e);
+                        }
+                    });
+            future.whenComplete((response, error) -> {
+                if (future.isCancelled()) {
+                    cancellable.cancel();
+                }
+            });
+            return future;
+        });
+    }
+
+    private static ClientPage readClientPage(Response response, BatchMetrics.Request timer) throws IOException {
+        try (CountingInputStream in = new CountingInputStream(response.getEntity().getContent())) {
+            ClientPage page = ClientHitsReader.read(in);
+            timer.addBytes(in.count());
+            return page;
+        }
+    }
+
+    /**
+     * The request cache is not used by point-in-time searches, so only searches on an index ask for it.
+     */
+    private Request clientPageRequest(String index, HttpEntity body, String routing, String preference) {
+        Request lowLevelRequest = new Request("POST", index == null ? "/_search" : "/" + index + "/_search");
+        lowLevelRequest.addParameter("filter_path", ClientHitsReader.FILTER_PATH);
+        if (index != null && properties.cache().enabled()) {
+            lowLevelRequest.addParameter("request_cache", "true");
+        }
+        if (routing != null) {
+            lowLevelRequest.addParameter("routing", routing);
+        }
+        if (preference != null) {
+            lowLevelRequest.addParameter("preference", preference);
+        }
+        lowLevelRequest.setEntity(body);
+        return lowLevelRequest;
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+            if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new IOException(cause);
+        }
     }
 
-    public List<String> executeEventsQueryTerms(List<String> clientIds) throws IOException {
-        log.info("Start executing events query terms with {} client ids", clientIds.size());
-        StopWatch stopwatch = new StopWatch();
+    public List<String> executeEventsQueryTerms(List<String> clientIds, int usecaseNumber) throws IOException {
+        log.debug("Start executing events query terms with {} client ids", clientIds.size());
+        long start = System.nanoTime();
         List<FieldValue> searchAfter = null;
+        // One hit per matching event: keep each client once so the page result stays proportional to clients
+        Set<String> resultIds = new LinkedHashSet<>();
+        QueryTemplate template = templates.computeIfAbsent("events-terms-" + usecaseNumber, key -> QueryTemplate.of(
+                new SearchRequest.Builder()
+                        .size(QueryBuilder.BATCH_SIZE)
+                        .query(QueryBuilder.buildEventQuery(usecaseNumber, List.of(QueryTemplate.CLIENT_IDS), anchor))
+                        .source(source -> source.filter(filter -> filter.includes(QueryBuilder.CLIENT_ID)))
+                        .sort(sort -> sort.field(field -> field.field("@timestamp")))
+                        .build(),
+                mapper));
+
+        for (Map.Entry<String, List<String>> group : route(clientIds).entrySet()) {
+            while (true) {
+                ClientPage page = searchClientPage(
+                        QueryBuilder.EVENT_INDEX,
+                        template.render(group.getValue(), searchAfter),
+                        group.getKey(),
+                        metrics.start(
+                                BatchMetrics.EVENTS_TERMS, String.valueOf(usecaseNumber), QueryBuilder.EVENT_INDEX));
+                resultIds.addAll(page.clientIds());
+                if (page.hits() < QueryBuilder.BATCH_SIZE) {
+                    break;
+                }
+
+                searchAfter = page.lastSort();
+            }
+            searchAfter = null;
+        }
+
+        log.debug(
+                "Event query with terms took {}ms for {} clients",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                clientIds.size());
+
+        return List.copyOf(resultIds);
+    }
+
+    /**
+     * Lets the cluster reduce the matching events to distinct client ids: the page is filtered with the same
+     * {@code terms} query as {@link #executeEventsQueryTerms}, but no hit is returned and the ids come back as
+     * composite aggregation buckets on {@code client_id}, paged with {@code after_key}.
+     */
+    public List<String> executeEventsQueryAggregation(List<String> clientIds, int usecaseNumber) throws IOException {
+        log.debug("Start executing events query aggregation with {} client ids", clientIds.size());
+        long start = System.nanoTime();
+
         List<String> resultIds = new ArrayList<>();
-        stopwatch.start("Event query with terms");
+        int requests = 0;
+        for (Map.Entry<String, List<String>> group : route(clientIds).entrySet()) {
+            requests += scanEventClientIds(
+                    QueryBuilder.buildEventQuery(usecaseNumber, group.getValue(), anchor),
+                    String.valueOf(usecaseNumber),
+                    properties.events().aggregationPageSize(),
+                    group.getKey(),
+                    resultIds::addAll);
+        }
+
+        log.debug(
+                "Event query with aggregation took {}ms and {} requests for {} clients",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                requests,
+                clientIds.size());
+
+        return resultIds;
+    }
+
+    /**
+     * Walks the distinct {@code client_id}s of the events matching {@code query} with a composite aggregation and
+     * hands them to {@code pageConsumer} one bucket page at a time.
+     *
+     * @return the number of requests sent
+     */
+    public int scanEventClientIds(Query query, String usecase, int pageSize, PageConsumer pageConsumer)
+            throws IOException {
+        return scanEventClientIds(query, usecase, pageSize, null, pageConsumer);
+    }
 
+    /**
+     * @param routing routing value restricting the scan to the shards it resolves to, or {@code null} for all shards
+     */
+    public int scanEventClientIds(
+            Query query, String usecase, int pageSize, String routing, PageConsumer pageConsumer)
+            throws IOException {
+        Map<String, FieldValue> afterKey = null;
+        int requests = 0;
         while (true) {
-            SearchRequest.Builder builder = new SearchRequest.Builder()
+            Map<String, FieldValue> after = afterKey;
+            Function<String, SearchRequest> request = preference -> new SearchRequest.Builder()
                     .index(QueryBuilder.EVENT_INDEX)
-                    .query(QueryBuilder.buildEventQueryUsecase2(clientIds))
-                    .source(source -> source.filter(filter -> filter.includes(QueryBuilder.CLIENT_ID, "@timestamp")))
-                    .sort(sort -> sort.field(field -> field.field("@timestamp")));
-            if (searchAfter != null) {
-                builder = builder.searchAfter(searchAfter);
+                    .preference(preference)
+                    .routing(routing)
+                    .requestCache(requestCache())
+                    .size(0)
+                    .trackTotalHits(tth -> tth.enabled(false))
+                    .query(query)
+                    .aggregations(QueryBuilder.CLIENTS_AGGREGATION, a -> a.composite(c -> {
+                        c.size(pageSize).sources(List.of(Map.of(
+                                QueryBuilder.CLIENT_ID,
+                                CompositeAggregationSource.of(
+                                        source -> source.terms(t -> t.field(QueryBuilder.CLIENT_ID))))));
+                        return after == null ? c : c.after(after);
+                    }))
+                    .build();
+
+            BatchMetrics.Request timer =
+                    metrics.start(BatchMetrics.EVENTS_AGGREGATION, usecase, QueryBuilder.EVENT_INDEX);
+            SearchResponse<Void> response;
+            try {
+                response = await(requestRunner.call(
+                        timer.stage(), true, preference -> asyncClient.search(request.apply(preference), Void.class)));
+            } catch (IOException | RuntimeException e) {
+                timer.fail();
+                throw e;
+            }
+            requests++;
+            CompositeAggregate aggregate =
+                    response.aggregations().get(QueryBuilder.CLIENTS_AGGREGATION).composite();
+            List<CompositeBucket> buckets = aggregate.buckets().array();
+            timer.stop(buckets.size());
+            if (!buckets.isEmpty()) {
+                pageConsumer.accept(buckets.stream()
+                        .map(bucket -> bucket.key().get(QueryBuilder.CLIENT_ID).stringValue())
+                        .toList());
             }
+            afterKey = aggregate.afterKey();
+            if (buckets.size() < pageSize || afterKey == null || afterKey.isEmpty()) {
+                return requests;
+            }
+        }
+    }
 
-            SearchResponse<Map> response = client.search(builder.build(), Map.class);
-            List<Hit<Map>> hits = response.hits().hits();
-            if (hits.isEmpty()) {
-                break;
+    /**
+     * Returns the client ids of {@code clientIds} that match the client query of the use case.
+     */
+    public List<String> filterClients(List<String> clientIds, int usecaseNumber) throws IOException {
+        QueryTemplate template = templates.computeIfAbsent("clients-filter-" + usecaseNumber, key -> QueryTemplate.of(
+                new SearchRequest.Builder()
+                        .size(QueryBuilder.BATCH_SIZE)
+                        .trackTotalHits(tth -> tth.enabled(false))
+                        .query(QueryBuilder.buildClientQuery(usecaseNumber, List.of(QueryTemplate.CLIENT_IDS)))
+                        .source(source -> source.filter(filter -> filter.includes(QueryBuilder.CLIENT_ID)))
+                        .build(),
+                mapper));
+        BatchMetrics.Request timer =
+                metrics.start(BatchMetrics.CLIENTS_FILTER, String.valueOf(usecaseNumber), QueryBuilder.CLIENT_INDEX);
+        return searchClientPage(QueryBuilder.CLIENT_INDEX, template.render(clientIds, null), timer).clientIds();
+    }
+
+    public long count(String index, Query query) throws IOException {
+        return client.count(c -> c.index(index).query(query)).count();
+    }
+
+    /**
+     * Estimates the number of distinct clients with events matching {@code query} with a {@code size(0)} search and a
+     * {@code cardinality} aggregation.
+     */
+    public long countDistinctEventClients(Query query) throws IOException {
+        SearchResponse<Void> response = client.search(
+                s -> s.index(QueryBuilder.EVENT_INDEX)
+                        .size(0)
+                        .trackTotalHits(tth -> tth.enabled(false))
+                        .query(query)
+                        .aggregations(QueryBuilder.CLIENTS_AGGREGATION, a -> a.cardinality(
+                                c -> c.field(QueryBuilder.CLIENT_ID).precisionThreshold(40_000))),
+                Void.class);
+        return response.aggregations().get(QueryBuilder.CLIENTS_AGGREGATION).cardinality().value();
+    }
+
+    /**
+     * Evaluates the event predicates of several use cases in one {@code _msearch}: one {@code size(0)} search per use
+     * case over the ids tagged with it, each returning the matching ids as {@code terms} buckets on
+     * {@code client_id}.
+     *
+     * @param clientIdsByUsecase client ids to check, keyed by use case number
+     * @return the matching client ids, keyed by use case number
+     */
+    public Map<Integer, List<String>> executeEventsQueryFused(Map<Integer, List<String>> clientIdsByUsecase)
+            throws IOException {
+        log.debug("Start executing fused events query for use cases {}", clientIdsByUsecase.keySet());
+
+        List<Integer> usecaseNumbers = clientIdsByUsecase.entrySet().stream()
+                .filter(entry -> !entry.getValue().isEmpty())
+                .map(Map.Entry::getKey)
+                .toList();
+        Map<Integer, List<String>> resultIds = new LinkedHashMap<>();
+        if (usecaseNumbers.isEmpty()) {
+            return resultIds;
+        }
+        MsearchRequest.Builder builder = new MsearchRequest.Builder();
+        // Use case of every search, which is one per use case and shard group
+        List<Integer> searchUsecases = new ArrayList<>();
+        for (int usecaseNumber : usecaseNumbers) {
+            resultIds.put(usecaseNumber, new ArrayList<>());
+            for (Map.Entry<String, List<String>> group : route(clientIdsByUsecase.get(usecaseNumber)).entrySet()) {
+                List<String> clientIds = group.getValue();
+                searchUsecases.add(usecaseNumber);
+                builder.searches(search -> search
+                        .header(header -> header
+                                .index(QueryBuilder.EVENT_INDEX)
+                                .routing(group.getKey())
+                                .requestCache(requestCache()))
+                        .body(body -> body
+                                .query(QueryBuilder.buildEventQuery(usecaseNumber, clientIds, anchor))
+                                .size(0)
+                                .trackTotalHits(tth -> tth.enabled(false))
+                                .aggregations(QueryBuilder.CLIENTS_AGGREGATION, a -> a.terms(
+                                        t -> t.field(QueryBuilder.CLIENT_ID).size(clientIds.size())))));
             }
-            resultIds.addAll(hits.stream()
-                    .map(h -> ((String) Objects.requireNonNull(h.source()).get("client_id")))
-                    .toList());
+        }
 
-            searchAfter = hits.getLast().sort();
+        String usecases = usecaseNumbers.stream().map(String::valueOf).collect(Collectors.joining("+"));
+        BatchMetrics.Request timer = metrics.start(BatchMetrics.EVENTS_FUSED, usecases, QueryBuilder.EVENT_INDEX);
+        MsearchRequest request = builder.build();
+        MsearchResponse<Void> response;
+        try {
+            response = await(requestRunner.call(
+                    timer.stage(), false, preference -> asyncClient.msearch(request, Void.class)));
+        } catch (IOException | RuntimeException e) {
+            timer.fail();
+            throw e;
+        }
+        for (int i = 0; i < searchUsecases.size(); i++) {
+            MultiSearchResponseItem<Void> item = response.responses().get(i);
+            if (item.isFailure()) {
+                timer.fail();
+                throw new IOException("Fused event query failed for use case "
+                        + searchUsecases.get(i) + ": " + item.failure().error().reason());
+            }
+            List<String> matched = resultIds.get(searchUsecases.get(i));
+            item.result().aggregations()
+                    .get(QueryBuilder.CLIENTS_AGGREGATION)
+                    .sterms()
+                    .buckets()
+                    .array()
+                    .forEach(bucket -> matched.add(bucket.key().stringValue()));
         }
 
-        stopwatch.stop();
-        log.info("Event query with terms took {}ms for {} clients", stopwatch.getTotalTimeMillis(), clientIds.size());
+        long latency = timer.stop(resultIds.values().stream().mapToInt(List::size).sum());
+        log.debug("Fused event query took {}ms for {} use cases", latency, usecaseNumbers.size());
 
         return resultIds;
     }
 
-    public List<String> executeEventsQuerySingle(List<String> clientIds) throws IOException {
-        log.info("Start executing events query single with {} client ids", clientIds.size());
-        StopWatch stopwatch = new StopWatch();
-        stopwatch.start("Event query with a single client at a time");
+    public List<String> executeEventsQuerySingle(List<String> clientIds, int usecaseNumber) throws IOException {
+        log.debug("Start executing events query single with {} client ids", clientIds.size());
+        long start = System.nanoTime();
 
-        List<String> resultIds = new ArrayList<>();
-        for (String clientId : clientIds) {
-            SearchRequest.Builder builder = new SearchRequest.Builder()
-                    .index(QueryBuilder.EVENT_INDEX)
-                    .query(QueryBuilder.buildEventQueryUsecase2(clientId));
-            SearchResponse<Map> response = client.search(builder.build(), Map.class);
-            if (response.hits().hits().isEmpty()) {
-                continue;
+        int batchSize = properties.events().msearchBatchSize();
+        Semaphore inFlight = new Semaphore(properties.events().msearchMaxInFlight());
+        List<CompletableFuture<List<String>>> batches = new ArrayList<>();
+        try {
+            for (int from = 0; from < clientIds.size(); from += batchSize) {
+                List<String> batch = clientIds.subList(from, Math.min(from + batchSize, clientIds.size()));
+                inFlight.acquire();
+                batches.add(executeEventsExistsBatch(batch, usecaseNumber)
+                        .whenComplete((result, error) -> inFlight.release()));
             }
-            resultIds.add(clientId);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while sending _msearch batches", e);
         }
 
-        stopwatch.stop();
-        log.info(
-                "Event query with a single client at a time took {}ms for {} clients",
-                stopwatch.getTotalTimeMillis(),
-                clientIds.size());
+        List<String> resultIds = new ArrayList<>();
+        for (CompletableFuture<List<String>> batch : batches) {
+            resultIds.addAll(await(batch));
+        }
+
+        log.debug(
+                "Event query with a single client at a time took {}ms for {} clients in {} _msearch batches",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                clientIds.size(),
+                batches.size());
 
         return resultIds;
     }
+
+    private CompletableFuture<List<String>> executeEventsExistsBatch(List<String> batch, int usecaseNumber) {
+        MsearchRequest.Builder builder = new MsearchRequest.Builder();
+        // A search for one client is routed by that client's id, no grouping needed
+        boolean routed = router != null;
+        for (String clientId : batch) {
+            builder.searches(search -> search
+                    .header(header -> header
+                            .index(QueryBuilder.EVENT_INDEX)
+                            .routing(routed ? clientId : null)
+                            .requestCache(requestCache()))
+                    .body(body -> body
+                            .query(QueryBuilder.buildEventQuery(usecaseNumber, clientId, anchor))
+                            .size(0)
+                            .terminateAfter(1L)
+                            .trackTotalHits(tth -> tth.enabled(true))));
+        }
+
+        BatchMetrics.Request timer =
+                metrics.start(BatchMetrics.EVENTS_MSEARCH, String.valueOf(usecaseNumber), QueryBuilder.EVENT_INDEX);
+        MsearchRequest request = builder.build();
+        return requestRunner.call(timer.stage(), false, preference -> asyncClient.msearch(request, Void.class))
+                .whenComplete((response, error) -> {
+                    if (error != null) {
+                        timer.fail();
+                    }
+                })
+                .thenApply(response -> {
+                    List<String> matched = new ArrayList<>();
+                    List<MultiSearchResponseItem<Void>> items = response.responses();
+                    for (int i = 0; i < items.size(); i++) {
+                        MultiSearchResponseItem<Void> item = items.get(i);
+                        if (item.isFailure()) {
+                            timer.fail();
+                            throw new CompletionException(new IOException("_msearch failed for client "
+                                    + batch.get(i) + ": " + item.failure().error().reason()));
+                        }
+                        TotalHits total = item.result().hits().total();
+                        if (total != null && total.value() > 0) {
+                            matched.add(batch.get(i));
+                        }
+                    }
+
+                    long latency = timer.stop(matched.size());
+                    log.debug("_msearch batch of {} clients took {}ms", batch.size(), latency);
+                    return matched;
+                });
+    }
 }
@@ -0,0 +1,75 @@
+package thinkmath.com.batch.util;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import thinkmath.com.batch.config.BatchProperties;
+import thinkmath.com.batch.dto.JoinPlan;
+import thinkmath.com.batch.dto.JoinPlan.DrivingSide;
+
+import java.io.IOException;
+
+/**
+ * Picks the driving side of a use case from two cheap probes: a {@code _count} of the client predicate and a
+ * {@code cardinality} of the clients matching the event predicate. Both plans cost two round trips per page of the
+ * driving side (one to list a page of ids, one to check it against the other side), so the smaller side drives,
+ * with {@code eventDrivenRatio} as a margin for the cardinality estimate and the heavier composite aggregation.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class JoinPlanner {
+    private final ElasticsearchService client;
+    private final BatchProperties properties;
+
+    public JoinPlan plan(int usecaseNumber) throws IOException {
+        long start = System.nanoTime();
+        long clients = client.count(QueryBuilder.CLIENT_INDEX, QueryBuilder.buildClientQuery(usecaseNumber));
+        long eventClients =
+                client.countDistinctEventClients(QueryBuilder.buildEventQuery(usecaseNumber, client.anchor()));
+        long probeMillis = Math.max(1, (System.nanoTime() - start) / 2_000_000);
+
+        DrivingSide drivingSide = eventClients <= clients * properties.planner().eventDrivenRatio()
+                ? DrivingSide.EVENTS
+                : DrivingSide.CLIENTS;
+        long driving = drivingSide == DrivingSide.EVENTS ? eventClients : clients;
+        int parallelism = Math.max(1, properties.pipeline().maxInFlightPages());
+        int batchSize = Math.clamp(
+                ceilDiv(driving, parallelism), properties.planner().minBatchSize(), QueryBuilder.BATCH_SIZE);
+        long pages = ceilDiv(driving, batchSize);
+        long requests = 2 * pages;
+        long estimatedMillis = requests * probeMillis / Math.min(parallelism, Math.max(1, pages));
+
+        JoinPlan plan = new JoinPlan(
+                usecaseNumber, drivingSide, clients, eventClients, batchSize, requests, estimatedMillis);
+        log.info(
+                "Use case {} plan: {}-driven with batch size {} ({} clients, ~{} event clients), "
+                        + "estimated {} requests and {}ms",
+                usecaseNumber,
+                drivingSide,
+                batchSize,
+                clients,
+                eventClients,
+                requests,
+                estimatedMillis);
+        return plan;
+    }
+
+    /**
+     * Logs the estimated cost of {@code plan} next to what the run actually took.
+     */
+    public void report(JoinPlan plan, long actualRequests, long actualMillis) {
+        log.info(
+                "Use case {} {}-driven plan: estimated {} requests and {}ms, actual {} requests and {}ms",
+                plan.usecaseNumber(),
+                plan.drivingSide(),
+                plan.estimatedRequests(),
+                plan.estimatedMillis(),
+                actualRequests,
+                actualMillis);
+    }
+
+    private static long ceilDiv(long value, long divisor) {
+        return Math.max(1, Math.ceilDiv(value, divisor));
+    }
+}
@@ -7,9 +7,12 @@ import co.elastic.clients.elasticsearch._types.query_dsl.Query;
 import co.elastic.clients.util.ObjectBuilder;
 import lombok.experimental.UtilityClass;
 
+import java.time.Duration;
+import java.time.Instant;
 import java.util.Arrays;
 import java.util.List;
 import java.util.function.Function;
+import java.util.function.UnaryOperator;
 
 @UtilityClass
 public class QueryBuilder {
@@ -17,6 +20,11 @@ public class QueryBuilder {
     public final String CLIENT_INDEX = "clients-*";
     public final String EVENT_INDEX = "events-*";
     public final String CLIENT_ID = "client_id";
+    public final String CREATED_DATE = "attributes.a_created_date";
+    public final String SHARD_DOC = "_shard_doc";
+    public final String CLIENTS_AGGREGATION = "clients";
+    public final String USECASE_QUERY_PREFIX = "usecase-";
+    public final String NOW = "now";
     public static final int FIXED_THREAD_POOL = 3;
 
     public Query buildClientQuery(int usecaseNumber) {
@@ -28,6 +36,160 @@ public class QueryBuilder {
         };
     }
 
+    public Query buildEventQuery(int usecaseNumber, List<String> clientIds) {
+        return buildEventQuery(usecaseNumber, clientIds, null);
+    }
+
+    /**
+     * The event query of a use case restricted to {@code clientIds}, with its relative dates counted back from
+     * {@code anchor}, or from the cluster's {@code now} when it is {@code null}.
+     */
+    public Query buildEventQuery(int usecaseNumber, List<String> clientIds, Instant anchor) {
+        List<FieldValue> clients = clientIds.stream().map(FieldValue::of).toList();
+        UnaryOperator<BoolQuery.Builder> predicate = eventPredicate(usecaseNumber, anchor);
+        return Query.of(q -> q.bool(b -> predicate.apply(b)
+                .filter(f -> f.terms(t -> t.field(CLIENT_ID).terms(ts -> ts.value(clients))))));
+    }
+
+    public Query buildEventQuery(int usecaseNumber, String clientId) {
+        return buildEventQuery(usecaseNumber, clientId, null);
+    }
+
+    public Query buildEventQuery(int usecaseNumber, String clientId, Instant anchor) {
+        UnaryOperator<BoolQuery.Builder> predicate = eventPredicate(usecaseNumber, anchor);
+        return Query.of(q -> q.bool(b -> predicate.apply(b)
+                .filter(f -> f.term(t -> t.field(CLIENT_ID).value(clientId)))));
+    }
+
+    /**
+     * The event predicate of a use case on its own, without any client id filter.
+     */
+    public Query buildEventQuery(int usecaseNumber) {
+        return buildEventQuery(usecaseNumber, (Instant) null);
+    }
+
+    public Query buildEventQuery(int usecaseNumber, Instant anchor) {
+        return Query.of(q -> q.bool(eventPredicate(usecaseNumber, anchor)::apply));
+    }
+
+    /**
+     * {@code runTime} rounded down to a multiple of {@code granularity} since the epoch, so that every run within the
+     * same interval sends the same date ranges and can be answered from the shard caches. Date math against
+     * {@code now} is never cached.
+     */
+    public Instant anchor(Instant runTime, Duration granularity) {
+        long step = granularity.toMillis();
+        if (step <= 0) {
+            return runTime;
+        }
+        return Instant.ofEpochMilli(Math.floorDiv(runTime.toEpochMilli(), step) * step);
+    }
+
+    /**
+     * The root of the date math of the event predicates: {@code now}, or {@code anchor} as an explicit date.
+     */
+    private static String dateRoot(Instant anchor) {
+        return anchor == null ? NOW : anchor + "||";
+    }
+
+    private static UnaryOperator<BoolQuery.Builder> eventPredicate(int usecaseNumber, Instant anchor) {
+        String now = dateRoot(anchor);
+        return switch (usecaseNumber) {
+            case 1 -> b -> getEventLoginPast30Days(b, now);
+            case 2 -> b -> getVietQRNotDisbursed(b, now);
+            case 3 -> b -> getNotYetInstallmentPayment(b, now);
+            default -> throw new IllegalStateException("This use case doesn't have an event query: " + usecaseNumber);
+        };
+    }
+
+    /**
+     * The client query of a use case restricted to {@code clientIds}.
+     */
+    public Query buildClientQuery(int usecaseNumber, List<String> clientIds) {
+        List<FieldValue> clients = clientIds.stream().map(FieldValue::of).toList();
+        Query clientQuery = buildClientQuery(usecaseNumber);
+        return Query.of(q -> q.bool(b -> b
+                .filter(clientQuery)
+                .filter(f -> f.terms(t -> t.field(CLIENT_ID).terms(ts -> ts.value(clients))))));
+    }
+
+    /**
+     * Events that may have changed a use case's outcome since {@code since}: its own event types logged at or after
+     * {@code since}, or old enough to have crossed one of its {@code now-Nd} window boundaries since then.
+     * Keep {@link #usecaseEventNames} and {@link #usecaseWindows} in line with the event predicates.
+     */
+    public Query buildChangedEventQuery(int usecaseNumber, Instant since) {
+        return buildChangedEventQuery(usecaseNumber, since, null);
+    }
+
+    public Query buildChangedEventQuery(int usecaseNumber, Instant since, Instant anchor) {
+        String now = dateRoot(anchor);
+        List<FieldValue> eventNames = usecaseEventNames(usecaseNumber).stream().map(FieldValue::of).toList();
+        return Query.of(q -> q.bool(b -> {
+            b.filter(f -> f.terms(t -> t.field("event_name").terms(ts -> ts.value(eventNames))))
+                    .should(s -> s.range(r -> r.date(DateRangeQuery.of(
+                            d -> d.field("@timestamp").gte(since.toString())))))
+                    .minimumShouldMatch("1");
+            for (String window : usecaseWindows(usecaseNumber)) {
+                b.should(s -> s.range(r -> r.date(DateRangeQuery.of(d -> d.field("@timestamp")
+                        .gte(since + "||-" + window + "/d")
+                        .lt(now + "-" + window)))));
+            }
+            return b;
+        }));
+    }
+
+    /**
+     * Client documents whose {@code updatedField} is at or after {@code since}.
+     */
+    public Query buildUpdatedClientQuery(String updatedField, Instant since) {
+        return Query.of(q -> q.range(r -> r.date(DateRangeQuery.of(d -> d.field(updatedField).gte(since.toString())))));
+    }
+
+    private static List<String> usecaseEventNames(int usecaseNumber) {
+        return switch (usecaseNumber) {
+            case 1 -> List.of("ins_dangnhap_success");
+            case 2 -> List.of("ins_vay_giaingan_success", "ins_vay_dangky_success", "push_delivered");
+            case 3 -> List.of("ins_the_giaodich", "ins_card_tragop_success");
+            default -> throw new IllegalStateException("This use case doesn't have an event query: " + usecaseNumber);
+        };
+    }
+
+    private static List<String> usecaseWindows(int usecaseNumber) {
+        return switch (usecaseNumber) {
+            case 1 -> List.of("15d", "30d");
+            case 2 -> List.of("30d");
+            case 3 -> List.of("1d", "30d");
+            default -> throw new IllegalStateException("This use case doesn't have an event query: " + usecaseNumber);
+        };
+    }
+
+    /**
+     * The client query of a use case restricted to clients created in {@code [createdFrom, createdTo)}, in epoch
+     * milliseconds. Either bound may be {@code null}; without an upper bound, clients with no creation date are
+     * included as well.
+     */
+    public Query buildClientQuery(int usecaseNumber, Long createdFrom, Long createdTo) {
+        Query clientQuery = buildClientQuery(usecaseNumber);
+        Query createdRange = Query.of(q -> q.range(r -> r.date(DateRangeQuery.of(d -> {
+            d.field(CREATED_DATE).format("epoch_millis");
+            if (createdFrom != null) {
+                d.gte(String.valueOf(createdFrom));
+            }
+            return createdTo == null ? d : d.lt(String.valueOf(createdTo));
+        }))));
+        return Query.of(q -> q.bool(b -> {
+            b.filter(clientQuery);
+            if (createdTo != null) {
+                return b.filter(createdRange);
+            }
+            return b.filter(f -> f.bool(range -> range
+                    .should(createdRange)
+                    .should(s -> s.bool(missing -> missing.mustNot(mn -> mn.exists(e -> e.field(CREATED_DATE)))))
+                    .minimumShouldMatch("1")));
+        }));
+    }
+
     public Query buildClientQueryUsecase1() {
         return Query.of(excludeCertainCustomers());
     }
@@ -37,21 +199,58 @@ public class QueryBuilder {
     }
 
     public Query buildClientQueryUsecase3() {
-        return Query.of(q -> q.bool(b -> b.must(m -> m.bool(innerBool -> innerBool
-                .must(mt -> mt.match(t -> t.field("attributes.a_c_ins_credit_card").query("true")))
-        )).filter(QueryBuilder::excludeVipCustomer)));
+        return Query.of(q -> q.bool(b -> b.must(QueryBuilder::creditCardCustomer)
+                .filter(QueryBuilder::excludeVipCustomer)));
     }
 
     public Function<Query.Builder, ObjectBuilder<Query>> excludeCertainCustomers() {
-        return q -> q.bool(b -> b.must(m -> m.bool(innerBool -> innerBool
-                        .should(s -> s.range(r -> r.term(
-                                y -> y.field("attributes.a_c_ins_loyalty_point").lt("1000"))))
-                        .should(s -> s.bool(
-                                b2 -> b2.mustNot(mn -> mn.exists(e -> e.field("attributes.a_c_ins_loyalty_point")))))
-                        .minimumShouldMatch("1")))
+        return q -> q.bool(b -> b.must(QueryBuilder::lowLoyaltyCustomer)
                 .filter(QueryBuilder::excludeVipCustomer));
     }
 
+    /**
+     * One query for several use cases: the shared non-VIP population, with each use case's own client predicate as a
+     * named {@code should} clause. The {@code matched_queries} of a hit tell which use cases the client belongs to.
+     */
+    public Query buildFusedClientQuery(List<Integer> usecaseNumbers) {
+        return Query.of(q -> q.bool(b -> {
+            b.filter(QueryBuilder::excludeVipCustomer).minimumShouldMatch("1");
+            for (int usecaseNumber : usecaseNumbers) {
+                b.should(s -> s.bool(named -> named
+                        .must(clientPredicate(usecaseNumber))
+                        .queryName(usecaseQueryName(usecaseNumber))));
+            }
+            return b;
+        }));
+    }
+
+    public String usecaseQueryName(int usecaseNumber) {
+        return USECASE_QUERY_PREFIX + usecaseNumber;
+    }
+
+    private static Function<Query.Builder, ObjectBuilder<Query>> clientPredicate(int usecaseNumber) {
+        return switch (usecaseNumber) {
+            case 1 -> QueryBuilder::lowLoyaltyCustomer;
+            case 2 -> q -> q.matchAll(m -> m);
+            case 3 -> QueryBuilder::creditCardCustomer;
+            default -> throw new IllegalStateException("This use case doesn't have a query: " + usecaseNumber);
+        };
+    }
+
+    private static ObjectBuilder<Query> lowLoyaltyCustomer(Query.Builder m) {
+        return m.bool(innerBool -> innerBool
+                .should(s -> s.range(r -> r.term(
+                        y -> y.field("attributes.a_c_ins_loyalty_point").lt("1000"))))
+                .should(s -> s.bool(
+                        b2 -> b2.mustNot(mn -> mn.exists(e -> e.field("attributes.a_c_ins_loyalty_point")))))
+                .minimumShouldMatch("1"));
+    }
+
+    private static ObjectBuilder<Query> creditCardCustomer(Query.Builder m) {
+        return m.bool(innerBool -> innerBool
+                .must(mt -> mt.match(t -> t.field("attributes.a_c_ins_credit_card").query("true"))));
+    }
+
     private static ObjectBuilder<Query> excludeVipCustomer(Query.Builder m) {
         return m.bool(innerBool -> innerBool
                 .mustNot(mn -> mn.term(
@@ -70,81 +269,71 @@ public class QueryBuilder {
     }
 
     public Query buildEventQueryUsecase1(List<String> clientIds) {
-        List<FieldValue> clients = clientIds.stream().map(FieldValue::of).toList();
-        return Query.of(q -> q.bool(b -> getEventLoginPast30Days(b)
-                .filter(f -> f.terms(t -> t.field(CLIENT_ID).terms(ts -> ts.value(clients))))));
+        return buildEventQuery(1, clientIds);
     }
 
-    public BoolQuery.Builder getEventLoginPast30Days(BoolQuery.Builder b) {
+    public BoolQuery.Builder getEventLoginPast30Days(BoolQuery.Builder b, String now) {
         return b.must(m -> m.term(t -> t.field("event_name").value("ins_dangnhap_success")))
                 .mustNot(mn -> mn.bool(
                         bn -> bn.must(m -> m.term(t -> t.field("event_name").value("ins_dangnhap_success")))
                                 .must(m -> m.range(r -> r.date(DateRangeQuery.of(d ->
-                                        d.field("@timestamp").gte("now-15d/d").lt("now/d")))))))
+                                        d.field("@timestamp").gte(now + "-15d/d").lt(now + "/d")))))))
                 .filter(f -> f.range(r -> r.date(DateRangeQuery.of(
-                        d -> d.field("@timestamp").gte("now-30d/d").lt("now-15d/d")))));
+                        d -> d.field("@timestamp").gte(now + "-30d/d").lt(now + "-15d/d")))));
     }
 
     public Query buildEventQueryUsecase1(String clientId) {
-        return Query.of(q -> q.bool(b -> getEventLoginPast30Days(b)
-                .filter(f -> f.term(t -> t.field(CLIENT_ID).value(clientId)))));
+        return buildEventQuery(1, clientId);
     }
 
     public Query buildEventQueryUsecase2(List<String> clientIds) {
-        List<FieldValue> clients = clientIds.stream().map(FieldValue::of).toList();
-        return Query.of(q -> q.bool(b -> getVietQRNotDisbursed(b)
-                .filter(f -> f.terms(t -> t.field(CLIENT_ID).terms(ts -> ts.value(clients))))
-        ));
+        return buildEventQuery(2, clientIds);
     }
 
-    private static BoolQuery.Builder getVietQRNotDisbursed(BoolQuery.Builder b) {
+    private static BoolQuery.Builder getVietQRNotDisbursed(BoolQuery.Builder b, String now) {
         return b
                 .must(m -> m.bool(innerBool -> innerBool
                         .must(m1 -> m1.bool(b1 -> b1
                                 .must(mt -> mt.term(t -> t.field("event_name").value("ins_vay_giaingan_success")))
-                                .must(mt -> mt.range(r -> r.date(DateRangeQuery.of(d -> d.field("@timestamp").lt("now-30d")))))
+                                .must(mt -> mt.range(r -> r.date(DateRangeQuery.of(d -> d.field("@timestamp").lt(now + "-30d")))))
                                 .must(mt -> mt.match(m2 -> m2.field("ins_vay_success_term").query("tháng")))
                                 .must(mt -> mt.match(m2 -> m2.field("ins_vay_success_type").query("Tín dụng VietQR")))
                         ))
                         .must(m1 -> m1.bool(b1 -> b1
                                 .must(mt -> mt.term(t -> t.field("event_name").value("ins_vay_dangky_success")))
-                                .must(mt -> mt.range(r -> r.date(DateRangeQuery.of(d -> d.field("@timestamp").gte("now-30d")))))
+                                .must(mt -> mt.range(r -> r.date(DateRangeQuery.of(d -> d.field("@timestamp").gte(now + "-30d")))))
                                 .must(mt -> mt.match(m2 -> m2.field("ins_vay_success_type").query("Tín dụng VietQR")))
                                 .must(mt -> mt.match(m2 -> m2.field("ins_vay_success_type").query("tháng")))
                         ))
                 ))
                 .should(s -> s.bool(b1 -> b1
                         .must(mt -> mt.term(t -> t.field("event_name").value("push_delivered")))
-                        .must(mt -> mt.range(r -> r.date(DateRangeQuery.of(d -> d.field("@timestamp").gte("now-30d")))))
+                        .must(mt -> mt.range(r -> r.date(DateRangeQuery.of(d -> d.field("@timestamp").gte(now + "-30d")))))
                         .must(mt -> mt.term(t -> t.field("e_journey_id").value("1861")))
                 ))
                 .should(s -> s.bool(b1 -> b1
                         .must(mt -> mt.term(t -> t.field("event_name").value("push_delivered")))
-                        .must(mt -> mt.range(r -> r.date(DateRangeQuery.of(d -> d.field("@timestamp").gte("now-30d")))))
+                        .must(mt -> mt.range(r -> r.date(DateRangeQuery.of(d -> d.field("@timestamp").gte(now + "-30d")))))
                         .must(mt -> mt.term(t -> t.field("e_journey_id").value("1865")))
                 ))
                 .minimumShouldMatch(String.valueOf(1));
     }
 
     public Query buildEventQueryUsecase2(String clientId) {
-        return Query.of(q -> q.bool(b -> getVietQRNotDisbursed(b)
-                .filter(f -> f.term(t -> t.field(CLIENT_ID).value(clientId)))));
+        return buildEventQuery(2, clientId);
     }
 
     public Query buildEventQueryUsecase3(List<String> clientIds) {
-        List<FieldValue> clients = clientIds.stream().map(FieldValue::of).toList();
-        return Query.of(q -> q.bool(b -> getNotYetInstallmentPayment(b)
-                .filter(f -> f.terms(t -> t.field(CLIENT_ID).terms(ts -> ts.value(clients))))
-        ));
+        return buildEventQuery(3, clientIds);
     }
 
-    private static BoolQuery.Builder getNotYetInstallmentPayment(BoolQuery.Builder b) {
+    private static BoolQuery.Builder getNotYetInstallmentPayment(BoolQuery.Builder b, String now) {
             return b
                 .must(m -> m.bool(innerBool -> innerBool
                         // Transaction conditions
                         .must(m1 -> m1.bool(b1 -> b1
                                 .must(mt -> mt.term(t -> t.field("event_name").value("ins_the_giaodich")))
-                                .must(mt -> mt.range(r -> r.date(DateRangeQuery.of(d -> d.field("@timestamp").gte("now-1d")))))
+                                .must(mt -> mt.range(r -> r.date(DateRangeQuery.of(d -> d.field("@timestamp").gte(now + "-1d")))))
                                 .must(mt -> mt.range(r -> r.date(DateRangeQuery.of(d -> d.field("@timstamp").gte("2500000")))))
                                 .must(mt -> mt.range(r -> r.date(DateRangeQuery.of(d -> d.field("@timestamp").lte("3000000")))))
                         ))
@@ -153,13 +342,12 @@ public class QueryBuilder {
                         // No installment success in last 30 days
                         .must(m1 -> m1.bool(b1 -> b1
                                 .must(mt -> mt.term(t -> t.field("event_name").value("ins_card_tragop_success")))
-                                .must(mt -> mt.range(r -> r.date(DateRangeQuery.of(d -> d.field("@timestamp").lt("now-30d")))))
+                                .must(mt -> mt.range(r -> r.date(DateRangeQuery.of(d -> d.field("@timestamp").lt(now + "-30d")))))
                         ))
                 ));
     }
 
     public Query buildEventQueryUsecase3(String clientId) {
-        return Query.of(q -> q.bool(b -> getNotYetInstallmentPayment(b)
-                .filter(f -> f.term(t -> t.field(CLIENT_ID).value(clientId)))));
+        return buildEventQuery(3, clientId);
     }
 }
@@ -0,0 +1,194 @@
+package thinkmath.com.batch.util;
+
+import co.elastic.clients.elasticsearch._types.FieldValue;
+import co.elastic.clients.elasticsearch.core.SearchRequest;
+import co.elastic.clients.json.JsonpMapper;
+import co.elastic.clients.json.JsonpUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A search body serialized once, with the parts that change from page to page spliced in as bytes.
+ *
+ * <p>Build the request with {@link #CLIENT_IDS} as the only client id of its {@code terms} filter; the template keeps
+ * the JSON before and after that value, and {@link #render} writes the page's ids between them. {@code search_after}
+ * and the point-in-time are appended as the last members of the body. Nothing of the query tree is rebuilt or
+ * re-serialized per page.
+ */
+public final class QueryTemplate {
+    public static final String CLIENT_IDS = "__client_ids__";
+
+    private static final byte[] QUOTED_CLIENT_IDS = ('"' + CLIENT_IDS + '"').getBytes(StandardCharsets.UTF_8);
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final ThreadLocal<Buffer> BUFFERS = ThreadLocal.withInitial(Buffer::new);
+
+    private final byte[] prefix;
+    private final byte[] suffix;
+
+    private QueryTemplate(byte[] prefix, byte[] suffix) {
+        this.prefix = prefix;
+        this.suffix = suffix;
+    }
+
+    public static QueryTemplate of(SearchRequest request, JsonpMapper mapper) {
+        byte[] json = JsonpUtils.toJsonString(request, mapper).getBytes(StandardCharsets.UTF_8);
+        // Drop the closing brace so members can be appended
+        int end = json.length - 1;
+        int placeholder = indexOf(json, QUOTED_CLIENT_IDS, end);
+        if (placeholder < 0) {
+            return new QueryTemplate(Arrays.copyOf(json, end), new byte[0]);
+        }
+        return new QueryTemplate(
+                Arrays.copyOf(json, placeholder),
+                Arrays.copyOfRange(json, placeholder + QUOTED_CLIENT_IDS.length, end));
+    }
+
+    /**
+     * Renders the body for a blocking request into the calling thread's buffer. The entity is only valid until the
+     * next render on the same thread.
+     */
+    public HttpEntity render(List<String> clientIds, List<FieldValue> searchAfter) {
+        Buffer buffer = BUFFERS.get();
+        buffer.reset();
+        write(buffer, clientIds, searchAfter);
+        buffer.write('}');
+        return new ByteArrayEntity(buffer.bytes, 0, buffer.size, ContentType.APPLICATION_JSON);
+    }
+
+    /**
+     * Renders a point-in-time search body into its own array, so it can be handed to an async request.
+     */
+    public HttpEntity renderPointInTime(String pitId, String keepAlive, List<FieldValue> searchAfter) {
+        Buffer buffer = new Buffer();
+        write(buffer, List.of(), searchAfter);
+        buffer.writeAscii(",\"pit\":{\"id\":");
+        buffer.writeString(pitId);
+        buffer.writeAscii(",\"keep_alive\":");
+        buffer.writeString(keepAlive);
+        buffer.writeAscii("}}");
+        return new ByteArrayEntity(buffer.bytes, 0, buffer.size, ContentType.APPLICATION_JSON);
+    }
+
+    private void write(Buffer buffer, List<String> clientIds, List<FieldValue> searchAfter) {
+        buffer.write(prefix);
+        for (int i = 0; i < clientIds.size(); i++) {
+            if (i > 0) {
+                buffer.write(',');
+            }
+            buffer.writeString(clientIds.get(i));
+        }
+        buffer.write(suffix);
+        if (searchAfter != null) {
+            buffer.writeAscii(",\"search_after\":[");
+            for (int i = 0; i < searchAfter.size(); i++) {
+                if (i > 0) {
+                    buffer.write(',');
+                }
+                buffer.writeValue(searchAfter.get(i));
+            }
+            buffer.write(']');
+        }
+    }
+
+    private static int indexOf(byte[] bytes, byte[] target, int end) {
+        outer:
+        for (int i = 0; i <= end - target.length; i++) {
+            for (int j = 0; j < target.length; j++) {
+                if (bytes[i + j] != target[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Growable byte array that writes JSON strings straight from {@code char}s to UTF-8, without an intermediate
+     * {@code byte[]} per value.
+     */
+    private static final class Buffer {
+        private byte[] bytes = new byte[1 << 16];
+        private int size;
+
+        void reset() {
+            size = 0;
+        }
+
+        void write(int b) {
+            ensure(1);
+            bytes[size++] = (byte) b;
+        }
+
+        void write(byte[] b) {
+            ensure(b.length);
+            System.arraycopy(b, 0, bytes, size, b.length);
+            size += b.length;
+        }
+
+        void writeAscii(String s) {
+            ensure(s.length());
+            for (int i = 0; i < s.length(); i++) {
+                bytes[size++] = (byte) s.charAt(i);
+            }
+        }
+
+        void writeValue(FieldValue value) {
+            switch (value._kind()) {
+                case Long -> writeAscii(Long.toString(value.longValue()));
+                case Double -> writeAscii(Double.toString(value.doubleValue()));
+                case Boolean -> writeAscii(Boolean.toString(value.booleanValue()));
+                case Null -> writeAscii("null");
+                case String -> writeString(value.stringValue());
+                default -> throw new IllegalArgumentException("Unsupported sort value: " + value);
+            }
+        }
+
+        void writeString(String s) {
+            ensure(s.length() * 6 + 2);
+            bytes[size++] = '"';
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"' || c == '\\') {
+                    bytes[size++] = '\\';
+                    bytes[size++] = (byte) c;
+                } else if (c < 0x20) {
+                    bytes[size++] = '\\';
+                    bytes[size++] = 'u';
+                    bytes[size++] = '0';
+                    bytes[size++] = '0';
+                    bytes[size++] = HEX[c >> 4];
+                    bytes[size++] = HEX[c & 0xF];
+                } else if (c < 0x80) {
+                    bytes[size++] = (byte) c;
+                } else if (c < 0x800) {
+                    bytes[size++] = (byte) (0xC0 | c >> 6);
+                    bytes[size++] = (byte) (0x80 | c & 0x3F);
+                } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                    bytes[size++] = (byte) (0xF0 | codePoint >> 18);
+                    bytes[size++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                    bytes[size++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                    bytes[size++] = (byte) (0x80 | codePoint & 0x3F);
+                } else {
+                    bytes[size++] = (byte) (0xE0 | c >> 12);
+                    bytes[size++] = (byte) (0x80 | c >> 6 & 0x3F);
+                    bytes[size++] = (byte) (0x80 | c & 0x3F);
+                }
+            }
+            bytes[size++] = '"';
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+            }
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package thinkmath.com.batch.util;
+
+import lombok.extern.slf4j.Slf4j;
+import thinkmath.com.batch.config.BatchProperties;
+import thinkmath.com.batch.metrics.BatchMetrics;
+import thinkmath.com.batch.pipeline.AdaptiveConcurrencyLimiter;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * Sends requests with a deadline per attempt and bounded retries with exponential backoff and full jitter on
+ * transient failures ({@link ElasticsearchErrors#isRetryable}). Hedged requests also get one duplicate once the first
+ * attempt has run longer than the stage's recent latency percentile; the duplicate carries a {@code preference} so
+ * that other shard copies are likely to serve it, and whichever attempt answers first wins while the other is
+ * cancelled.
+ *
+ * <p>Requests sent from within a page of an {@link AdaptiveConcurrencyLimiter} do not retry rejections: they go
+ * straight to the limiter, which lowers the concurrency before retrying the page itself. Every other request, such as
+ * the pages of a client scan, retries them here.
+ */
+@Slf4j
+class RequestRunner implements AutoCloseable {
+    static final String HEDGE_PREFERENCE = "hedge-";
+
+    private final BatchProperties.Requests settings;
+    private final BatchMetrics metrics;
+    private final ScheduledExecutorService scheduler;
+    private final Map<String, LatencyWindow> latencies = new ConcurrentHashMap<>();
+
+    RequestRunner(BatchProperties.Requests settings, BatchMetrics metrics) {
+        this.settings = settings;
+        this.metrics = metrics;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("request-timer").daemon().factory());
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Runs {@code attempt} until one call succeeds, the failure isn't transient or the retries are used up.
+     *
+     * @param attempt sends one attempt with the given {@code preference}, {@code null} for the regular attempts;
+     *                cancelling the returned future should abort the request
+     */
+    <T> CompletableFuture<T> call(String stage, boolean hedged, Function<String, CompletableFuture<T>> attempt) {
+        return new Call<>(stage, hedged && settings.hedge(), attempt).start();
+    }
+
+    /**
+     * Hedge delay of {@code stage} in nanoseconds, or {@code -1} while too few of its requests have been observed.
+     */
+    long hedgeDelayNanos(String stage) {
+        LatencyWindow window = latencies.get(stage);
+        if (window == null) {
+            return -1;
+        }
+        long percentile = window.percentile(settings.hedgePercentile(), settings.hedgeMinSamples());
+        return percentile < 0 ? -1 : Math.max(percentile, settings.hedgeMinDelay().toNanos());
+    }
+
+    long backoffNanos(int retry) {
+        return ElasticsearchErrors.backoffNanos(settings.initialBackoff(), settings.maxBackoff(), retry);
+    }
+
+    private final class Call<T> {
+        private final String stage;
+        private final boolean hedged;
+        private final Function<String, CompletableFuture<T>> attempt;
+        private final boolean retryRejections = !AdaptiveConcurrencyLimiter.isLimiting();
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private final List<CompletableFuture<T>> attempts = new CopyOnWriteArrayList<>();
+        private int outstanding;
+        private int retries;
+
+        Call(String stage, boolean hedged, Function<String, CompletableFuture<T>> attempt) {
+            this.stage = stage;
+            this.hedged = hedged;
+            this.attempt = attempt;
+        }
+
+        CompletableFuture<T> start() {
+            result.whenComplete((value, error) -> attempts.forEach(future -> future.cancel(true)));
+            send(null);
+            if (hedged) {
+                long delay = hedgeDelayNanos(stage);
+                if (delay >= 0) {
+                    scheduler.schedule(this::hedge, delay, TimeUnit.NANOSECONDS);
+                }
+            }
+            return result;
+        }
+
+        private void hedge() {
+            if (!result.isDone()) {
+                metrics.count(BatchMetrics.HEDGES, stage);
+                send(HEDGE_PREFERENCE + ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE));
+            }
+        }
+
+        private void send(String preference) {
+            if (result.isDone()) {
+                return;
+            }
+            synchronized (this) {
+                outstanding++;
+            }
+            long start = System.nanoTime();
+            CompletableFuture<T> future;
+            try {
+                future = attempt.apply(preference);
+            } catch (RuntimeException e) {
+                future = CompletableFuture.failedFuture(e);
+            }
+            attempts.add(future);
+            if (result.isDone()) {
+                future.cancel(true);
+                return;
+            }
+
+            CompletableFuture<T> sent = future;
+            AtomicBoolean timedOut = new AtomicBoolean();
+            ScheduledFuture<?> deadline = scheduler.schedule(
+                    () -> {
+                        if (!sent.isDone()) {
+                            timedOut.set(true);
+                            sent.cancel(true);
+                        }
+                    },
+                    settings.deadline().toNanos(),
+                    TimeUnit.NANOSECONDS);
+            future.whenComplete((value, error) -> {
+                deadline.cancel(false);
+                if (error == null) {
+                    latencies.computeIfAbsent(stage, key -> new LatencyWindow())
+                            .record(System.nanoTime() - start);
+                    if (preference != null && !result.isDone()) {
+                        metrics.count(BatchMetrics.HEDGE_WINS, stage);
+                    }
+                    result.complete(value);
+                    return;
+                }
+                Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                if (timedOut.get() && cause instanceof CancellationException) {
+                    metrics.count(BatchMetrics.DEADLINES_EXCEEDED, stage);
+                    cause = new TimeoutException(
+                            "Request of stage " + stage + " exceeded its " + settings.deadline() + " deadline");
+                }
+                onFailure(cause);
+            });
+        }
+
+        private void onFailure(Throwable cause) {
+            int retry;
+            synchronized (this) {
+                if (--outstanding > 0 || result.isDone()) {
+                    // The other attempt may still succeed
+                    return;
+                }
+                if (retries >= settings.maxRetries()
+                        || !ElasticsearchErrors.isRetryable(cause)
+                        || (!retryRejections && ElasticsearchErrors.isRejection(cause))) {
+                    result.completeExceptionally(cause);
+                    return;
+                }
+                retry = ++retries;
+            }
+            long backoff = backoffNanos(retry);
+            log.debug("Retrying request of stage {} in {}ms after: {}", stage, backoff / 1_000_000, cause.toString());
+            metrics.count(BatchMetrics.RETRIES, stage);
+            scheduler.schedule(() -> send(null), backoff, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * The latest successful request latencies of a stage, with a percentile recomputed every few samples.
+     */
+    static final class LatencyWindow {
+        private static final int SIZE = 512;
+        private static final int RECOMPUTE_EVERY = 32;
+
+        private final long[] samples = new long[SIZE];
+        private long count;
+        private double cachedPercentile = Double.NaN;
+        private long cachedValue = -1;
+        private long cachedAt = -1;
+
+        synchronized void record(long nanos) {
+            samples[(int) (count++ % SIZE)] = nanos;
+        }
+
+        synchronized long percentile(double percentile, int minSamples) {
+            if (count < minSamples) {
+                return -1;
+            }
+            if (percentile != cachedPercentile || count - cachedAt >= RECOMPUTE_EVERY) {
+                long[] sorted = Arrays.copyOf(samples, (int) Math.min(count, SIZE));
+                Arrays.sort(sorted);
+                int rank = (int) Math.ceil(percentile * sorted.length) - 1;
+                cachedValue = sorted[Math.clamp(rank, 0, sorted.length - 1)];
+                cachedPercentile = percentile;
+                cachedAt = count;
+            }
+            return cachedValue;
+        }
+    }
+}
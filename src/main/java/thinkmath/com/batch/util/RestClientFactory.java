@@ -0,0 +1,220 @@
+package thinkmath.com.batch.util;
+
+import lombok.experimental.UtilityClass;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.HttpConnection;
+import org.apache.http.HttpConnectionMetrics;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ssl.DefaultHostnameVerifier;
+import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.pool.PoolStats;
+import org.elasticsearch.client.Node;
+import org.elasticsearch.client.NodeSelector;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestClientBuilder;
+import thinkmath.com.batch.config.BatchProperties;
+import thinkmath.com.batch.config.NodeSelection;
+import thinkmath.com.batch.metrics.BatchMetrics;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Builds the low-level client from {@code batch.transport}: the hosts and node selection, a connection pool sized per
+ * node, timeouts, keep-alive and gzip. The client reports the responses, failures and wire bytes of every node to
+ * {@link BatchMetrics}.
+ */
+@Slf4j
+@UtilityClass
+public class RestClientFactory {
+
+    public RestClient build(BatchProperties.Transport transport, BatchMetrics metrics) {
+        if (!transport.username().isEmpty() && transport.password().isEmpty()) {
+            throw new IllegalStateException("No password for Elasticsearch user " + transport.username()
+                    + ": set ELASTIC_PASSWORD or batch.transport.password");
+        }
+        List<HttpHost> hosts = transport.hosts().stream().map(HttpHost::create).toList();
+        PoolingNHttpClientConnectionManager connectionManager = connectionManager(transport);
+        for (HttpHost host : hosts) {
+            metrics.monitorNode(host.toHostString(), connectionManager, pool -> load(pool, host));
+        }
+
+        RestClientBuilder builder = RestClient.builder(hosts.toArray(HttpHost[]::new))
+                .setCompressionEnabled(transport.compression())
+                .setRequestConfigCallback(requestConfig -> requestConfig
+                        .setConnectTimeout((int) transport.connectTimeout().toMillis())
+                        .setSocketTimeout((int) transport.socketTimeout().toMillis())
+                        .setConnectionRequestTimeout((int) transport.connectionRequestTimeout().toMillis()))
+                .setHttpClientConfigCallback(httpAsyncClientBuilder -> {
+                    httpAsyncClientBuilder
+                            .setConnectionManager(connectionManager)
+                            .setKeepAliveStrategy((response, context) -> transport.keepAlive().toMillis())
+                            .addInterceptorLast(countExchanges(metrics));
+                    if (!transport.username().isEmpty()) {
+                        httpAsyncClientBuilder.setDefaultCredentialsProvider(
+                                credentialsProvider(transport.username(), transport.password()));
+                    }
+                    return httpAsyncClientBuilder;
+                })
+                .setFailureListener(new RestClient.FailureListener() {
+                    @Override
+                    public void onFailure(Node node) {
+                        metrics.nodeFailure(node.getHost().toHostString());
+                    }
+                });
+        if (transport.nodeSelection() == NodeSelection.LEAST_LOADED) {
+            builder.setNodeSelector(leastLoaded(connectionManager));
+        }
+        return builder.build();
+    }
+
+    /**
+     * A pool of its own rather than the one the HTTP client would create, so that node selection and metrics can
+     * read how many connections each node has in use.
+     */
+    private PoolingNHttpClientConnectionManager connectionManager(BatchProperties.Transport transport) {
+        IOReactorConfig.Builder ioReactor = IOReactorConfig.custom()
+                .setSoKeepAlive(true)
+                .setConnectTimeout((int) transport.connectTimeout().toMillis());
+        if (transport.ioThreads() > 0) {
+            ioReactor.setIoThreadCount(transport.ioThreads());
+        }
+        try {
+            SSLIOSessionStrategy tls;
+            if (transport.trustAllCertificates()) {
+                log.warn("Elasticsearch server certificates and host names are not verified: "
+                        + "batch.transport.trust-all-certificates is on");
+                tls = new SSLIOSessionStrategy(createInsecureSSLContext(), NoopHostnameVerifier.INSTANCE);
+            } else {
+                tls = new SSLIOSessionStrategy(SSLContext.getDefault(), new DefaultHostnameVerifier());
+            }
+            PoolingNHttpClientConnectionManager connectionManager = new PoolingNHttpClientConnectionManager(
+                    new DefaultConnectingIOReactor(ioReactor.build()),
+                    RegistryBuilder.<SchemeIOSessionStrategy>create()
+                            .register("http", NoopIOSessionStrategy.INSTANCE)
+                            .register("https", tls)
+                            .build());
+            connectionManager.setDefaultMaxPerRoute(transport.maxConnectionsPerNode());
+            connectionManager.setMaxTotal(transport.maxConnections());
+            return connectionManager;
+        } catch (IOReactorException | GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot create the Elasticsearch connection pool", e);
+        }
+    }
+
+    /**
+     * Keeps only the nodes with the fewest connections leased or awaited; the client rotates among them.
+     */
+    NodeSelector leastLoaded(PoolingNHttpClientConnectionManager connectionManager) {
+        return new NodeSelector() {
+            @Override
+            public void select(Iterable<Node> nodes) {
+                Map<HttpHost, Integer> loads = connectionManager.getRoutes().stream()
+                        .collect(Collectors.toMap(
+                                HttpRoute::getTargetHost,
+                                route -> inUse(connectionManager.getStats(route)),
+                                Integer::sum));
+                int min = Integer.MAX_VALUE;
+                for (Node node : nodes) {
+                    min = Math.min(min, loads.getOrDefault(node.getHost(), 0));
+                }
+                for (Iterator<Node> it = nodes.iterator(); it.hasNext(); ) {
+                    if (loads.getOrDefault(it.next().getHost(), 0) > min) {
+                        it.remove();
+                    }
+                }
+            }
+
+            @Override
+            public String toString() {
+                return "LEAST_LOADED";
+            }
+        };
+    }
+
+    private double load(PoolingNHttpClientConnectionManager connectionManager, HttpHost host) {
+        return connectionManager.getRoutes().stream()
+                .filter(route -> route.getTargetHost().equals(host))
+                .mapToInt(route -> inUse(connectionManager.getStats(route)))
+                .sum();
+    }
+
+    private int inUse(PoolStats stats) {
+        return stats.getLeased() + stats.getPending();
+    }
+
+    /**
+     * Counts every response per node with the bytes its connection sent and received since the previous response on
+     * it: the request on the wire, after compression, and the previous response's body, which is read after this
+     * interceptor runs.
+     */
+    private HttpResponseInterceptor countExchanges(BatchMetrics metrics) {
+        return (response, context) -> {
+            HttpClientContext clientContext = HttpClientContext.adapt(context);
+            HttpHost host = clientContext.getTargetHost();
+            HttpConnection connection = clientContext.getConnection();
+            if (host == null || connection == null) {
+                return;
+            }
+            HttpConnectionMetrics connectionMetrics = connection.getMetrics();
+            metrics.nodeResponse(
+                    host.toHostString(),
+                    connectionMetrics.getSentBytesCount(),
+                    connectionMetrics.getReceivedBytesCount());
+            connectionMetrics.reset();
+        };
+    }
+
+    private CredentialsProvider credentialsProvider(String username, String password) {
+        CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
+        credentialsProvider.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(username, password));
+        return credentialsProvider;
+    }
+
+    /**
+     * An SSL context whose trust manager accepts every certificate chain, for clusters with self-signed certificates.
+     */
+    private SSLContext createInsecureSSLContext() throws GeneralSecurityException {
+        SSLContext sslContext = SSLContext.getInstance("SSL");
+        sslContext.init(
+                null,
+                new TrustManager[] {
+                    // Both checks return without throwing, which is how a trust manager accepts a chain: any
+                    // certificate is trusted, so the connection is encrypted but the server is not authenticated
+                    new X509TrustManager() {
+                        public void checkClientTrusted(X509Certificate[] certs, String authType) {}
+
+                        public void checkServerTrusted(X509Certificate[] certs, String authType) {}
+
+                        public X509Certificate[] getAcceptedIssuers() {
+                            return new X509Certificate[0];
+                        }
+                    }
+                },
+                new SecureRandom());
+        return sslContext;
+    }
+}
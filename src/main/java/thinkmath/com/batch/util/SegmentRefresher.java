@@ -0,0 +1,117 @@
+package thinkmath.com.batch.util;
+
+import co.elastic.clients.elasticsearch._types.Time;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import thinkmath.com.batch.config.BatchProperties;
+import thinkmath.com.batch.segment.ClientIdSet;
+import thinkmath.com.batch.segment.SegmentStore;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps use case segments up to date between runs. The first run evaluates a use case in full; later runs only
+ * re-evaluate the clients that may have changed since the stored watermark and merge them into the stored segment:
+ * <ul>
+ *     <li>clients with events of the use case's types since the watermark,</li>
+ *     <li>clients with events that have crossed one of the use case's time window boundaries since the watermark,</li>
+ *     <li>clients whose document was updated since the watermark.</li>
+ * </ul>
+ * Every other client would get the same answer as last time.
+ */
+@Slf4j
+@Component
+public class SegmentRefresher {
+    private final ElasticsearchService client;
+    private final ElasticsearchExecutor executor;
+    private final BatchProperties properties;
+    private final SegmentStore store;
+
+    public SegmentRefresher(ElasticsearchService client, ElasticsearchExecutor executor, BatchProperties properties) {
+        this.client = client;
+        this.executor = executor;
+        this.properties = properties;
+        this.store = new SegmentStore(properties.incremental().directory());
+    }
+
+    /**
+     * Brings the stored segment of a use case up to date and stores it again with this run's start as watermark.
+     *
+     * @return the current segment; the caller closes it
+     */
+    public ClientIdSet refresh(int usecaseNumber) throws IOException {
+        Instant runStart = Instant.now();
+        Optional<SegmentStore.StoredSegment> stored = store.load(usecaseNumber);
+        ClientIdSet segment = stored.isEmpty() ? new ClientIdSet() : applyChanges(usecaseNumber, stored.get());
+        try {
+            if (stored.isEmpty()) {
+                log.info("No stored segment for use case {}, evaluating it in full", usecaseNumber);
+                executor.streamUseCase(usecaseNumber, segment::addAll);
+            }
+            store.save(usecaseNumber, segment, runStart);
+            return segment;
+        } catch (IOException | RuntimeException e) {
+            segment.close();
+            throw e;
+        }
+    }
+
+    private ClientIdSet applyChanges(int usecaseNumber, SegmentStore.StoredSegment stored) throws IOException {
+        long start = System.nanoTime();
+        Instant since = stored.watermark().minus(properties.incremental().overlap());
+        try (ClientIdSet previous = stored.clientIds();
+                ClientIdSet candidates = changedClients(usecaseNumber, since);
+                ClientIdSet matches = new ClientIdSet(candidates.size())) {
+            executor.streamClients(usecaseNumber, candidates, matches::addAll);
+
+            int removed;
+            try (ClientIdSet reevaluated = previous.intersection(candidates);
+                    ClientIdSet dropped = reevaluated.difference(matches)) {
+                removed = dropped.size();
+            }
+            ClientIdSet segment = previous.difference(candidates);
+            segment.addAll(matches);
+            log.info(
+                    "Use case {} refreshed since {}: {} candidates, {} added, {} removed, {} clients in {}ms",
+                    usecaseNumber,
+                    since,
+                    candidates.size(),
+                    segment.size() - previous.size() + removed,
+                    removed,
+                    segment.size(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            return segment;
+        }
+    }
+
+    private ClientIdSet changedClients(int usecaseNumber, Instant since) throws IOException {
+        ClientIdSet candidates = new ClientIdSet();
+        client.scanEventClientIds(
+                QueryBuilder.buildChangedEventQuery(usecaseNumber, since, client.anchor()),
+                String.valueOf(usecaseNumber),
+                properties.events().aggregationPageSize(),
+                candidates::addAll);
+        int fromEvents = candidates.size();
+
+        Time keepAlive = executor.pointInTimeKeepAlive();
+        String pitId = client.openPointInTime(QueryBuilder.CLIENT_INDEX, keepAlive);
+        try {
+            client.scanClients(
+                    pitId,
+                    QueryBuilder.buildUpdatedClientQuery(properties.incremental().clientUpdatedField(), since),
+                    keepAlive,
+                    candidates::addAll);
+        } finally {
+            client.closePointInTime(pitId);
+        }
+        log.info(
+                "Use case {}: {} clients with changed events, {} candidates with updated clients",
+                usecaseNumber,
+                fromEvents,
+                candidates.size());
+        return candidates;
+    }
+}
@@ -0,0 +1,106 @@
+package thinkmath.com.batch.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Groups client ids by the shard that holds their events, for indices whose documents are routed by
+ * {@code client_id}.
+ *
+ * <p>Elasticsearch sends a document with routing {@code r} to shard
+ * {@code floorMod(murmur3(r), routing_num_shards) / (routing_num_shards / number_of_shards)}, hashing the UTF-16
+ * code units of {@code r}. Ids are grouped by their shard in every distinct layout of the target indices, so any id
+ * of a group routes a search over all of them to one shard per index. The layouts are read once; an index created
+ * with a different layout afterwards is not accounted for.
+ */
+public final class ShardRouter {
+    private final List<Layout> layouts;
+
+    /**
+     * @param routingNumShards {@code routing_num_shards} of an index, the hash space its shards are cut from
+     * @param shards           {@code number_of_shards} of the index
+     */
+    public record Layout(int routingNumShards, int shards) {
+        int shard(int hash) {
+            return Math.floorMod(hash, routingNumShards) / (routingNumShards / shards);
+        }
+    }
+
+    public ShardRouter(Collection<Layout> layouts) {
+        this.layouts = List.copyOf(new LinkedHashSet<>(layouts));
+    }
+
+    /**
+     * @return the number of distinct shard groups an id can fall into
+     */
+    public long groups() {
+        long groups = 1;
+        for (Layout layout : layouts) {
+            groups *= layout.shards();
+        }
+        return groups;
+    }
+
+    /**
+     * Splits {@code clientIds} by shard, keeping their order within each group.
+     *
+     * @return the ids of every group, keyed by the first of them, which serves as the routing value of the group
+     */
+    public Map<String, List<String>> group(List<String> clientIds) {
+        Map<Long, List<String>> byShard = new HashMap<>();
+        Map<String, List<String>> groups = new LinkedHashMap<>();
+        for (String clientId : clientIds) {
+            byShard.computeIfAbsent(key(clientId), key -> groups.computeIfAbsent(clientId, id -> new ArrayList<>()))
+                    .add(clientId);
+        }
+        return groups;
+    }
+
+    private long key(String routing) {
+        int hash = hash(routing);
+        long key = 0;
+        for (Layout layout : layouts) {
+            key = key * layout.shards() + layout.shard(hash);
+        }
+        return key;
+    }
+
+    /**
+     * Murmur3 x86 32-bit with seed 0 over the UTF-16 little-endian bytes of {@code routing}, as Elasticsearch hashes
+     * routing values.
+     */
+    static int hash(String routing) {
+        int length = routing.length() * 2;
+        int h = 0;
+        int i = 0;
+        // Two chars make one little-endian 4-byte block
+        for (; i + 1 < routing.length(); i += 2) {
+            int k = routing.charAt(i) | routing.charAt(i + 1) << 16;
+            k *= 0xcc9e2d51;
+            k = Integer.rotateLeft(k, 15);
+            k *= 0x1b873593;
+            h ^= k;
+            h = Integer.rotateLeft(h, 13);
+            h = h * 5 + 0xe6546b64;
+        }
+        if (i < routing.length()) {
+            int k = routing.charAt(i);
+            k *= 0xcc9e2d51;
+            k = Integer.rotateLeft(k, 15);
+            k *= 0x1b873593;
+            h ^= k;
+        }
+        h ^= length;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -1,10 +1,31 @@
 package thinkmath.com.batch;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
 
-@SpringBootTest
+import java.nio.file.Path;
+
+/**
+ * Starts the application as a small NDJSON dataset generation, the one run that needs no cluster.
+ */
+@SpringBootTest(properties = {
+    "batch.generator.enabled=true",
+    "batch.generator.output=NDJSON",
+    "batch.generator.clients=10",
+    "batch.generator.events=10",
+    "batch.throttle.enabled=false"
+})
 class BatchApplicationTests {
+    @TempDir
+    static Path directory;
+
+    @DynamicPropertySource
+    static void generatorDirectory(DynamicPropertyRegistry registry) {
+        registry.add("batch.generator.directory", directory::toString);
+    }
 
     @Test
     void contextLoads() {}
@@ -0,0 +1,47 @@
+package thinkmath.com.batch.generator;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.boot.context.properties.source.MapConfigurationPropertySource;
+import thinkmath.com.batch.config.BatchProperties;
+
+import java.time.Instant;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class SyntheticDocumentsTest {
+    private static final Instant END = Instant.parse("2025-02-01T00:00:00Z");
+
+    private final BatchProperties.Generator settings = new Binder(new MapConfigurationPropertySource(
+                    Map.of("batch.generator.clients", "1000", "batch.generator.events", "5000")))
+            .bindOrCreate("batch", BatchProperties.class)
+            .generator();
+
+    @Test
+    void sameBlockSeedGivesSameDocuments() {
+        assertEquals(block(3), block(3));
+        assertNotEquals(block(3), block(4));
+    }
+
+    @Test
+    void padsClientIds() {
+        assertEquals("C0000000042", SyntheticDocuments.clientId(42));
+        assertEquals("C1234567890", SyntheticDocuments.clientId(1_234_567_890L));
+        assertEquals("E000000000042", SyntheticDocuments.eventId(42));
+    }
+
+    private String block(long block) {
+        SyntheticDocuments documents =
+                new SyntheticDocuments(settings, END, SyntheticDocuments.blockSeed(settings.seed(), 0, block));
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            documents.appendClient(json, i);
+            json.append('\n');
+            documents.appendEvent(json);
+            json.append('\n');
+        }
+        return json.toString();
+    }
+}
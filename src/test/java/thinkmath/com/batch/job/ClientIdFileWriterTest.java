@@ -0,0 +1,39 @@
+package thinkmath.com.batch.job;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.batch.item.Chunk;
+import org.springframework.batch.item.ExecutionContext;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ClientIdFileWriterTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void restartDropsUncommittedChunk() throws Exception {
+        Path file = directory.resolve("usecase-1/partition-0.ids");
+        ExecutionContext context = new ExecutionContext();
+
+        ClientIdFileWriter writer = new ClientIdFileWriter(file);
+        writer.open(context);
+        writer.write(Chunk.of(List.of("client-1", "client-2")));
+        writer.update(context);
+        writer.write(Chunk.of(List.of("client-3")));
+        writer.close();
+
+        ClientIdFileWriter restarted = new ClientIdFileWriter(file);
+        restarted.open(context);
+        restarted.write(Chunk.of(List.of("client-4")));
+        restarted.update(context);
+        restarted.close();
+
+        assertEquals(List.of("client-1", "client-2", "client-4"), Files.readAllLines(file));
+    }
+}
@@ -0,0 +1,173 @@
+package thinkmath.com.batch.job;
+
+import co.elastic.clients.elasticsearch._types.FieldValue;
+import co.elastic.clients.elasticsearch._types.query_dsl.Query;
+import co.elastic.clients.json.JsonpUtils;
+import co.elastic.clients.json.jackson.JacksonJsonpMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.batch.core.BatchStatus;
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.configuration.annotation.EnableBatchProcessing;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.boot.context.properties.source.MapConfigurationPropertySource;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+import org.springframework.jdbc.support.JdbcTransactionManager;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+import thinkmath.com.batch.config.BatchProperties;
+import thinkmath.com.batch.dto.ClientPage;
+import thinkmath.com.batch.dto.CreatedDateRange;
+import thinkmath.com.batch.generator.SyntheticDocuments;
+import thinkmath.com.batch.util.ElasticsearchService;
+import thinkmath.com.batch.util.QueryBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import javax.sql.DataSource;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Runs the segment job against an in-memory client index split into two created date partitions of three pages
+ * each. The first run fails on the second page of partition 0; the next launch has to resume that partition from its
+ * committed sort key and merge exactly the matching clients.
+ */
+@SpringJUnitConfig(SegmentJobRestartTest.JobTestConfiguration.class)
+class SegmentJobRestartTest {
+    private static final int CLIENTS = 5 * QueryBuilder.BATCH_SIZE;
+    private static final int USECASE = 1;
+    private static final JacksonJsonpMapper MAPPER = new JacksonJsonpMapper();
+
+    @TempDir
+    static Path outputDirectory;
+
+    /** The searchAfter of every page request of partition 0, null for its first page. */
+    private static final List<String> partitionZeroRequests = new CopyOnWriteArrayList<>();
+    private static final AtomicBoolean failed = new AtomicBoolean();
+
+    @Autowired
+    private SegmentJobLauncher launcher;
+
+    @Test
+    void restartResumesTheFailedPartitionFromItsCheckpoint() throws Exception {
+        assertThrows(IllegalStateException.class, () -> launcher.run(USECASE));
+        assertEquals(List.of("null", "9999"), partitionZeroRequests);
+        partitionZeroRequests.clear();
+
+        JobExecution restarted = launcher.run(USECASE);
+
+        assertEquals(BatchStatus.COMPLETED, restarted.getStatus());
+        assertEquals(List.of("9999", "19999"), partitionZeroRequests);
+        List<String> merged = Files.readAllLines(outputDirectory.resolve("usecase-" + USECASE + ".ids"));
+        Set<String> expected = IntStream.range(0, CLIENTS)
+                .filter(SegmentJobRestartTest::matchesEvents)
+                .mapToObj(SyntheticDocuments::clientId)
+                .collect(Collectors.toSet());
+        assertEquals(expected.size(), merged.size());
+        assertEquals(expected, new HashSet<>(merged));
+    }
+
+    private static boolean matchesEvents(int client) {
+        return client % 3 == 0;
+    }
+
+    /**
+     * A client index where client {@code i} was created at epoch millisecond {@code i}.
+     */
+    private static ElasticsearchService clientIndex() throws IOException {
+        String partitionZero = json(QueryBuilder.buildClientQuery(USECASE, null, (long) CLIENTS / 2));
+        ElasticsearchService client = mock(ElasticsearchService.class);
+        when(client.createdDateRange(any())).thenReturn(Optional.of(new CreatedDateRange(0, CLIENTS - 1)));
+        when(client.searchClientsAfter(any(), any())).thenAnswer(invocation -> {
+            boolean firstHalf = partitionZero.equals(json(invocation.getArgument(0)));
+            List<FieldValue> searchAfter = invocation.getArgument(1);
+            if (firstHalf) {
+                partitionZeroRequests.add(
+                        searchAfter == null ? "null" : String.valueOf(searchAfter.get(0).longValue()));
+            }
+            int from = searchAfter != null ? (int) searchAfter.get(0).longValue() + 1 : firstHalf ? 0 : CLIENTS / 2;
+            int to = Math.min(from + QueryBuilder.BATCH_SIZE, firstHalf ? CLIENTS / 2 : CLIENTS);
+            List<String> clientIds = new ArrayList<>();
+            for (int i = from; i < to; i++) {
+                clientIds.add(SyntheticDocuments.clientId(i));
+            }
+            return new ClientPage(
+                    null,
+                    clientIds,
+                    clientIds.size(),
+                    List.of(FieldValue.of(to - 1), FieldValue.of(SyntheticDocuments.clientId(to - 1))),
+                    null);
+        });
+        when(client.executeEventsQuery(anyList(), anyInt())).thenAnswer(invocation -> {
+            List<String> clientIds = invocation.getArgument(0);
+            if (clientIds.getFirst().equals(SyntheticDocuments.clientId(QueryBuilder.BATCH_SIZE))
+                    && failed.compareAndSet(false, true)) {
+                throw new IOException("es_rejected_execution_exception: search queue is full");
+            }
+            return clientIds.stream()
+                    .filter(clientId -> matchesEvents(Integer.parseInt(clientId.substring(1))))
+                    .toList();
+        });
+        return client;
+    }
+
+    private static String json(Query query) {
+        return JsonpUtils.toJsonString(query, MAPPER);
+    }
+
+    @Configuration
+    @EnableBatchProcessing
+    @Import({SegmentJobConfiguration.class, SegmentJobLauncher.class})
+    static class JobTestConfiguration {
+
+        @Bean
+        DataSource dataSource() {
+            return new EmbeddedDatabaseBuilder()
+                    .generateUniqueName(true)
+                    .setType(EmbeddedDatabaseType.H2)
+                    .addScript("/org/springframework/batch/core/schema-h2.sql")
+                    .build();
+        }
+
+        @Bean
+        JdbcTransactionManager transactionManager(DataSource dataSource) {
+            return new JdbcTransactionManager(dataSource);
+        }
+
+        @Bean
+        BatchProperties batchProperties() {
+            return new Binder(new MapConfigurationPropertySource(Map.of(
+                            "batch.job.partitions", "2",
+                            "batch.job.concurrency", "1",
+                            "batch.job.output-directory", outputDirectory.toString())))
+                    .bindOrCreate("batch", BatchProperties.class);
+        }
+
+        @Bean
+        ElasticsearchService elasticsearchService() throws IOException {
+            return clientIndex();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package thinkmath.com.batch.metrics;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class BatchMetricsTest {
+    private final MeterRegistry registry = new SimpleMeterRegistry();
+    private final BatchMetrics metrics = new BatchMetrics(registry);
+
+    @Test
+    void recordsRequestsPerStageUsecaseAndIndex() {
+        BatchMetrics.Request first = metrics.start(BatchMetrics.EVENTS_TERMS, "1", "events-*");
+        BatchMetrics.Request second = metrics.start(BatchMetrics.EVENTS_TERMS, "1", "events-*");
+        metrics.start(BatchMetrics.EVENTS_TERMS, "2", "events-*").stop(0);
+        assertEquals(2, registry.get("batch.requests.in.flight").gauge().value());
+
+        first.addBytes(1000);
+        first.stop(10);
+        second.addBytes(500);
+        second.stop(5);
+
+        Timer latency = registry.get("batch.stage.latency").tags("stage", "events.terms", "usecase", "1").timer();
+        assertEquals(2, latency.count());
+        assertEquals(15, registry.get("batch.stage.hits").tags("usecase", "1").counter().count());
+        assertEquals(
+                1500,
+                registry.get("batch.stage.response.size").tags("usecase", "1").summary().totalAmount());
+        assertEquals(0, registry.get("batch.requests.in.flight").gauge().value());
+    }
+
+    @Test
+    void countsFailedRequestsWithoutLatency() {
+        metrics.start(BatchMetrics.CLIENTS_SLICE, "1", "clients-*").fail();
+
+        assertEquals(1, registry.get("batch.stage.errors").tags("stage", "clients.slice").counter().count());
+        assertEquals(0, registry.find("batch.stage.latency").timers().size());
+        assertEquals(0, registry.get("batch.requests.in.flight").gauge().value());
+        metrics.logSummary();
+    }
+}
@@ -0,0 +1,71 @@
+package thinkmath.com.batch.pipeline;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AdaptiveConcurrencyLimiterTest {
+
+    @Test
+    void backsOffAndRetriesRejectedPages() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = limiter(10);
+        AtomicInteger attempts = new AtomicInteger();
+
+        String result = limiter.call(() -> {
+            if (attempts.incrementAndGet() == 1) {
+                throw new IOException("es_rejected_execution_exception: search queue is full");
+            }
+            return "page";
+        });
+
+        assertEquals("page", result);
+        assertEquals(2, attempts.get());
+        AdaptiveConcurrencyLimiter.Stats stats = limiter.stats();
+        assertEquals(5, stats.limit());
+        assertEquals(1, stats.rejections());
+        assertEquals(0, stats.inFlight());
+    }
+
+    @Test
+    void growsWhileTheLimitIsInUse() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = limiter(1);
+        for (int i = 0; i < 10; i++) {
+            limiter.call(() -> "page");
+        }
+
+        assertTrue(limiter.stats().limit() > 1);
+    }
+
+    @Test
+    void propagatesOtherFailures() {
+        AdaptiveConcurrencyLimiter limiter = limiter(2);
+
+        assertThrows(IllegalStateException.class, () -> limiter.call(() -> {
+            throw new IllegalStateException("bad query");
+        }));
+        assertEquals(0, limiter.stats().inFlight());
+        assertEquals(2, limiter.stats().limit());
+    }
+
+    @Test
+    void releasesThePermitWhenAPageThrowsAnError() {
+        AdaptiveConcurrencyLimiter limiter = limiter(1);
+
+        assertThrows(AssertionError.class, () -> limiter.call(() -> {
+            throw new AssertionError("unexpected page");
+        }));
+
+        assertEquals(0, limiter.stats().inFlight());
+    }
+
+    private static AdaptiveConcurrencyLimiter limiter(int initialLimit) {
+        return new AdaptiveConcurrencyLimiter(
+                initialLimit, 1, 32, Duration.ofSeconds(10), 0.5, 3, Duration.ofMillis(1), Duration.ofMillis(5));
+    }
+}
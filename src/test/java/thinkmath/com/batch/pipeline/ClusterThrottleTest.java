@@ -0,0 +1,96 @@
+package thinkmath.com.batch.pipeline;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.boot.context.properties.source.MapConfigurationPropertySource;
+import thinkmath.com.batch.config.BatchProperties;
+import thinkmath.com.batch.dto.ClusterPressure;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ClusterThrottleTest {
+    private static final ClusterPressure CALM = new ClusterPressure("green", "node-1", 0, 0, 40);
+
+    @Test
+    void classifiesPressure() {
+        ClusterThrottle throttle = throttle(Map.of());
+
+        assertEquals(ClusterThrottle.Level.NORMAL, throttle.classify(CALM));
+        assertEquals(
+                ClusterThrottle.Level.NORMAL, throttle.classify(new ClusterPressure("yellow", "node-1", 0, 0, 40)));
+        assertEquals(ClusterThrottle.Level.SLOW, throttle.classify(new ClusterPressure("green", "node-1", 60, 0, 40)));
+        assertEquals(ClusterThrottle.Level.SLOW, throttle.classify(new ClusterPressure("green", "node-1", 0, 3, 40)));
+        assertEquals(ClusterThrottle.Level.PAUSED, throttle.classify(new ClusterPressure("red", "node-1", 0, 0, 40)));
+        assertEquals(
+                ClusterThrottle.Level.PAUSED, throttle.classify(new ClusterPressure("green", "node-1", 0, 0, 95)));
+
+        ClusterThrottle yellowAware = throttle(Map.of("batch.throttle.slow-down-on-yellow", "true"));
+        assertEquals(
+                ClusterThrottle.Level.SLOW, yellowAware.classify(new ClusterPressure("yellow", "node-1", 0, 0, 40)));
+    }
+
+    @Test
+    void pacesPagesUnderPressure() throws Exception {
+        ClusterThrottle throttle = throttle(Map.of("batch.throttle.page-interval", "50ms"));
+        throttle.update(new ClusterPressure("green", "node-1", 60, 0, 40));
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 3; i++) {
+            throttle.acquire();
+        }
+
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    void resumesPausedPagesOnceThePressureDrops() throws Exception {
+        ClusterThrottle throttle = throttle(Map.of());
+        throttle.update(new ClusterPressure("red", "node-1", 0, 0, 40));
+
+        CompletableFuture<Void> page = CompletableFuture.runAsync(() -> {
+            try {
+                throttle.acquire();
+            } catch (IOException | InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread.sleep(50);
+        assertFalse(page.isDone());
+
+        throttle.update(CALM);
+        page.get(5, TimeUnit.SECONDS);
+        assertTrue(throttle.waitedMillis() >= 50);
+    }
+
+    @Test
+    void failsAfterTheLongestPause() {
+        ClusterThrottle throttle = throttle(Map.of("batch.throttle.max-pause", "50ms"));
+        throttle.update(new ClusterPressure("green", "node-1", 1000, 0, 40));
+
+        assertThrows(IOException.class, throttle::acquire);
+    }
+
+    @Test
+    void ignoresStaleSamples() throws Exception {
+        ClusterThrottle throttle = throttle(Map.of("batch.throttle.stale-after", "50ms"));
+        throttle.update(new ClusterPressure("red", "node-1", 0, 0, 40));
+        assertEquals(ClusterThrottle.Level.PAUSED, throttle.level());
+
+        throttle.acquire();
+
+        assertEquals(ClusterThrottle.Level.NORMAL, throttle.level());
+    }
+
+    private static ClusterThrottle throttle(Map<String, String> properties) {
+        return new ClusterThrottle(new Binder(new MapConfigurationPropertySource(properties))
+                .bindOrCreate("batch", BatchProperties.class));
+    }
+}
@@ -0,0 +1,114 @@
+package thinkmath.com.batch.pipeline;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ResultPipelineTest {
+    private final ExecutorService executorService = Executors.newFixedThreadPool(4);
+
+    @AfterEach
+    void tearDown() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    void deliversEveryPageAndCapsConcurrency() throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        List<String> received = new ArrayList<>();
+        AtomicInteger completed = new AtomicInteger();
+        ResultPipeline pipeline = new ResultPipeline(executorService, new SegmentSink() {
+            @Override
+            public void accept(List<String> clientIds) {
+                received.addAll(clientIds);
+            }
+
+            @Override
+            public void complete() {
+                completed.incrementAndGet();
+            }
+        }, 2, 5);
+
+        for (int page = 0; page < 20; page++) {
+            int pageNumber = page;
+            pipeline.submit(() -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                Thread.sleep(5);
+                running.decrementAndGet();
+                return List.of("a" + pageNumber, "b" + pageNumber, "c" + pageNumber);
+            });
+        }
+        pipeline.await();
+
+        assertEquals(60, received.size());
+        assertEquals(1, completed.get());
+        assertTrue(maxRunning.get() <= 2);
+    }
+
+    @Test
+    void reportsPageFailureOnAwait() throws Exception {
+        ResultPipeline pipeline = new ResultPipeline(executorService, clientIds -> {}, 2, 10);
+        pipeline.submit(() -> {
+            throw new IOException("boom");
+        });
+
+        IOException error = assertThrows(IOException.class, pipeline::await);
+        assertEquals("boom", error.getMessage());
+    }
+
+    @Test
+    void stopsProducersOnceTheSinkFails() throws Exception {
+        AtomicInteger requested = new AtomicInteger();
+        ResultPipeline pipeline = new ResultPipeline(
+                executorService,
+                clientIds -> {
+                    throw new IOException("disk full");
+                },
+                2,
+                1);
+        pipeline.submit(() -> {
+            for (int page = 0; page < 100; page++) {
+                requested.incrementAndGet();
+                pipeline.emit(List.of("c" + page));
+            }
+            return List.of();
+        });
+
+        IOException error = assertThrows(IOException.class, pipeline::await);
+        assertEquals("disk full", error.getMessage());
+        assertEquals(2, requested.get());
+    }
+
+    @Test
+    void closeWithoutAwaitStopsTheSinkThread() throws Exception {
+        AtomicInteger completed = new AtomicInteger();
+        ResultPipeline pipeline = new ResultPipeline(executorService, new SegmentSink() {
+            @Override
+            public void accept(List<String> clientIds) {}
+
+            @Override
+            public void complete() {
+                completed.incrementAndGet();
+            }
+        }, 2, 10);
+        pipeline.submit(() -> List.of("a"));
+
+        pipeline.close();
+
+        assertTrue(pipeline.isFailed());
+        assertEquals(0, completed.get());
+        assertFalse(pipeline.submit(() -> List.of("b")));
+    }
+}
@@ -0,0 +1,58 @@
+package thinkmath.com.batch.segment;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ClientIdSetTest {
+
+    @Test
+    void deduplicatesAcrossGrowth() {
+        try (ClientIdSet set = new ClientIdSet()) {
+            for (int round = 0; round < 3; round++) {
+                for (int i = 0; i < 50_000; i++) {
+                    set.add("client-" + i);
+                }
+            }
+
+            assertEquals(50_000, set.size());
+            assertTrue(set.contains("client-0"));
+            assertTrue(set.contains("client-49999"));
+            assertFalse(set.contains("client-50000"));
+        }
+    }
+
+    @Test
+    void keepsNonAsciiIds() {
+        try (ClientIdSet set = new ClientIdSet()) {
+            set.add("khách-hàng-1");
+            List<String> ids = new ArrayList<>();
+            set.forEach(ids::add);
+
+            assertEquals(List.of("khách-hàng-1"), ids);
+            assertFalse(set.add("khách-hàng-1"));
+        }
+    }
+
+    @Test
+    void combinesSegments() {
+        try (ClientIdSet left = new ClientIdSet();
+                ClientIdSet right = new ClientIdSet()) {
+            left.addAll(List.of("a", "b", "c"));
+            right.addAll(List.of("b", "c", "d"));
+
+            assertEquals(4, left.union(right).size());
+            ClientIdSet intersection = left.intersection(right);
+            assertEquals(2, intersection.size());
+            assertTrue(intersection.contains("b") && intersection.contains("c"));
+            ClientIdSet difference = left.difference(right);
+            assertEquals(1, difference.size());
+            assertTrue(difference.contains("a"));
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package thinkmath.com.batch.segment;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SegmentFileTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void roundTripsSortedDistinctIdsThroughSpilledRuns() throws IOException {
+        List<String> clientIds = new ArrayList<>();
+        for (int i = 0; i < 50_000; i++) {
+            clientIds.add(String.format("C%010d", i * 3));
+        }
+        clientIds.add("khách-hàng-1");
+        List<String> shuffled = new ArrayList<>(clientIds);
+        shuffled.addAll(clientIds.subList(0, 1_000));
+        Collections.shuffle(shuffled, new Random(42));
+
+        Path file = directory.resolve("usecase-1" + SegmentFile.EXTENSION);
+        try (SegmentWriter writer = new SortedSegmentWriter(file, 128, 100_000)) {
+            for (int i = 0; i < shuffled.size(); i += 700) {
+                writer.accept(shuffled.subList(i, Math.min(i + 700, shuffled.size())));
+            }
+            writer.complete();
+        }
+        assertEquals(List.of(file), Files.list(directory).toList());
+
+        try (SegmentFile segment = SegmentFile.open(file)) {
+            List<String> read = new ArrayList<>();
+            segment.forEach(read::add);
+            assertEquals(sortedByBytes(clientIds), read);
+            assertEquals(clientIds.size(), segment.size());
+
+            assertTrue(segment.contains("C0000000000"));
+            assertTrue(segment.contains("C0000149997"));
+            assertTrue(segment.contains("khách-hàng-1"));
+            assertFalse(segment.contains("C0000000001"));
+            assertFalse(segment.contains("A"));
+            assertFalse(segment.contains("z"));
+        }
+    }
+
+    @Test
+    void sortsIdsThatArePrefixesOfEachOther() throws IOException {
+        List<String> clientIds = new ArrayList<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 2_000; i++) {
+            String prefix = "tenant-000000000000-" + (char) ('a' + random.nextInt(3));
+            clientIds.add(prefix.repeat(1 + random.nextInt(3)) + (random.nextBoolean() ? "\u0000" : "") + i % 50);
+        }
+        clientIds.addAll(List.of("", "\u0000", "tenant", "tenant\u0000", "tenant-0"));
+
+        try (SegmentFile segment = SegmentFile.open(write("prefixes", clientIds))) {
+            List<String> read = new ArrayList<>();
+            segment.forEach(read::add);
+            assertEquals(sortedByBytes(clientIds.stream().distinct().toList()), read);
+        }
+    }
+
+    @Test
+    void intersectsAndSubtractsSortedFiles() throws IOException {
+        Path left = write("left", List.of("a", "b", "c", "d", "e"));
+        Path right = write("right", List.of("b", "d", "f"));
+
+        try (SegmentFile leftSegment = SegmentFile.open(left); SegmentFile rightSegment = SegmentFile.open(right)) {
+            List<String> both = new ArrayList<>();
+            List<String> leftOnly = new ArrayList<>();
+
+            assertEquals(2, leftSegment.intersection(rightSegment, both::add));
+            assertEquals(3, leftSegment.difference(rightSegment, leftOnly::add));
+
+            assertEquals(List.of("b", "d"), both);
+            assertEquals(List.of("a", "c", "e"), leftOnly);
+        }
+    }
+
+    @Test
+    void writesTextInArrivalOrder() throws IOException {
+        Path file = directory.resolve("usecase-2.txt");
+        try (SegmentWriter writer = new TextSegmentWriter(file)) {
+            writer.accept(List.of("c", "a"));
+            writer.accept(List.of("a"));
+            writer.complete();
+        }
+
+        assertEquals(List.of("c", "a", "a"), Files.readAllLines(file));
+    }
+
+    @Test
+    void discardsUncompletedExports() throws IOException {
+        try (SegmentWriter writer = new SortedSegmentWriter(directory.resolve("usecase-3.sid"), 16, 100)) {
+            writer.accept(List.of("a", "b", "c", "d", "e", "f"));
+        }
+
+        try (var files = Files.list(directory)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    private Path write(String name, List<String> clientIds) throws IOException {
+        Path file = directory.resolve(name + SegmentFile.EXTENSION);
+        try (SegmentWriter writer = new SortedSegmentWriter(file, 2, 1 << 20)) {
+            writer.accept(clientIds);
+            writer.complete();
+        }
+        return file;
+    }
+
+    private static List<String> sortedByBytes(List<String> clientIds) {
+        return clientIds.stream()
+                .map(id -> id.getBytes(StandardCharsets.UTF_8))
+                .sorted(Arrays::compareUnsigned)
+                .map(bytes -> new String(bytes, StandardCharsets.UTF_8))
+                .toList();
+    }
+}
@@ -0,0 +1,55 @@
+package thinkmath.com.batch.segment;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SegmentStoreTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void roundTripsIdsAndWatermark() throws IOException {
+        SegmentStore store = new SegmentStore(directory);
+        Instant watermark = Instant.parse("2025-02-01T10:15:30.123Z");
+        try (ClientIdSet clientIds = new ClientIdSet()) {
+            for (int i = 0; i < 20_000; i++) {
+                clientIds.add("client-" + i);
+            }
+            clientIds.add("khách-hàng-1");
+            store.save(2, clientIds, watermark);
+        }
+
+        SegmentStore.StoredSegment stored = store.load(2).orElseThrow();
+        try (ClientIdSet clientIds = stored.clientIds()) {
+            assertEquals(watermark, stored.watermark());
+            assertEquals(20_001, clientIds.size());
+            assertTrue(clientIds.contains("client-19999"));
+            assertTrue(clientIds.contains("khách-hàng-1"));
+        }
+        assertTrue(store.load(1).isEmpty());
+    }
+
+    @Test
+    void replacesPreviousSegment() throws IOException {
+        SegmentStore store = new SegmentStore(directory);
+        try (ClientIdSet first = new ClientIdSet(); ClientIdSet second = new ClientIdSet()) {
+            first.add("client-1");
+            second.add("client-2");
+            store.save(1, first, Instant.ofEpochMilli(1));
+            store.save(1, second, Instant.ofEpochMilli(2));
+        }
+
+        SegmentStore.StoredSegment stored = store.load(1).orElseThrow();
+        assertEquals(Instant.ofEpochMilli(2), stored.watermark());
+        assertEquals(1, stored.clientIds().size());
+        assertTrue(stored.clientIds().contains("client-2"));
+    }
+}
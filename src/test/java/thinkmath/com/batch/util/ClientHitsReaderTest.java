@@ -0,0 +1,77 @@
+package thinkmath.com.batch.util;
+
+import org.junit.jupiter.api.Test;
+import thinkmath.com.batch.dto.ClientPage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ClientHitsReaderTest {
+
+    @Test
+    void readsClientIdsAndLastSort() throws IOException {
+        ClientPage page = read("""
+                {"took":3,"timed_out":false,"pit_id":"pit-2","hits":{"total":{"value":2,"relation":"eq"},"hits":[
+                  {"_index":"clients-1","_id":"a","_score":null,"_source":{"client_id":"c1","attributes":{"x":1}},
+                   "sort":[1700000000000,12]},
+                  {"_index":"clients-1","_id":"b","_source":{"client_id":"c2"},"sort":[1700000000001,"tie"]}
+                ]}}
+                """);
+
+        assertEquals("pit-2", page.pitId());
+        assertEquals(List.of("c1", "c2"), page.clientIds());
+        assertEquals(1700000000001L, page.lastSort().get(0).longValue());
+        assertEquals("tie", page.lastSort().get(1).stringValue());
+    }
+
+    @Test
+    void readsUsecaseTagsFromMatchedQueries() throws IOException {
+        ClientPage page = read("""
+                {"hits":{"hits":[
+                  {"_source":{"client_id":"c1"},"matched_queries":["usecase-1","usecase-3"]},
+                  {"_source":{"client_id":"c2"}},
+                  {"_source":{"client_id":"c3"},"matched_queries":{"usecase-2":1.0,"usecase-40":1.0}}
+                ]}}
+                """);
+
+        assertTrue(page.matches(0, 1) && page.matches(0, 3) && !page.matches(0, 2));
+        assertFalse(page.matches(1, 1) || page.matches(1, 2) || page.matches(1, 3));
+        assertTrue(page.matches(2, 2) && page.matches(2, 40) && !page.matches(2, 8));
+    }
+
+    @Test
+    void countsHitsWithoutClientId() throws IOException {
+        ClientPage page = read("""
+                {"hits":{"hits":[
+                  {"_source":{"client_id":"c1"},"sort":[1]},
+                  {"_source":{},"sort":[2]},
+                  {"_source":{"client_id":null},"sort":[3]}
+                ]}}
+                """);
+
+        assertEquals(List.of("c1"), page.clientIds());
+        assertEquals(3, page.hits());
+        assertEquals(3, page.lastSort().get(0).longValue());
+    }
+
+    @Test
+    void readsFilteredEmptyResponse() throws IOException {
+        ClientPage page = read("{}");
+
+        assertNull(page.pitId());
+        assertEquals(List.of(), page.clientIds());
+        assertEquals(0, page.hits());
+        assertNull(page.lastSort());
+    }
+
+    private static ClientPage read(String json) throws IOException {
+        return ClientHitsReader.read(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+    }
+}
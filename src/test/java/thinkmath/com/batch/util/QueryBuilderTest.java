@@ -0,0 +1,46 @@
+package thinkmath.com.batch.util;
+
+import co.elastic.clients.elasticsearch._types.query_dsl.Query;
+import co.elastic.clients.json.JsonpUtils;
+import co.elastic.clients.json.jackson.JacksonJsonpMapper;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class QueryBuilderTest {
+
+    @Test
+    void roundsAnchorDownToGranularity() {
+        Instant runTime = Instant.parse("2025-02-01T10:47:12.345Z");
+
+        assertEquals(Instant.parse("2025-02-01T10:00:00Z"), QueryBuilder.anchor(runTime, Duration.ofHours(1)));
+        assertEquals(Instant.parse("2025-02-01T00:00:00Z"), QueryBuilder.anchor(runTime, Duration.ofDays(1)));
+        assertEquals(runTime, QueryBuilder.anchor(runTime, Duration.ZERO));
+    }
+
+    @Test
+    void anchoredEventQueriesHaveNoNow() {
+        Instant anchor = Instant.parse("2025-02-01T10:00:00Z");
+        for (int usecaseNumber = 1; usecaseNumber <= 3; usecaseNumber++) {
+            String anchored = json(QueryBuilder.buildEventQuery(usecaseNumber, List.of("c1"), anchor));
+            String relative = json(QueryBuilder.buildEventQuery(usecaseNumber, List.of("c1")));
+
+            assertFalse(anchored.contains("now"), anchored);
+            assertTrue(relative.contains("now-"), relative);
+            assertEquals(relative, anchored.replace(anchor + "||", "now"));
+        }
+        String changed = json(QueryBuilder.buildChangedEventQuery(3, anchor.minus(Duration.ofDays(1)), anchor));
+        assertFalse(changed.contains("now"), changed);
+        assertTrue(changed.contains("\"gte\":\"2025-01-31T10:00:00Z\""), changed);
+    }
+
+    private static String json(Query query) {
+        return JsonpUtils.toJsonString(query, new JacksonJsonpMapper());
+    }
+}
@@ -0,0 +1,67 @@
+package thinkmath.com.batch.util;
+
+import co.elastic.clients.elasticsearch._types.FieldValue;
+import co.elastic.clients.elasticsearch.core.SearchRequest;
+import co.elastic.clients.json.JsonpMapper;
+import co.elastic.clients.json.JsonpUtils;
+import co.elastic.clients.json.jackson.JacksonJsonpMapper;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.http.HttpEntity;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class QueryTemplateTest {
+    private final JsonpMapper mapper = new JacksonJsonpMapper();
+    private final ObjectMapper json = new ObjectMapper();
+
+    @Test
+    void splicesClientIdsAndSearchAfter() throws IOException {
+        QueryTemplate template = QueryTemplate.of(eventRequest(List.of(QueryTemplate.CLIENT_IDS), null), mapper);
+        List<String> clientIds = List.of("c1", "khách \"2\"", "c3\t😀");
+        List<FieldValue> searchAfter = List.of(FieldValue.of(1700000000000L), FieldValue.of("tie"));
+
+        assertEquals(serialize(eventRequest(clientIds, null)), read(template.render(clientIds, null)));
+        assertEquals(serialize(eventRequest(clientIds, searchAfter)), read(template.render(clientIds, searchAfter)));
+    }
+
+    @Test
+    void appendsPointInTime() throws IOException {
+        SearchRequest page = new SearchRequest.Builder()
+                .size(QueryBuilder.BATCH_SIZE)
+                .query(QueryBuilder.buildClientQuery(3))
+                .sort(sort -> sort.field(field -> field.field(QueryBuilder.SHARD_DOC)))
+                .build();
+        QueryTemplate template = QueryTemplate.of(page, mapper);
+        List<FieldValue> searchAfter = List.of(FieldValue.of(42L));
+
+        SearchRequest expected = new SearchRequest.Builder()
+                .size(QueryBuilder.BATCH_SIZE)
+                .query(QueryBuilder.buildClientQuery(3))
+                .sort(sort -> sort.field(field -> field.field(QueryBuilder.SHARD_DOC)))
+                .pit(pit -> pit.id("pit-1").keepAlive(k -> k.time("5m")))
+                .searchAfter(searchAfter)
+                .build();
+        assertEquals(serialize(expected), read(template.renderPointInTime("pit-1", "5m", searchAfter)));
+    }
+
+    private static SearchRequest eventRequest(List<String> clientIds, List<FieldValue> searchAfter) {
+        SearchRequest.Builder builder = new SearchRequest.Builder()
+                .size(QueryBuilder.BATCH_SIZE)
+                .query(QueryBuilder.buildEventQuery(2, clientIds))
+                .sort(sort -> sort.field(field -> field.field("@timestamp")));
+        return searchAfter == null ? builder.build() : builder.searchAfter(searchAfter).build();
+    }
+
+    private JsonNode serialize(SearchRequest request) throws IOException {
+        return json.readTree(JsonpUtils.toJsonString(request, mapper));
+    }
+
+    private JsonNode read(HttpEntity entity) throws IOException {
+        return json.readTree(entity.getContent());
+    }
+}
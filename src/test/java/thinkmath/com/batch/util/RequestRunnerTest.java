@@ -0,0 +1,169 @@
+package thinkmath.com.batch.util;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.boot.context.properties.source.MapConfigurationPropertySource;
+import thinkmath.com.batch.config.BatchProperties;
+import thinkmath.com.batch.metrics.BatchMetrics;
+import thinkmath.com.batch.pipeline.AdaptiveConcurrencyLimiter;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RequestRunnerTest {
+    private final MeterRegistry registry = new SimpleMeterRegistry();
+    private RequestRunner runner;
+
+    @AfterEach
+    void tearDown() {
+        runner.close();
+    }
+
+    @Test
+    void retriesTransientFailures() {
+        runner = runner(Map.of());
+        AtomicInteger attempts = new AtomicInteger();
+
+        String result = runner.call("stage", false, preference -> attempts.incrementAndGet() < 3
+                        ? CompletableFuture.failedFuture(new ConnectException("Connection refused"))
+                        : CompletableFuture.completedFuture("page"))
+                .join();
+
+        assertEquals("page", result);
+        assertEquals(3, attempts.get());
+        assertEquals(2, registry.get(BatchMetrics.RETRIES).counter().count());
+    }
+
+    @Test
+    void leavesRejectionsToTheAdaptiveLimiter() throws Exception {
+        runner = runner(Map.of());
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(
+                4, 1, 8, Duration.ofSeconds(10), 0.5, 3, Duration.ofMillis(1), Duration.ofMillis(5));
+        AtomicInteger attempts = new AtomicInteger();
+
+        String result = limiter.call(() -> runner.call("stage", false, preference -> attempts.incrementAndGet() < 3
+                        ? CompletableFuture.failedFuture(
+                                new IOException("es_rejected_execution_exception: search queue is full"))
+                        : CompletableFuture.<String>completedFuture("page"))
+                .join());
+
+        assertEquals("page", result);
+        assertEquals(3, attempts.get());
+        assertEquals(2, limiter.stats().rejections());
+        assertTrue(limiter.stats().limit() < 4);
+        assertNull(registry.find(BatchMetrics.RETRIES).counter());
+    }
+
+    @Test
+    void retriesRejectedScansOutsideTheLimiter() throws Exception {
+        runner = runner(Map.of("batch.executor.mode", "ADAPTIVE"));
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(
+                4, 1, 8, Duration.ofSeconds(10), 0.5, 3, Duration.ofMillis(1), Duration.ofMillis(5));
+        limiter.call(() -> "page");
+        AtomicInteger attempts = new AtomicInteger();
+
+        String result = runner.call("clients-slice", false, preference -> attempts.incrementAndGet() == 1
+                        ? CompletableFuture.failedFuture(new IOException("429 Too Many Requests: "
+                                + "es_rejected_execution_exception: search queue is full"))
+                        : CompletableFuture.completedFuture("scan page"))
+                .join();
+
+        assertEquals("scan page", result);
+        assertEquals(2, attempts.get());
+        assertEquals(1, registry.get(BatchMetrics.RETRIES).counter().count());
+        assertEquals(0, limiter.stats().rejections());
+    }
+
+    @Test
+    void failsFastOnOtherErrors() {
+        runner = runner(Map.of());
+        AtomicInteger attempts = new AtomicInteger();
+
+        CompletionException error = assertThrows(CompletionException.class, () -> runner.call(
+                        "stage", false, preference -> {
+                            attempts.incrementAndGet();
+                            return CompletableFuture.failedFuture(new IllegalArgumentException("bad query"));
+                        })
+                .join());
+
+        assertInstanceOf(IllegalArgumentException.class, error.getCause());
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    void cancelsAndRetriesAttemptsPastTheirDeadline() {
+        runner = runner(Map.of("batch.requests.deadline", "50ms", "batch.requests.max-retries", "1"));
+        List<CompletableFuture<String>> attempts = new CopyOnWriteArrayList<>();
+
+        CompletionException error = assertThrows(CompletionException.class, () -> runner.call(
+                        "stage", false, preference -> {
+                            CompletableFuture<String> attempt = new CompletableFuture<>();
+                            attempts.add(attempt);
+                            return attempt;
+                        })
+                .join());
+
+        assertInstanceOf(TimeoutException.class, error.getCause());
+        assertEquals(2, attempts.size());
+        assertTrue(attempts.stream().allMatch(CompletableFuture::isCancelled));
+        assertEquals(2, registry.get(BatchMetrics.DEADLINES_EXCEEDED).counter().count());
+    }
+
+    @Test
+    void hedgesSlowRequestsWithAnotherPreference() {
+        runner = runner(Map.of(
+                "batch.requests.hedge", "true",
+                "batch.requests.hedge-min-samples", "1",
+                "batch.requests.hedge-min-delay", "10ms"));
+        runner.call("stage", true, preference -> CompletableFuture.completedFuture("warm-up")).join();
+        List<String> preferences = new CopyOnWriteArrayList<>();
+        CompletableFuture<String> slow = new CompletableFuture<>();
+
+        String result = runner.call("stage", true, preference -> {
+                    preferences.add(String.valueOf(preference));
+                    return preference == null ? slow : CompletableFuture.completedFuture("hedged");
+                })
+                .join();
+
+        assertEquals("hedged", result);
+        assertEquals(2, preferences.size());
+        assertEquals("null", preferences.get(0));
+        assertTrue(preferences.get(1).startsWith(RequestRunner.HEDGE_PREFERENCE));
+        assertTrue(slow.isCancelled());
+        assertEquals(1, registry.get(BatchMetrics.HEDGE_WINS).counter().count());
+    }
+
+    @Test
+    void waitsForEnoughSamplesBeforeHedging() {
+        runner = runner(Map.of("batch.requests.hedge", "true", "batch.requests.hedge-min-samples", "3"));
+        runner.call("stage", true, preference -> CompletableFuture.completedFuture("page")).join();
+
+        assertEquals(-1, runner.hedgeDelayNanos("stage"));
+        assertEquals(-1, runner.hedgeDelayNanos("other"));
+        assertNull(registry.find(BatchMetrics.HEDGES).counter());
+    }
+
+    private RequestRunner runner(Map<String, String> properties) {
+        BatchProperties.Requests settings = new Binder(new MapConfigurationPropertySource(properties))
+                .bindOrCreate("batch", BatchProperties.class)
+                .requests();
+        return new RequestRunner(settings, new BatchMetrics(registry));
+    }
+}
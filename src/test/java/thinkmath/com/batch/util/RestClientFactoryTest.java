@@ -0,0 +1,68 @@
+package thinkmath.com.batch.util;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.http.HttpHost;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.elasticsearch.client.Node;
+import org.elasticsearch.client.RestClient;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.boot.context.properties.source.MapConfigurationPropertySource;
+import thinkmath.com.batch.config.BatchProperties;
+import thinkmath.com.batch.metrics.BatchMetrics;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class RestClientFactoryTest {
+    private final MeterRegistry registry = new SimpleMeterRegistry();
+
+    @Test
+    void connectsToEveryConfiguredHost() throws IOException {
+        BatchProperties.Transport transport = transport(Map.of(
+                "batch.transport.hosts", "http://es-1:9200,https://es-2:9201",
+                "batch.transport.password", "secret",
+                "batch.transport.node-selection", "LEAST_LOADED"));
+
+        try (RestClient client = RestClientFactory.build(transport, new BatchMetrics(registry))) {
+            assertEquals(
+                    List.of(HttpHost.create("http://es-1:9200"), HttpHost.create("https://es-2:9201")),
+                    client.getNodes().stream().map(Node::getHost).toList());
+            assertEquals(0, registry.get("batch.node.connections").tag("node", "es-2:9201").gauge().value());
+        }
+    }
+
+    @Test
+    void requiresPasswordWithUsername() {
+        BatchProperties.Transport transport = transport(Map.of("batch.transport.username", "elastic"));
+
+        assertThrows(IllegalStateException.class, () -> RestClientFactory.build(transport, new BatchMetrics(registry)));
+    }
+
+    @Test
+    void leastLoadedKeepsEveryIdleNode() throws IOException {
+        PoolingNHttpClientConnectionManager connectionManager =
+                new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor());
+        List<Node> nodes = new ArrayList<>(List.of(
+                new Node(HttpHost.create("http://es-1:9200")),
+                new Node(HttpHost.create("http://es-2:9200"))));
+
+        RestClientFactory.leastLoaded(connectionManager).select(nodes);
+
+        assertEquals(2, nodes.size());
+        connectionManager.shutdown();
+    }
+
+    private static BatchProperties.Transport transport(Map<String, String> properties) {
+        return new Binder(new MapConfigurationPropertySource(properties))
+                .bindOrCreate("batch", BatchProperties.class)
+                .transport();
+    }
+}
@@ -0,0 +1,47 @@
+package thinkmath.com.batch.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ShardRouterTest {
+
+    @Test
+    void hashesRoutingLikeElasticsearch() {
+        assertEquals(0x5a0cb7c3, ShardRouter.hash("hell"));
+        assertEquals(0xd7c31989, ShardRouter.hash("hello"));
+        assertEquals(0x22ab2984, ShardRouter.hash("hello w"));
+        assertEquals(0xdf0ca123, ShardRouter.hash("hello wo"));
+        assertEquals(0xe7744d61, ShardRouter.hash("hello wor"));
+        assertEquals(0xe07db09c, ShardRouter.hash("The quick brown fox jumps over the lazy dog"));
+        assertEquals(0x4e63d2ad, ShardRouter.hash("The quick brown fox jumps over the lazy cog"));
+    }
+
+    @Test
+    void groupsIdsBySharedShardInEveryLayout() {
+        ShardRouter.Layout threeShards = new ShardRouter.Layout(768, 3);
+        ShardRouter.Layout fiveShards = new ShardRouter.Layout(640, 5);
+        ShardRouter router = new ShardRouter(List.of(threeShards, fiveShards, threeShards));
+        List<String> clientIds = IntStream.range(0, 1_000).mapToObj(i -> "client-" + i).toList();
+
+        Map<String, List<String>> groups = router.group(clientIds);
+
+        assertEquals(15, router.groups());
+        assertEquals(15, groups.size());
+        assertEquals(clientIds.size(), groups.values().stream().mapToInt(List::size).sum());
+        groups.forEach((routing, group) -> {
+            assertEquals(routing, group.getFirst());
+            for (String clientId : group) {
+                int hash = ShardRouter.hash(clientId);
+                assertEquals(threeShards.shard(ShardRouter.hash(routing)), threeShards.shard(hash));
+                assertEquals(fiveShards.shard(ShardRouter.hash(routing)), fiveShards.shard(hash));
+            }
+            assertTrue(clientIds.indexOf(group.get(0)) < clientIds.indexOf(group.getLast()) || group.size() == 1);
+        });
+    }
+}